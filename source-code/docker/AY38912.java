@@ -1,19 +1,23 @@
 import java.awt.event.*;
-import java.math.*;
+import java.nio.*;
 
 public class AY38912 {
   int regs[];
   int current;
   Keyboard keys;
   boolean tapeStarted;
-  BigInteger tapeStartTime,currentPosition;  
+  long tapeStartTime,currentPosition;  
   MC1000machine machine;
+  PSGoutput synth;
+  WriteLog synthLog;
+  AudioPump pump;
+  boolean speculative;
 
   AY38912(MC1000machine m) {
     regs=new int[16];
     keys=new Keyboard();
     tapeStarted=false;
-    tapeStartTime=BigInteger.ZERO;
+    currentPosition=-1;
     machine=m;
   }
   
@@ -21,24 +25,28 @@ public class AY38912 {
     current=r&0xF;
   }
 
-  public void writeRegister (int value) {
+  public void writeRegister (int value, long clocks) {
     regs[current]=value&0xFF;
     if (current==14)
       keys.write(value);
+    else if (synth!=null && !speculative)
+      synthLog.out(current,value&0xFF,clocks);
     //System.out.println ("PSG["+Integer.toHexString(current)+"]="+Integer.toHexString(value));
   }
 
-  public int readRegister (BigInteger clocks) {
+  public int readRegister (long clocks) {
     int ret;
 
+    keys.update(clocks);
+
     if (!tapeStarted && keys.hasTapeStarted()) {
-      if (!machine.tape.getLength(59600*60).equals(BigInteger.ZERO)) {
+      if (machine.tape.getLength(59600*60)!=0) {
         tapeStarted=keys.hasTapeStarted();
         tapeStartTime=clocks;
       }
     }
  
-    currentPosition=clocks.subtract(tapeStartTime);
+    currentPosition=clocks-tapeStartTime;
 
     if (current<15)
       ret=regs[current];
@@ -46,7 +54,7 @@ public class AY38912 {
       int cassete=0xFF;
       
       if (tapeStarted)
-        if (!machine.tape.returnSample(clocks.subtract(tapeStartTime),59600*60))
+        if (!machine.tape.returnSample(clocks-tapeStartTime,59600*60))
            cassete=0x7F;
            
       ret=keys.read() & cassete;     
@@ -56,19 +64,93 @@ public class AY38912 {
     return ret;
   }
   
+  public void saveState (ByteBuffer b) {
+    for (int i=0; i<16; i++)
+      b.put((byte)regs[i]);
+    b.put((byte)current);
+    b.put((byte)(tapeStarted?1:0));
+    b.putLong(tapeStartTime);
+    b.putLong(currentPosition);
+    keys.saveState(b);
+  }
+
+  public void loadState (ByteBuffer b) {
+    for (int i=0; i<16; i++)
+      regs[i]=b.get()&0xFF;
+    current=b.get();
+    tapeStarted=b.get()!=0;
+    tapeStartTime=b.getLong();
+    currentPosition=b.getLong();
+    keys.loadState(b);
+    if (synth!=null && !speculative) {
+      synthLog.clear();
+      synth.start(machine.z80core.getClocks(),regs);
+    }
+  }
+
   public boolean hasTapeStarted() {
     return tapeStarted;
   }
 
+  // CPU clocks since the tape started playing, 0 when it has not
+  public long tapeClocks() {
+    if (!tapeStarted || currentPosition<0)
+      return 0;
+    return currentPosition;
+  }
+
   public int tapeProgress() {
     if (!tapeStarted)
       return 0;
       
-    return currentPosition.multiply(BigInteger.valueOf(100)).divide(machine.tape.getLength(59600*60)).intValue();
+    return (int)(currentPosition*100/machine.tape.getLength(59600*60));
+  }
+
+
+  // Sound is off until a sink is given, so headless machines pay nothing for it
+  public PSGsynth enableAudio (AudioSink sink, int sampleRate, boolean realTime) {
+    PSGsynth s=new PSGsynth(sampleRate,new AudioRing(sampleRate/2));
+    s.start(machine.z80core.getClocks(),regs);
+    synthLog=machine.ports.batch(s);
+    synth=s;
+    pump=new AudioPump(s.getRing(),sink);
+    if (realTime)
+      pump.start();
+    return s;
+  }
+
+  public void disableAudio () {
+    if (pump!=null)
+      pump.stop();
+    if (synthLog!=null)
+      machine.ports.unbatch(synthLog);
+    synth=null;
+    synthLog=null;
+    pump=null;
   }
 
+  // Called at the end of every slice, after the logged writes are flushed
+  public void endSlice (long clock) {
+    if (synth!=null && !speculative)
+      synth.render(clock);
+  }
+
+  // While set, the registers are not heard and the keyboard takes no input,
+  // for frames that are run and then undone
+  public void setSpeculative (boolean s) {
+    speculative=s;
+    keys.speculative=s;
+  }
+
+  public AudioPump getAudioPump () {
+    return pump;
+  }
 
   public KeyListener getKeyListener () {
     return keys;
   }
+
+  public Keyboard getKeyboard () {
+    return keys;
+  }
 }
\ No newline at end of file
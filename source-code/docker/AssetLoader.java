@@ -0,0 +1,6 @@
+// Reads the files the machine needs, mc1000.rom and tapes, from wherever
+// the host keeps them; null when there is no such file
+public interface AssetLoader
+{
+ public byte[] load(String name);
+}
@@ -0,0 +1,56 @@
+// Moves samples from the ring to a sink, on its own thread for real time
+// output or by hand with drain() in headless runs
+public class AudioPump implements Runnable {
+  AudioRing ring;
+  AudioSink sink;
+  short[] buffer;
+  volatile boolean running;
+  Thread thread;
+
+  AudioPump(AudioRing r, AudioSink s) {
+    ring=r;
+    sink=s;
+    buffer=new short[2048];
+  }
+
+  public void start() {
+    running=true;
+    thread=new Thread(this,"MC-1000 audio");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    running=false;
+    if (thread!=null)
+      try {
+        thread.join();
+      } catch (InterruptedException e) {}
+    drain();
+    sink.close();
+  }
+
+  public int drain() {
+    int total=0,n;
+    try {
+      while ((n=ring.read(buffer,0,buffer.length))>0) {
+        sink.write(buffer,n);
+        total+=n;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      running=false;
+    }
+    return total;
+  }
+
+  public void run() {
+    while (running)
+      if (drain()==0)
+        try {
+          Thread.sleep(2);
+        } catch (InterruptedException e) {
+          return;
+        }
+  }
+}
@@ -0,0 +1,48 @@
+import java.util.concurrent.atomic.*;
+
+// Lock-free ring of 16-bit samples between the emulation thread, which never
+// waits and drops samples when the ring is full, and one audio consumer.
+public class AudioRing {
+  final short[] buffer;
+  final int mask;
+  final AtomicLong head,tail;
+  long dropped;
+
+  AudioRing(int capacity) {
+    int size=Integer.highestOneBit(Math.max(capacity-1,1))<<1;
+    buffer=new short[size];
+    mask=size-1;
+    head=new AtomicLong();
+    tail=new AtomicLong();
+  }
+
+  public int write (short[] samples, int offset, int n) {
+    long t=tail.get();
+    int free=(int)(buffer.length-(t-head.get()));
+    if (n>free) {
+      dropped+=n-free;
+      n=free;
+    }
+    for (int i=0; i<n; i++)
+      buffer[(int)(t+i)&mask]=samples[offset+i];
+    tail.lazySet(t+n);
+    return n;
+  }
+
+  public int read (short[] samples, int offset, int n) {
+    long h=head.get();
+    n=(int)Math.min(n,tail.get()-h);
+    for (int i=0; i<n; i++)
+      samples[offset+i]=buffer[(int)(h+i)&mask];
+    head.lazySet(h+n);
+    return n;
+  }
+
+  public int available() {
+    return (int)(tail.get()-head.get());
+  }
+
+  public long getDropped() {
+    return dropped;
+  }
+}
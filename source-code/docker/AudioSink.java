@@ -0,0 +1,7 @@
+
+public interface AudioSink
+{
+ public void open(int sampleRate) throws Exception;
+ public void write(short[] samples, int n) throws Exception;
+ public void close();
+}
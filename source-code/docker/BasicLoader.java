@@ -0,0 +1,218 @@
+import java.io.*;
+import java.util.*;
+
+// Loads BASIC source straight into the program area, skipping the keyboard.
+//
+// The keywords come from the token table in the ROM image, found by looking
+// for END and FOR in either Microsoft BASIC encoding (bit 7 on the last or on
+// the first letter of each keyword). Token values follow table order from
+// 0x80. The program pointers are found after boot by their signature: the
+// start of the program followed by three equal pointers to just past the
+// 00 00 link that ends it.
+public class BasicLoader {
+  static final int POINTER_AREA=0x400;  // the pointers are searched below this
+
+  MC1000machine machine;
+  String[] keywords;
+  int pointers;
+
+  BasicLoader(MC1000machine m) throws IOException {
+    machine=m;
+    keywords=readKeywords(m.memory.rom);
+    pointers=-1;
+  }
+
+  public String[] getKeywords() {
+    return keywords;
+  }
+
+  static String[] readKeywords (int[] rom) throws IOException {
+    for (int i=0; i+6<rom.length; i++) {
+      // Bit 7 on the last letter
+      if (rom[i]=='E' && rom[i+1]=='N' && rom[i+2]==('D'|0x80)
+          && rom[i+3]=='F' && rom[i+4]=='O' && rom[i+5]==('R'|0x80))
+        return parseKeywords(rom,i,false);
+      // Bit 7 on the first letter
+      if (rom[i]==('E'|0x80) && rom[i+1]=='N' && rom[i+2]=='D'
+          && rom[i+3]==('F'|0x80) && rom[i+4]=='O' && rom[i+5]=='R')
+        return parseKeywords(rom,i,true);
+    }
+    throw new IOException("BASIC token table not found in ROM");
+  }
+
+  private static String[] parseKeywords (int[] rom, int pos, boolean markFirst) {
+    List<String> list=new ArrayList<String>();
+    StringBuilder s=new StringBuilder();
+
+    while (pos<rom.length && list.size()<128) {
+      int c=rom[pos];
+      if (c==0 || (c&0x7F)<0x20 || (markFirst && c==0x80))
+        break;
+      if (markFirst && (c&0x80)!=0 && s.length()>0) {
+        list.add(s.toString());
+        s.setLength(0);
+      }
+      s.append((char)(c&0x7F));
+      pos++;
+      if (!markFirst && (c&0x80)!=0) {
+        list.add(s.toString());
+        s.setLength(0);
+      }
+    }
+    if (markFirst && s.length()>0)
+      list.add(s.toString());
+    return list.toArray(new String[list.size()]);
+  }
+
+  // Address of the program start pointer, followed by the variable pointers
+  public int findPointers() throws IOException {
+    if (pointers>=0)
+      return pointers;
+    for (int a=0; a+8<=POINTER_AREA; a++) {
+      int text=readWord(a);
+      int vars=readWord(a+2);
+      if ((text>a-4 && text<a+8) || vars<text+2 || vars>=machine.memory.ram.length())
+        continue;
+      if (readWord(a+4)==vars && readWord(a+6)==vars && endOfProgram(text,vars)==vars-2) {
+        pointers=a;
+        return a;
+      }
+    }
+    throw new IOException("BASIC program pointers not found, has the machine booted?");
+  }
+
+  // Follows the line links up to the final 00 00, -1 if they leave the area
+  private int endOfProgram (int addr, int limit) {
+    while (addr>=0 && addr<limit) {
+      int next=readWord(addr);
+      if (next==0)
+        return addr;
+      if (next<=addr)
+        return -1;
+      addr=next;
+    }
+    return -1;
+  }
+
+  public void load (String file) throws IOException {
+    BufferedReader in=new BufferedReader (new FileReader (file));
+    try {
+      load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void load (BufferedReader in) throws IOException {
+    TreeMap<Integer,byte[]> lines=new TreeMap<Integer,byte[]>();
+    for (String s=in.readLine(); s!=null; s=in.readLine()) {
+      s=s.trim();
+      if (s.length()==0)
+        continue;
+      int i=0;
+      while (i<s.length() && Character.isDigit(s.charAt(i)))
+        i++;
+      if (i==0)
+        throw new IOException("line without number: "+s);
+      int number=Integer.parseInt(s.substring(0,i));
+      if (number>63999)
+        throw new IOException("line number too big: "+number);
+      if (i<s.length() && s.charAt(i)==' ')
+        i++;
+      lines.put(number,tokenize(s.substring(i)));
+    }
+
+    int p=findPointers();
+    int text=readWord(p);
+    int addr=text;
+    for (Map.Entry<Integer,byte[]> e : lines.entrySet()) {
+      byte[] body=e.getValue();
+      int next=addr+4+body.length+1;
+      writeWord(addr,next);
+      writeWord(addr+2,e.getKey());
+      for (int i=0; i<body.length; i++)
+        machine.memory.writeByte(addr+4+i,body[i]&0xFF);
+      machine.memory.writeByte(next-1,0);
+      addr=next;
+    }
+    writeWord(addr,0);
+
+    int end=addr+2;
+    writeWord(p+2,end);
+    writeWord(p+4,end);
+    writeWord(p+6,end);
+  }
+
+  public byte[] tokenize (String line) {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    boolean quote=false,data=false;
+
+    for (int i=0; i<line.length();) {
+      char c=line.charAt(i);
+      if (c=='"')
+        quote=!quote;
+      if (quote || (data && c!=':')) {
+        out.write(c);
+        i++;
+        continue;
+      }
+      data=false;
+
+      int token=matchKeyword(line,i);
+      if (token<0) {
+        out.write(Character.toUpperCase(c));
+        i++;
+        continue;
+      }
+      out.write(0x80+token);
+      i+=keywords[token].length();
+      if (keywords[token].equals("REM")) {
+        for (; i<line.length(); i++)
+          out.write(line.charAt(i));
+      } else if (keywords[token].equals("DATA"))
+        data=true;
+    }
+    return out.toByteArray();
+  }
+
+  private int matchKeyword (String line, int pos) {
+    for (int t=0; t<keywords.length; t++)
+      if (line.regionMatches(true,pos,keywords[t],0,keywords[t].length()))
+        return t;
+    return -1;
+  }
+
+  // Lists the program in memory back as source
+  public String detokenize() throws IOException {
+    StringBuilder s=new StringBuilder();
+    int addr=readWord(findPointers());
+
+    for (int lines=0; lines<0x10000; lines++) {
+      int next=readWord(addr);
+      if (next==0)
+        break;
+      s.append(readWord(addr+2)).append(' ');
+      for (int p=addr+4; ; p++) {
+        int c=machine.memory.readByte(p);
+        if (c==0)
+          break;
+        if (c>=0x80 && c-0x80<keywords.length)
+          s.append(keywords[c-0x80]);
+        else
+          s.append((char)c);
+      }
+      s.append('\n');
+      addr=next;
+    }
+    return s.toString();
+  }
+
+  private int readWord (int addr) {
+    return machine.memory.readByte(addr)|(machine.memory.readByte(addr+1)<<8);
+  }
+
+  private void writeWord (int addr, int v) {
+    machine.memory.writeByte(addr,v&0xFF);
+    machine.memory.writeByte(addr+1,(v>>8)&0xFF);
+  }
+}
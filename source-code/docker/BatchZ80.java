@@ -0,0 +1,761 @@
+import java.util.*;
+
+// Runs many machines with the same ROM in lockstep, for test sweeps.
+//
+// usage: java BatchZ80 -rom mc1000.rom [-machines n] [-frames n]
+//
+// The registers the common instructions use live here as one array per
+// register.  Each round every machine runs one instruction: the machines
+// are bucketed by PC, and a bucket whose opcode is one of the kernels below
+// runs it for all its members in one loop, each against its own memory
+// pages and ports.  Anything else (prefixed opcodes, EI/DI, HALT, rotates)
+// goes through the machine's own Z80 with the registers copied across.  A
+// machine that stays alone in its bucket for DIVERGE_ROUNDS rounds, or
+// that is halted, has traps or is just after an EI, leaves the batch and
+// runs the rest of its frame on its own Z80.
+public class BatchZ80 {
+  static final int DIVERGE_ROUNDS=64;
+  // More than any one instruction takes, prefixes included
+  static final int MAX_STEP_CYCLES=32;
+  static final int WARMUP_FRAMES=60;
+
+  MC1000machine[] machines;
+  Z80[] cpus;
+  Memory[] mem;
+  Ports[] ports;
+  int n;
+
+  int[] af,bc,de,hl,sp,pc,r,cycles;
+  int[] regs;
+
+  int[] head,next,touched,group,other,active,lonely;
+  boolean[] attached;
+  boolean sameRom,split;
+  int safeRounds;
+  long batched,single,fallback;
+
+  BatchZ80(MC1000machine[] m) {
+    machines=m;
+    n=m.length;
+    cpus=new Z80[n];
+    mem=new Memory[n];
+    ports=new Ports[n];
+    for (int i=0; i<n; i++) {
+      cpus[i]=m[i].z80core;
+      mem[i]=m[i].memory;
+      ports[i]=m[i].ports;
+    }
+    af=new int[n];
+    bc=new int[n];
+    de=new int[n];
+    hl=new int[n];
+    sp=new int[n];
+    pc=new int[n];
+    r=new int[n];
+    cycles=new int[n];
+    regs=new int[Z80.REG_COUNT];
+
+    head=new int[0x10000];
+    Arrays.fill(head,-1);
+    next=new int[n];
+    touched=new int[n];
+    group=new int[n];
+    other=new int[n];
+    active=new int[n];
+    lonely=new int[n];
+    attached=new boolean[n];
+
+    // With one ROM the opcode above 0xC000 is the same for every machine
+    sameRom=true;
+    for (int i=1; i<n; i++)
+      sameRom&=Arrays.equals(m[0].memory.rom,m[i].memory.rom);
+  }
+
+  public void runFrame() {
+    int count=0;
+    for (int i=0; i<n; i++) {
+      cpus[i].beginSlice(MC1000machine.CYCLES_PER_FRAME);
+      attached[i]=cpus[i].isPlain();
+      if (attached[i]) {
+        load(i);
+        lonely[i]=0;
+        active[count++]=i;
+      } else
+        cpus[i].resume();
+    }
+
+    safeRounds=0;
+    while (count>0)
+      count=round(count);
+
+    for (int i=0; i<n; i++) {
+      if (attached[i])
+        store(i);
+      machines[i].endSlice();
+    }
+  }
+
+  public long getBatched() {
+    return batched;
+  }
+
+  public long getSingle() {
+    return single;
+  }
+
+  public long getFallback() {
+    return fallback;
+  }
+
+  // One instruction for every machine still in the batch; returns how many
+  // remain
+  private int round (int count) {
+    int p=pc[active[0]];
+    int k=1;
+    while (k<count && pc[active[k]]==p)
+      k++;
+    if (k==count) {
+      // All at the same PC, the common case while in step
+      if (split) {
+        split=false;
+        for (k=0; k<count; k++)
+          lonely[active[k]]=0;
+      }
+      if (p>=0xC000 && sameRom)
+        execute(mem[active[0]].readByte(p),active,count);
+      else {
+        System.arraycopy(active,0,group,0,count);
+        run(p,count);
+      }
+      return compact(count);
+    }
+    split=true;
+
+    int buckets=0;
+    for (k=0; k<count; k++) {
+      int i=active[k];
+      p=pc[i];
+      if (head[p]<0)
+        touched[buckets++]=p;
+      next[i]=head[p];
+      head[p]=i;
+    }
+
+    for (int b=0; b<buckets; b++) {
+      p=touched[b];
+      int size=0;
+      for (int i=head[p]; i>=0; i=next[i])
+        group[size++]=i;
+      head[p]=-1;
+
+      if (size==1) {
+        int i=group[0];
+        if (++lonely[i]>=DIVERGE_ROUNDS) {
+          detach(i);
+          continue;
+        }
+      } else
+        for (k=0; k<size; k++)
+          lonely[group[k]]=0;
+      run(p,size);
+    }
+    return compact(count);
+  }
+
+  // Runs the instruction at p for the machines in group
+  private void run (int p, int size) {
+    int op=mem[group[0]].readByte(p);
+    if (p>=0xC000 && sameRom) {
+      execute(op,group,size);
+      return;
+    }
+
+    // Code in RAM may differ between machines at the same PC
+    int same=0,rest=0;
+    for (int k=0; k<size; k++) {
+      int i=group[k];
+      if (k==0 || mem[i].readByte(p)==op)
+        group[same++]=i;
+      else
+        other[rest++]=i;
+    }
+    execute(op,group,same);
+    for (int k=0; k<rest; k++) {
+      int i=other[k];
+      group[0]=i;
+      execute(mem[i].readByte(p),group,1);
+    }
+  }
+
+  // Drops the machines that left or finished their frame, looking again only
+  // once one of them may have
+  private int compact (int count) {
+    if (safeRounds>0) {
+      safeRounds--;
+      return count;
+    }
+    int left=0,least=Integer.MAX_VALUE;
+    for (int k=0; k<count; k++) {
+      int i=active[k];
+      if (attached[i] && cycles[i]>0) {
+        active[left++]=i;
+        least=Math.min(least,cycles[i]);
+      }
+    }
+    safeRounds=(least-1)/MAX_STEP_CYCLES;
+    return left;
+  }
+
+  private void execute (int op, int[] g, int size) {
+    if (!kernel(op,g,size)) {
+      for (int k=0; k<size; k++)
+        step(g[k]);
+      fallback+=size;
+    } else if (size>1)
+      batched+=size;
+    else
+      single+=size;
+  }
+
+  private void load (int i) {
+    cpus[i].getRegisters(regs);
+    af[i]=regs[Z80.REG_AF];
+    bc[i]=regs[Z80.REG_BC];
+    de[i]=regs[Z80.REG_DE];
+    hl[i]=regs[Z80.REG_HL];
+    sp[i]=regs[Z80.REG_SP];
+    pc[i]=regs[Z80.REG_PC];
+    r[i]=regs[Z80.REG_R];
+    cycles[i]=cpus[i].getCyclesToDo();
+  }
+
+  private void store (int i) {
+    cpus[i].getRegisters(regs);
+    regs[Z80.REG_AF]=af[i];
+    regs[Z80.REG_BC]=bc[i];
+    regs[Z80.REG_DE]=de[i];
+    regs[Z80.REG_HL]=hl[i];
+    regs[Z80.REG_SP]=sp[i];
+    regs[Z80.REG_PC]=pc[i];
+    regs[Z80.REG_R]=r[i];
+    cpus[i].setRegisters(regs);
+    cpus[i].setCyclesToDo(cycles[i]);
+  }
+
+  private void step (int i) {
+    store(i);
+    cpus[i].step();
+    if (cpus[i].isPlain())
+      load(i);
+    else
+      leave(i);
+  }
+
+  // One instruction of machine i on its own, through its kernel when it has
+  // one, for Lockstep; returns true when a kernel ran it
+  boolean stepInstruction (int i) {
+    if (!cpus[i].isPlain()) {
+      cpus[i].step();
+      return false;
+    }
+    load(i);
+    group[0]=i;
+    if (!kernel(mem[i].readByte(pc[i]),group,1)) {
+      cpus[i].step();
+      return false;
+    }
+    store(i);
+    return true;
+  }
+
+  private void detach (int i) {
+    store(i);
+    leave(i);
+  }
+
+  // The machine runs the rest of its frame on its own Z80
+  private void leave (int i) {
+    attached[i]=false;
+    safeRounds=0;
+    cpus[i].resume();
+  }
+
+  private int readWord (int i, int addr) {
+    return mem[i].readByte(addr)|(mem[i].readByte(addr+1)<<8);
+  }
+
+  private void writeWord (int i, int addr, int data) {
+    mem[i].writeByte(addr,data&0xFF);
+    mem[i].writeByte(addr+1,(data&0xFF00)>>8);
+  }
+
+  private int get8 (int reg, int i) {
+    switch (reg) {
+      case 0: return bc[i]>>8;
+      case 1: return bc[i]&0xFF;
+      case 2: return de[i]>>8;
+      case 3: return de[i]&0xFF;
+      case 4: return hl[i]>>8;
+      case 5: return hl[i]&0xFF;
+      case 6: return mem[i].readByte(hl[i]);
+      default: return af[i]>>8;
+    }
+  }
+
+  private void set8 (int reg, int i, int v) {
+    switch (reg) {
+      case 0: bc[i]=(bc[i]&0xFF)|(v<<8); break;
+      case 1: bc[i]=(bc[i]&0xFF00)|v; break;
+      case 2: de[i]=(de[i]&0xFF)|(v<<8); break;
+      case 3: de[i]=(de[i]&0xFF00)|v; break;
+      case 4: hl[i]=(hl[i]&0xFF)|(v<<8); break;
+      case 5: hl[i]=(hl[i]&0xFF00)|v; break;
+      case 6: mem[i].writeByte(hl[i],v); break;
+      default: af[i]=(af[i]&0xFF)|(v<<8); break;
+    }
+  }
+
+  // The array and shift holding an 8 bit register other than (HL)
+  private int[] pair (int reg) {
+    switch (reg>>1) {
+      case 0: return bc;
+      case 1: return de;
+      case 2: return hl;
+      default: return af;
+    }
+  }
+
+  private static int shift (int reg) {
+    return reg==7 || (reg&1)==0?8:0;
+  }
+
+  private static boolean condition (int cc, int f) {
+    switch (cc) {
+      case 0: return (f&0x40)==0;
+      case 1: return (f&0x40)!=0;
+      case 2: return (f&0x01)==0;
+      default: return (f&0x01)!=0;
+    }
+  }
+
+  // Same flags as Z80.INC and Z80.DEC
+  private static int inc (int a, int x) {
+    int val=x+1;
+    int f=(a&0x29)|((1^x^0x80)&(1^val)&0x80)>>5|((x^1^val)&0x10);
+    x=val&0xFF;
+    return (a&0xFF00)|f|(x&0x80)|(x==0?0x40:0);
+  }
+
+  private static int dec (int a, int x) {
+    int val=x-1;
+    int f=(a&0x29)|((1^x)&(x^val)&0x80)>>5|((x^1^val)&0x10)|2;
+    x=val&0xFF;
+    return (a&0xFF00)|f|(x&0x80)|(x==0?0x40:0);
+  }
+
+  // Same results as the Z80 ALU helpers, returning the new AF
+  private static int alu (int kind, int af, int v) {
+    int acu=af>>8,sum,cbits;
+    switch (kind) {
+      case 0:
+      case 1:
+        sum=acu+v+(kind==1?af&1:0);
+        cbits=acu^v^sum;
+        return ((sum&0xff)<<8)|(sum&0xa8)|(((sum&0xff)==0?1:0)<<6)
+          |(cbits&0x10)|(((cbits>>6)^(cbits>>5))&4)|((cbits>>8)&1);
+      case 2:
+      case 3:
+        sum=acu-v-(kind==3?af&1:0);
+        cbits=acu^v^sum;
+        return ((sum&0xff)<<8)|(sum&0xa8)|(((sum&0xff)==0?1:0)<<6)
+          |(cbits&0x10)|(((cbits>>6)^(cbits>>5))&4)|2|((cbits>>8)&1);
+      case 4:
+        sum=(acu&v)&0xff;
+        return (sum<<8)|(sum&0xa8)|0x10|((sum==0?1:0)<<6)|(parity(sum)<<2);
+      case 5:
+        sum=(acu^v)&0xff;
+        return (sum<<8)|(sum&0xa8)|((sum==0?1:0)<<6)|(parity(sum)<<2);
+      case 6:
+        sum=(acu|v)&0xff;
+        return (sum<<8)|(sum&0xa8)|((sum==0?1:0)<<6)|(parity(sum)<<2);
+      default:
+        sum=acu-v;
+        cbits=acu^v^sum;
+        return (af&0xff00)|(sum&0x80)|(((sum&0xff)==0?1:0)<<6)
+          |(v&0x28)|(((cbits>>6)^(cbits>>5))&4)|2|(cbits&0x10)|((cbits>>8)&1);
+    }
+  }
+
+  // 1 for even parity, the P/V flag of the logic operations
+  private static int parity (int v) {
+    return (Integer.bitCount(v)&1)^1;
+  }
+
+  // Runs one opcode for every machine of the group, false if it has no kernel
+  private boolean kernel (int op, int[] g, int size) {
+    int base=CYCLES[op];
+    if (base==0)
+      return false;
+
+    if (op>=0x40 && op<0x80 && (op&7)!=6 && (op&0x38)!=0x30) {
+      int[] from=pair(op&7),to=pair((op>>3)&7);
+      int shift=shift(op&7),toShift=shift((op>>3)&7),keep=0xFF00>>toShift;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        to[i]=(to[i]&keep)|(((from[i]>>shift)&0xFF)<<toShift);
+      }
+    } else if (op>=0x40 && op<0x80) {
+      int dst=(op>>3)&7,src=op&7;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        set8(dst,i,get8(src,i));
+      }
+    } else if (op>=0x80 && op<0xC0 && (op&7)!=6) {
+      int kind=(op>>3)&7;
+      int[] from=pair(op&7);
+      int shift=shift(op&7);
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        af[i]=alu(kind,af[i],(from[i]>>shift)&0xFF);
+      }
+    } else if (op>=0x80 && op<0xC0) {
+      int kind=(op>>3)&7,src=op&7;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        af[i]=alu(kind,af[i],get8(src,i));
+      }
+    } else if ((op&0xC7)==0xC6) {
+      int kind=(op>>3)&7;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        af[i]=alu(kind,af[i],mem[i].readByte(pc[i]+1));
+        pc[i]+=2;
+      }
+    } else if ((op&0xC7)==0x06 && op!=0x36) {
+      int[] to=pair((op>>3)&7);
+      int shift=shift((op>>3)&7),keep=0xFF00>>shift;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        to[i]=(to[i]&keep)|(mem[i].readByte(pc[i]+1)<<shift);
+        pc[i]+=2;
+      }
+    } else if ((op&0xC7)==0x04 && op!=0x34) {
+      int[] reg=pair((op>>3)&7);
+      int shift=shift((op>>3)&7),keep=0xFF00>>shift;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        int x=(reg[i]>>shift)&0xFF;
+        af[i]=inc(af[i],x);
+        reg[i]=(reg[i]&keep)|(((x+1)&0xFF)<<shift);
+      }
+    } else if ((op&0xC7)==0x05 && op!=0x35) {
+      int[] reg=pair((op>>3)&7);
+      int shift=shift((op>>3)&7),keep=0xFF00>>shift;
+      for (int k=0; k<size; k++) {
+        int i=g[k];
+        pc[i]++;
+        int x=(reg[i]>>shift)&0xFF;
+        af[i]=dec(af[i],x);
+        reg[i]=(reg[i]&keep)|(((x-1)&0xFF)<<shift);
+      }
+    } else
+      switch (op) {
+        case 0x00:
+          for (int k=0; k<size; k++)
+            pc[g[k]]++;
+          break;
+        case 0x01:
+        case 0x11:
+        case 0x21:
+        case 0x31:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            int v=readWord(i,pc[i]+1);
+            if (op==0x01) bc[i]=v;
+            else if (op==0x11) de[i]=v;
+            else if (op==0x21) hl[i]=v;
+            else sp[i]=v;
+            pc[i]+=3;
+          }
+          break;
+        case 0x03: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; bc[i]=(bc[i]+1)&0xFFFF; } break;
+        case 0x13: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; de[i]=(de[i]+1)&0xFFFF; } break;
+        case 0x23: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; hl[i]=(hl[i]+1)&0xFFFF; } break;
+        case 0x33: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; sp[i]=(sp[i]+1)&0xFFFF; } break;
+        case 0x0B: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; bc[i]=(bc[i]-1)&0xFFFF; } break;
+        case 0x1B: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; de[i]=(de[i]-1)&0xFFFF; } break;
+        case 0x2B: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; hl[i]=(hl[i]-1)&0xFFFF; } break;
+        case 0x3B: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; sp[i]=(sp[i]-1)&0xFFFF; } break;
+        case 0x02: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; mem[i].writeByte(bc[i],af[i]>>8); } break;
+        case 0x12: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; mem[i].writeByte(de[i],af[i]>>8); } break;
+        case 0x0A: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; set8(7,i,mem[i].readByte(bc[i])); } break;
+        case 0x1A: for (int k=0; k<size; k++) { int i=g[k]; pc[i]++; set8(7,i,mem[i].readByte(de[i])); } break;
+        case 0x22:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            writeWord(i,readWord(i,pc[i]+1),hl[i]);
+            pc[i]+=3;
+          }
+          break;
+        case 0x2A:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            hl[i]=readWord(i,readWord(i,pc[i]+1));
+            pc[i]+=3;
+          }
+          break;
+        case 0x32:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            mem[i].writeByte(readWord(i,pc[i]+1),af[i]>>8);
+            pc[i]+=3;
+          }
+          break;
+        case 0x3A:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            set8(7,i,mem[i].readByte(readWord(i,pc[i]+1)));
+            pc[i]+=3;
+          }
+          break;
+        case 0x10:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            bc[i]=(bc[i]&0xFF)|((((bc[i]>>8)-1)&0xFF)<<8);
+            if ((bc[i]>>8)!=0) {
+              cycles[i]-=3;
+              pc[i]+=1+(byte)mem[i].readByte(pc[i]);
+            } else
+              pc[i]++;
+          }
+          break;
+        case 0x18:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            pc[i]+=1+(byte)mem[i].readByte(pc[i]);
+          }
+          break;
+        case 0x20:
+        case 0x28:
+        case 0x30:
+        case 0x38:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            if (condition((op>>3)&3,af[i])) {
+              cycles[i]-=5;
+              pc[i]+=1+(byte)mem[i].readByte(pc[i]);
+            } else
+              pc[i]++;
+          }
+          break;
+        case 0xC3:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]=readWord(i,pc[i]+1);
+          }
+          break;
+        case 0xC2:
+        case 0xCA:
+        case 0xD2:
+        case 0xDA:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            if (condition((op>>3)&3,af[i]))
+              pc[i]=readWord(i,pc[i]+1);
+            else
+              pc[i]+=3;
+          }
+          break;
+        case 0xCD:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            call(i);
+          }
+          break;
+        case 0xC4:
+        case 0xCC:
+        case 0xD4:
+        case 0xDC:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            if (condition((op>>3)&3,af[i])) {
+              cycles[i]-=7;
+              call(i);
+            } else
+              pc[i]+=2;
+          }
+          break;
+        case 0xC9:
+          for (int k=0; k<size; k++)
+            ret(g[k]);
+          break;
+        case 0xC0:
+        case 0xC8:
+        case 0xD0:
+        case 0xD8:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            if (condition((op>>3)&3,af[i])) {
+              // Z80 only adds the extra cycles for RET NZ and RET Z
+              if (op<0xD0)
+                cycles[i]-=6;
+              ret(i);
+            } else
+              pc[i]++;
+          }
+          break;
+        case 0xC5: case 0xD5: case 0xE5: case 0xF5:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            int v=op==0xC5?bc[i]:op==0xD5?de[i]:op==0xE5?hl[i]:af[i];
+            sp[i]=(sp[i]-2)&0xFFFF;
+            writeWord(i,sp[i],v&0xFFFF);
+          }
+          break;
+        case 0xC1: case 0xD1: case 0xE1: case 0xF1:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            int v=readWord(i,sp[i])&0xFFFF;
+            sp[i]=(sp[i]+2)&0xFFFF;
+            if (op==0xC1) bc[i]=v;
+            else if (op==0xD1) de[i]=v;
+            else if (op==0xE1) hl[i]=v;
+            else af[i]=v;
+          }
+          break;
+        case 0xEB:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            pc[i]++;
+            int t=de[i];
+            de[i]=hl[i];
+            hl[i]=t;
+          }
+          break;
+        case 0xD3:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            int a=af[i]>>8;
+            ports[i].out((a<<8)|mem[i].readByte(pc[i]+1),a,cpus[i].clockAt(cycles[i]));
+            pc[i]+=2;
+          }
+          break;
+        case 0xDB:
+          for (int k=0; k<size; k++) {
+            int i=g[k];
+            int a=af[i]>>8;
+            set8(7,i,ports[i].in((a<<8)|mem[i].readByte(pc[i]+1),cpus[i].clockAt(cycles[i])));
+            pc[i]+=2;
+          }
+          break;
+      }
+
+    for (int k=0; k<size; k++) {
+      int i=g[k];
+      pc[i]&=0xFFFF;
+      r[i]=(r[i]&0x80)|((r[i]+1)&0x7F);
+      cycles[i]-=base;
+    }
+    return true;
+  }
+
+  private void call (int i) {
+    sp[i]=(sp[i]-2)&0xFFFF;
+    writeWord(i,sp[i],pc[i]+2);
+    pc[i]=readWord(i,pc[i]);
+  }
+
+  private void ret (int i) {
+    pc[i]=readWord(i,sp[i]);
+    sp[i]=(sp[i]+2)&0xFFFF;
+  }
+
+  // Cycles of the opcodes with a kernel, from Z80.cycles_main_opcode; 0
+  // for the ones left to the machine's own Z80
+  static final int[] CYCLES=new int[256];
+
+  static {
+    int[] plain={
+      0x00,0x01,0x02,0x03,0x04,0x05,0x06,0x0A,0x0B,0x0C,0x0D,0x0E,
+      0x10,0x11,0x12,0x13,0x14,0x15,0x16,0x18,0x1A,0x1B,0x1C,0x1D,0x1E,
+      0x20,0x21,0x22,0x23,0x24,0x25,0x26,0x28,0x2A,0x2B,0x2C,0x2D,0x2E,
+      0x30,0x31,0x32,0x33,0x38,0x3A,0x3B,0x3C,0x3D,0x3E,
+      0xC0,0xC1,0xC2,0xC3,0xC4,0xC5,0xC6,0xC8,0xC9,0xCA,0xCC,0xCD,0xCE,
+      0xD0,0xD1,0xD2,0xD3,0xD4,0xD5,0xD6,0xD8,0xDA,0xDB,0xDC,0xDE,
+      0xE1,0xE5,0xE6,0xEB,0xEE,0xF1,0xF5,0xF6,0xFE
+    };
+    for (int i=0; i<plain.length; i++)
+      CYCLES[plain[i]]=Z80.cycles_main_opcode[plain[i]];
+    for (int op=0x40; op<0xC0; op++)
+      if (op!=0x76)
+        CYCLES[op]=Z80.cycles_main_opcode[op];
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    int count=256,frames=600;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-machines") && i+1<argv.length)
+        count=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+    }
+    if (rom==null) {
+      System.out.println ("usage: java BatchZ80 -rom mc1000.rom [-machines n] [-frames n]");
+      System.exit(1);
+    }
+
+    // The same sweep twice, a different key held on each machine: one set
+    // run a machine at a time, the other as a batch, after a warm-up
+    MC1000machine[] single=sweep(rom,count);
+    MC1000machine[] lockstep=sweep(rom,count);
+    BatchZ80 batch=new BatchZ80(lockstep);
+    long singleTime=0,batchTime=0;
+    for (int f=-WARMUP_FRAMES; f<frames; f++) {
+      long time=System.nanoTime();
+      for (int i=0; i<count; i++)
+        single[i].runFrame();
+      long t=System.nanoTime();
+      batch.runFrame();
+      if (f>=0) {
+        singleTime+=t-time;
+        batchTime+=System.nanoTime()-t;
+      }
+    }
+
+    int same=0;
+    for (int i=0; i<count; i++)
+      if (single[i].stateHash()==lockstep[i].stateHash())
+        same++;
+    long total=batch.batched+batch.single+batch.fallback;
+    System.out.println (count+" machines, "+frames+" frames: one at a time "+singleTime/1000000
+      +" ms, lockstep "+batchTime/1000000+" ms, "+same+" of "+count+" states identical");
+    System.out.println ("instructions "+total+": "+100*batch.batched/Math.max(total,1)+"% in groups, "
+      +100*batch.single/Math.max(total,1)+"% alone, "+100*batch.fallback/Math.max(total,1)+"% on the machine's Z80");
+  }
+
+  private static MC1000machine[] sweep (String rom, int count) throws Exception {
+    MC1000machine[] m=new MC1000machine[count];
+    for (int i=0; i<count; i++) {
+      m[i]=new MC1000machine(false);
+      m[i].memory.loadROM(rom);
+      m[i].psg.getKeyboard().post(Keyboard.keyEvent(i&7,(i>>3)%6,true));
+    }
+    return m;
+  }
+}
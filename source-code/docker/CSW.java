@@ -2,46 +2,46 @@ import java.applet.Applet;
 import java.io.*;
 import java.util.*;
 import java.util.zip.*;
-import java.math.*;
 import java.net.*;
 
-class CSWError extends Exception {
-  CSWError (String s) {
-    super ("CSWError: "+s);
-  }
-}
-
 public class CSW {
   int sampleRate;
   boolean[] data;
+  int[] pulses;
+  long checksum;
   MC1000machine machine;
   
   CSW(MC1000machine m) {
     machine=m;
     data=null;
+    pulses=null;
+    checksum=-1;
+  }
+
+  // Headless tape, not attached to any machine (used by the tape tools)
+  CSW() {
+    this(null);
   }
 
-  public boolean returnSample (BigInteger time, int clock) {
+  public boolean returnSample (long time, int clock) {
     if (data==null)
       return true;	
   	
-    if (time.compareTo(BigInteger.ZERO) < 0)
+    if (time < 0)
       return true;
 
-    BigInteger t=time.multiply(BigInteger.valueOf(sampleRate)).divide(BigInteger.valueOf(clock));
-    if (t.compareTo(BigInteger.valueOf(data.length)) >= 0)
+    long t=time*sampleRate/clock;
+    if (t >= data.length)
       return true;
 
-    return data[t.intValue()];
+    return data[(int)t];
   }
   
-  public BigInteger getLength(int clock) {
+  public long getLength(int clock) {
     if (data==null)
-      return BigInteger.ZERO;	
+      return 0;	
   	
-    return BigInteger.valueOf(data.length).
-    	     multiply(BigInteger.valueOf(clock)).
-    	     divide(BigInteger.valueOf(sampleRate));
+    return (long)data.length*clock/sampleRate;
   }
 
   public void readFromURL (Applet applet, String name) throws CSWError,IOException {
@@ -55,8 +55,15 @@ public class CSW {
   }
 
   public void readFromFile (String name) throws FileNotFoundException,CSWError,IOException {
-    DataInput in=new DataInputStream (new FileInputStream (name));
-    readFromStream (in);
+    DataInputStream in=new DataInputStream (new BufferedInputStream (new FileInputStream (name)));
+    try {
+      if (name.toLowerCase().endsWith(".wav"))
+        readFromWav (in);
+      else
+        readFromStream (in);
+    } finally {
+      in.close();
+    }
   }
 
   public void readFromStream (DataInput in) throws CSWError,IOException {
@@ -106,17 +113,9 @@ public class CSW {
         in.readByte();
   
     // read
-    ArrayList compressedData=new ArrayList();
-    try {
-      while (true) {
-        compressedData.add(new Byte(in.readByte()));
-      }
-    } catch (EOFException e) {}
+    byte[] compressedArray=readToEnd(in);
 
     // Inflate
-    byte[] compressedArray= new byte[compressedData.size()];
-    for (int i=0; i<compressedData.size(); i++)
-      compressedArray[i]=((Byte)(compressedData.get(i))).byteValue();
     Inflater decompresser = new Inflater();
     decompresser.setInput(compressedArray);
     byte[] rleData=new byte[size];
@@ -127,7 +126,7 @@ public class CSW {
     }
 
     // Traverse and find length of unencoded data
-    int finalSize=0;
+    int finalSize=0,pulseCount=0;
     for (int i=0; i<rleData.length;) {
       if (rleData[i]!=0) 
   	finalSize+=unsignedByte(rleData[i++]);
@@ -138,29 +137,110 @@ public class CSW {
       	  max|=(0xFF&rleData[i++])<<(j*8);
 	finalSize+=max;
       }
+      pulseCount++;
     }
 
-    // undo RLE
+    // undo RLE, keeping the pulse lengths for the tape decoder
     boolean state=false;
     data=new boolean[finalSize];
-    int current=0;
+    pulses=new int[pulseCount];
+    checksum=-1;
+    int current=0,pulse=0;
     for (int i=0; i<rleData.length;) {
+      int max;
       if (rleData[i]!=0) {
-	for (int j=0; j<unsignedByte(rleData[i]); j++)
-	  data[current++]=state;
+	max=unsignedByte(rleData[i]);
 	i++;
       } else {
-	int max=0;
+	max=0;
 	i++;
     	for (int j=0; j<4; j++) 
       	  max|=(0xFF&rleData[i++])<<(j*8);
-    	for (int j=0; j<max; j++) 
-	  data[current++]=state;
       }
+      Arrays.fill(data,current,current+max,state);
+      current+=max;
+      pulses[pulse++]=max;
       state=!state;
     }
   }
 
+  public void readFromWav (DataInput in) throws CSWError,IOException {
+    byte[] riff=readToEnd(in);
+    if (riff.length<12 || !new String(riff,0,4,"ISO-8859-1").equals("RIFF") 
+        || !new String(riff,8,4,"ISO-8859-1").equals("WAVE"))
+      throw new CSWError("Not a WAV file");
+
+    // Walk the chunks looking for the format and the samples
+    int channels=0,bits=0,start=-1,length=0;
+    for (int i=12; i+8<=riff.length;) {
+      String id=new String(riff,i,4,"ISO-8859-1");
+      int size=littleEndian(riff,i+4,4);
+      // A cut-off data chunk is read as far as it goes
+      if (size<0 || (size>riff.length-i-8 && !id.equals("data")))
+        throw new CSWError("Bad WAV chunk size");
+      if (id.equals("fmt ")) {
+        if (size<16)
+          throw new CSWError("Bad WAV format chunk");
+        if (littleEndian(riff,i+8,2)!=1)
+          throw new CSWError("Only PCM WAV files are supported");
+        channels=littleEndian(riff,i+10,2);
+        sampleRate=littleEndian(riff,i+12,4);
+        bits=littleEndian(riff,i+22,2);
+      } else if (id.equals("data")) {
+        start=i+8;
+        length=Math.min(size,riff.length-start);
+        break;
+      }
+      i+=8+size+(size&1);
+    }
+    if (start<0 || channels==0 || (bits!=8 && bits!=16))
+      throw new CSWError("Unsupported WAV format");
+
+    // Slice at the zero crossing of the first channel
+    int frame=channels*bits/8;
+    int samples=length/frame;
+    data=new boolean[samples];
+    int pulseCount=0;
+    for (int i=0; i<samples; i++) {
+      int p=start+i*frame;
+      data[i]=bits==8?(riff[p]&0xFF)>=0x80:(short)littleEndian(riff,p,2)>=0;
+      if (i==0 || data[i]!=data[i-1])
+        pulseCount++;
+    }
+
+    pulses=new int[pulseCount];
+    checksum=-1;
+    int pulse=-1;
+    for (int i=0; i<samples; i++) {
+      if (i==0 || data[i]!=data[i-1])
+        pulse++;
+      pulses[pulse]++;
+    }
+  }
+
+  // Computed once per tape, save states and movies ask for it often
+  public long getChecksum() {
+    if (checksum<0) {
+      CRC32 crc=new CRC32();
+      if (pulses!=null)
+        for (int i=0; i<pulses.length; i++) {
+          crc.update(pulses[i]);
+          crc.update(pulses[i]>>8);
+        }
+      checksum=crc.getValue();
+    }
+    return checksum;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  // Half-wave lengths in samples, alternating levels
+  public int[] getPulses() {
+    return pulses;
+  }
+
   public void writeRawWave (String name) throws Exception {
     DataOutputStream out=new DataOutputStream (new FileOutputStream (name));
     for (int i=0; i<data.length; i++)
@@ -171,7 +251,30 @@ public class CSW {
     out.close();
   }
 
+  private static byte[] readToEnd (DataInput in) throws IOException {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    if (in instanceof InputStream) {
+      byte[] buffer=new byte[8192];
+      int n;
+      while ((n=((InputStream)in).read(buffer))>0)
+        out.write(buffer,0,n);
+    } else {
+      try {
+        while (true)
+          out.write(in.readByte());
+      } catch (EOFException e) {}
+    }
+    return out.toByteArray();
+  }
+
+  private static int littleEndian (byte[] b, int pos, int size) {
+    int ret=0;
+    for (int i=0; i<size; i++)
+      ret|=(b[pos+i]&0xFF)<<(i*8);
+    return ret;
+  }
+
   private int unsignedByte (byte b) {
-    return b<0?0x100-(int)b:b;
+    return b&0xFF;
   }
 }
\ No newline at end of file
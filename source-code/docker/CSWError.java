@@ -0,0 +1,5 @@
+class CSWError extends Exception {
+  CSWError (String s) {
+    super ("CSWError: "+s);
+  }
+}
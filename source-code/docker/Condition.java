@@ -0,0 +1,4 @@
+public interface Condition
+{
+ public boolean test(Debugger d);
+}
@@ -0,0 +1,357 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.zip.*;
+
+// Micro benchmarks of the emulator core, with checked-in baselines.
+//
+// usage: java CoreBench [-rom mc1000.rom] [-csw tape.csw] [-only prefix]
+//                       [-warmup ms] [-time ms] [-iterations n] [-nofork]
+//                       [-baseline file] [-save file] [-tolerance percent]
+//
+// Each case runs one operation over and over: a frame of the Z80 on an ALU
+// loop in RAM or on the ROM BASIC idle loop, a sweep of MC1000memory reads
+// or writes, one MC6847 draw, one tape load or a run of tape samples.
+// Every case gets a JVM of its own unless -nofork is given.  It is warmed
+// up for -warmup ms, long enough for the JIT to finish with the Z80, then
+// timed for -iterations of -time ms each.  The best iteration is reported,
+// as the one least disturbed by the rest of the host.  The Z80
+// cases report emulated MHz and frames per second; slice.alloc reports the
+// bytes the heap gives out for one 59600 cycle frame of the machine on the
+// ALU loop, from the thread's allocation counter, where lower is better.
+//
+// With -baseline the results are compared to a file written by -save, and
+// a case more than -tolerance percent worse is reported as a regression,
+// with exit code 2.  The BASIC case needs -rom; the tape cases read -csw
+// or a synthetic tape.
+public class CoreBench {
+  static final int CYCLES=MC1000machine.CYCLES_PER_FRAME;
+
+  // LD HL,2000h; LD B,0; then ALU work on (HL) in a DJNZ loop, forever
+  static final int[] ALU_LOOP={
+    0x21,0x00,0x20, 0x06,0x00,
+    0x7E, 0x80, 0xA9, 0x07, 0x77, 0x23, 0x8A, 0x9B, 0xE6,0x7F, 0xB5, 0xBC, 0xF5, 0xD1, 0x10,0xF0,
+    0xC3,0x00,0x01
+  };
+  static final int TAPE_SECONDS=60;
+
+  abstract static class Case {
+    String name,unit;
+    // Units of the result for one operation
+    double scale;
+    boolean lowerIsBetter;
+
+    Case(String name, String unit, double scale) {
+      this.name=name;
+      this.unit=unit;
+      this.scale=scale;
+    }
+
+    abstract void run() throws Exception;
+
+    // Operations per second, or per operation when lower is better
+    double measure (long nanos) throws Exception {
+      long n=0,start=System.nanoTime(),t;
+      do {
+        run();
+        n++;
+        t=System.nanoTime()-start;
+      } while (t<nanos);
+      return n*1e9/t;
+    }
+  }
+
+  static MC1000machine aluMachine() {
+    MC1000machine m=new MC1000machine(true);
+    for (int i=0; i<ALU_LOOP.length; i++)
+      m.memory.writeByte(0x100+i,ALU_LOOP[i]);
+    int[] r=new int[Z80.REG_COUNT];
+    m.z80core.getRegisters(r);
+    r[Z80.REG_PC]=0x100;
+    r[Z80.REG_SP]=0x3000;
+    r[Z80.REG_IFF1]=r[Z80.REG_IFF2]=0;
+    m.z80core.setRegisters(r);
+    return m;
+  }
+
+  static MC1000machine basicMachine (String rom) throws IOException {
+    MC1000machine m=new MC1000machine(false);
+    m.memory.loadROM(rom);
+    // Up to the prompt
+    for (int i=0; i<300; i++)
+      m.runFrame();
+    return m;
+  }
+
+  // A CSW v2 file of random bits as 1200 or 2400 Hz cycles at 44100 Hz
+  static byte[] syntheticTape() throws IOException {
+    ByteArrayOutputStream rle=new ByteArrayOutputStream();
+    Random random=new Random(1000);
+    for (int i=0; i<TAPE_SECONDS*1800; i++) {
+      int pulse=random.nextBoolean()?18:9;
+      rle.write(pulse);
+      rle.write(pulse);
+    }
+    byte[] raw=rle.toByteArray();
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    out.write("Compressed Square Wave".getBytes("US-ASCII"));
+    out.write(new byte[]{0x1A,2,0});
+    writeInt(out,44100);
+    writeInt(out,raw.length);
+    out.write(new byte[]{0,0});
+    out.write(new byte[16]);
+    DeflaterOutputStream z=new DeflaterOutputStream(out);
+    z.write(raw);
+    z.finish();
+    return out.toByteArray();
+  }
+
+  private static void writeInt (OutputStream out, int v) throws IOException {
+    for (int i=0; i<4; i++)
+      out.write(v>>(8*i));
+  }
+
+  static byte[] readFile (String name) throws IOException {
+    DataInputStream in=new DataInputStream(new FileInputStream(name));
+    try {
+      byte[] b=new byte[(int)new File(name).length()];
+      in.readFully(b);
+      return b;
+    } finally {
+      in.close();
+    }
+  }
+
+  static List<Case> cases (String rom, final byte[] tape) throws Exception {
+    List<Case> list=new ArrayList<Case>();
+
+    final MC1000machine alu=aluMachine();
+    list.add(new Case("z80.alu","MHz",CYCLES/1e6) {
+      void run() {
+        alu.z80core.run(CYCLES);
+      }
+    });
+
+    if (rom!=null) {
+      final MC1000machine basic=basicMachine(rom);
+      list.add(new Case("z80.basic","MHz",CYCLES/1e6) {
+        void run() {
+          basic.runFrame();
+        }
+      });
+    }
+
+    // Bytes allocated for one whole frame of the machine, on the thread's
+    // own counter
+    final MC1000machine slice=alu.fork();
+    final com.sun.management.ThreadMXBean threads=
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    Case alloc=new Case("slice.alloc","bytes/frame",1) {
+      void run() {
+        slice.runFrame();
+      }
+      double measure (long nanos) {
+        long id=Thread.currentThread().getId();
+        long n=0,start=System.nanoTime(),bytes=threads.getThreadAllocatedBytes(id);
+        do {
+          run();
+          n++;
+        } while (System.nanoTime()-start<nanos);
+        return (double)(threads.getThreadAllocatedBytes(id)-bytes)/n;
+      }
+    };
+    alloc.lowerIsBetter=true;
+    list.add(alloc);
+
+    final MC1000memory memory=alu.memory;
+    list.add(new Case("memory.read","Mreads/s",0x10000/1e6) {
+      int sink;
+      void run() {
+        int s=0;
+        for (int a=0; a<0x10000; a++)
+          s+=memory.readByte(a);
+        sink+=s;
+      }
+    });
+    list.add(new Case("memory.write","Mwrites/s",0x4000/1e6) {
+      void run() {
+        for (int a=0x4000; a<0x8000; a++)
+          memory.writeByte(a,a);
+      }
+    });
+
+    final MC6847 vdp=alu.vdp;
+    Random random=new Random(6847);
+    for (int i=0; i<0x1800; i++)
+      vdp.getVRAM().write(i,random.nextInt(256));
+    list.add(new Case("mc6847.text","frames/s",1) {
+      void run() {
+        vdp.drawText();
+      }
+    });
+    list.add(new Case("mc6847.gr","frames/s",1) {
+      void run() {
+        vdp.drawGR();
+      }
+    });
+    list.add(new Case("mc6847.hgr","frames/s",1) {
+      void run() {
+        vdp.drawHGR();
+      }
+    });
+
+    final CSW csw=new CSW();
+    list.add(new Case("csw.load","loads/s",1) {
+      void run() throws Exception {
+        csw.readFromStream(new DataInputStream(new ByteArrayInputStream(tape)));
+      }
+    });
+    csw.readFromStream(new DataInputStream(new ByteArrayInputStream(tape)));
+    // One second of tape at the CPU clock, a sample every 64 cycles
+    final int clock=CYCLES*60;
+    list.add(new Case("csw.sample","Msamples/s",clock/64/1e6) {
+      int sink;
+      void run() {
+        for (int t=0; t<clock; t+=64)
+          if (csw.returnSample(t,clock))
+            sink++;
+      }
+    });
+    return list;
+  }
+
+  static double best (double[] v, boolean lowest) {
+    double b=v[0];
+    for (int i=1; i<v.length; i++)
+      b=lowest?Math.min(b,v[i]):Math.max(b,v[i]);
+    return b;
+  }
+
+  // The case's result, in its own units
+  static double result (Case c, int warmup, int time, int iterations) throws Exception {
+    c.measure(warmup*1000000L);
+    double[] runs=new double[iterations];
+    for (int i=0; i<iterations; i++)
+      runs[i]=c.measure(time*1000000L);
+    return best(runs,c.lowerIsBetter)*(c.lowerIsBetter?1:c.scale);
+  }
+
+  // Runs one case in a JVM of its own with the same arguments, so that no
+  // case runs on code the JIT compiled for another
+  static double fork (String[] argv, String name) throws Exception {
+    List<String> command=new ArrayList<String>();
+    command.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("CoreBench");
+    command.addAll(Arrays.asList(argv));
+    command.add("-case");
+    command.add(name);
+    Process child=new ProcessBuilder(command).redirectErrorStream(true).start();
+    BufferedReader in=new BufferedReader(new InputStreamReader(child.getInputStream()));
+    String line,last=null;
+    while ((line=in.readLine())!=null)
+      last=line;
+    if (child.waitFor()!=0 || last==null)
+      throw new IOException(name+": forked run failed: "+last);
+    return Double.parseDouble(last);
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,cswFile=null,only=null,baselineFile=null,saveFile=null,single=null;
+    int time=1000,iterations=5,warmup=3000;
+    double tolerance=15;
+    boolean fork=true;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-csw") && i+1<argv.length)
+        cswFile=argv[++i];
+      else if (argv[i].equals("-only") && i+1<argv.length)
+        only=argv[++i];
+      else if (argv[i].equals("-time") && i+1<argv.length)
+        time=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-iterations") && i+1<argv.length)
+        iterations=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-warmup") && i+1<argv.length)
+        warmup=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-baseline") && i+1<argv.length)
+        baselineFile=argv[++i];
+      else if (argv[i].equals("-save") && i+1<argv.length)
+        saveFile=argv[++i];
+      else if (argv[i].equals("-tolerance") && i+1<argv.length)
+        tolerance=Double.parseDouble(argv[++i]);
+      else if (argv[i].equals("-nofork"))
+        fork=false;
+      else if (argv[i].equals("-case") && i+1<argv.length)
+        single=argv[++i];
+      else {
+        System.out.println ("usage: java CoreBench [-rom mc1000.rom] [-csw tape.csw] [-only prefix]");
+        System.out.println ("                      [-warmup ms] [-time ms] [-iterations n] [-nofork]");
+        System.out.println ("                      [-baseline file] [-save file] [-tolerance percent]");
+        System.exit(1);
+      }
+    }
+
+    Properties baseline=new Properties();
+    if (baselineFile!=null) {
+      InputStream in=new FileInputStream(baselineFile);
+      try {
+        baseline.load(in);
+      } finally {
+        in.close();
+      }
+    }
+
+    byte[] tape=cswFile!=null?readFile(cswFile):syntheticTape();
+    List<Case> cases=cases(rom,tape);
+    if (single!=null) {
+      // A forked child: the bare result for the parent to read
+      for (Case c : cases)
+        if (c.name.equals(single)) {
+          System.out.println (result(c,warmup,time,iterations));
+          return;
+        }
+      throw new IllegalArgumentException("no case "+single);
+    }
+
+    TreeMap<String,String> results=new TreeMap<String,String>();
+    int regressions=0;
+    for (Case c : cases) {
+      if (only!=null && !c.name.startsWith(only))
+        continue;
+      double result=fork?fork(argv,c.name):result(c,warmup,time,iterations);
+      results.put(c.name,String.format(Locale.ROOT,"%.2f",result));
+
+      String line=String.format(Locale.ROOT,"%-18s %12.2f %s",c.name,result,c.unit);
+      if (c.unit.equals("MHz"))
+        line+=String.format(Locale.ROOT," (%.1f frames/s)",result*1e6/CYCLES);
+      String base=baseline.getProperty(c.name);
+      if (base!=null) {
+        double b=Double.parseDouble(base);
+        double change=(result-b)/b*100;
+        double worse=c.lowerIsBetter?change:-change;
+        line+=String.format(Locale.ROOT,"  baseline %.2f, %+.1f%%",b,change);
+        if (worse>tolerance) {
+          line+="  REGRESSION";
+          regressions++;
+        }
+      }
+      System.out.println (line);
+    }
+
+    if (saveFile!=null) {
+      PrintWriter out=new PrintWriter(new FileWriter(saveFile));
+      out.println ("# CoreBench results, "+System.getProperty("java.vm.name")+" "
+        +System.getProperty("java.version")+", "+Runtime.getRuntime().availableProcessors()+" cpu");
+      for (Map.Entry<String,String> e : results.entrySet())
+        out.println (e.getKey()+"="+e.getValue());
+      out.close();
+    }
+    if (regressions>0) {
+      System.out.println (regressions+" regressions over "+tolerance+"%");
+      System.exit(2);
+    }
+  }
+}
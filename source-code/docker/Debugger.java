@@ -0,0 +1,498 @@
+import java.util.*;
+
+// Breakpoints and watchpoints, paid for only while some are armed.
+//
+// usage: java Debugger -rom mc1000.rom [-48] [-frames n] [-stops n]
+//                      [-break addr[,condition]]... [-read addr[,condition]]...
+//                      [-write addr[,condition]]... [-in port]... [-out port]...
+//
+// Z80.run and MC1000memory are not touched.  Arming the first breakpoint
+// hangs the debugger on the machine, and MC1000machine.runFrame then runs
+// the frame through the loop here, which looks up the PC before every
+// step.  Memory and port watchpoints put the debugger in front of the
+// memory or the ports as well, only while one of their kind is armed.
+// Once everything is disarmed the slice finishes on Z80.run and the
+// machine goes back to its own loop.
+//
+// A stop leaves the rest of the slice open: runFrame returns early and the
+// next call carries on from the instruction that stopped, so a stop is
+// never a lost frame.  Breakpoints stop before their instruction runs;
+// watchpoints stop after the instruction that made the access, and reads
+// include instruction fetches.  Arming and disarming work at any time on
+// the thread that runs the machine, also from a trap or a port handler in
+// the middle of a slice.
+//
+// Conditions are compiled once into small Condition objects from
+// expressions like "A==0x0D && (HL)!=0", with the registers, (addr) and
+// (HL)-style memory bytes, VALUE for the byte being accessed, numbers in
+// decimal or 0x/$/H hex, the comparisons == != < <= > >=, && || ! and
+// square brackets for grouping, as parentheses read memory.
+public class Debugger implements Memory, Ports {
+  public static final int NONE=0,BREAKPOINT=1,READ=2,WRITE=3,PORT_IN=4,PORT_OUT=5;
+  static final String[] REASONS={"none","breakpoint","read","write","port in","port out"};
+
+  public static final Condition ALWAYS=new Condition() {
+    public boolean test (Debugger d) {
+      return true;
+    }
+  };
+
+  MC1000machine machine;
+  Z80 cpu;
+  Memory memory;
+  Ports ports;
+
+  Condition[] breakpoints,reads,writes,portIns,portOuts;
+  int armedBreakpoints,armedMemory,armedPorts;
+  boolean open,pending,resuming;
+  int stolen;
+  int reason,address,value,resumePc;
+  long stops;
+
+  Debugger(MC1000machine m) {
+    machine=m;
+    cpu=m.z80core;
+    memory=m.memory;
+    ports=m.ports;
+    breakpoints=new Condition[0x10000];
+    reads=new Condition[0x10000];
+    writes=new Condition[0x10000];
+    portIns=new Condition[0x100];
+    portOuts=new Condition[0x100];
+  }
+
+  public void setBreakpoint (int addr, Condition c) {
+    armedBreakpoints+=arm(breakpoints,addr&0xFFFF,c);
+    update();
+  }
+
+  public void watchRead (int addr, Condition c) {
+    armedMemory+=arm(reads,addr&0xFFFF,c);
+    update();
+  }
+
+  public void watchWrite (int addr, Condition c) {
+    armedMemory+=arm(writes,addr&0xFFFF,c);
+    update();
+  }
+
+  public void watchIn (int port, Condition c) {
+    armedPorts+=arm(portIns,port&0xFF,c);
+    update();
+  }
+
+  public void watchOut (int port, Condition c) {
+    armedPorts+=arm(portOuts,port&0xFF,c);
+    update();
+  }
+
+  public void clearBreakpoint (int addr) {
+    setBreakpoint(addr,null);
+  }
+
+  public void clearAll() {
+    Arrays.fill(breakpoints,null);
+    Arrays.fill(reads,null);
+    Arrays.fill(writes,null);
+    Arrays.fill(portIns,null);
+    Arrays.fill(portOuts,null);
+    armedBreakpoints=armedMemory=armedPorts=0;
+    update();
+  }
+
+  public boolean isArmed() {
+    return armedBreakpoints+armedMemory+armedPorts>0;
+  }
+
+  // Why and where the last stop happened; value is the byte accessed
+  public int getReason() {
+    return reason;
+  }
+
+  public int getAddress() {
+    return address;
+  }
+
+  public int getValue() {
+    return value;
+  }
+
+  public Z80 getCpu() {
+    return cpu;
+  }
+
+  public long getStops() {
+    return stops;
+  }
+
+  // Change in the number of armed entries
+  private static int arm (Condition[] table, int i, Condition c) {
+    int change=(c!=null?1:0)-(table[i]!=null?1:0);
+    table[i]=c;
+    return change;
+  }
+
+  // Hangs the debugger and its decorators on the machine as needed
+  private void update() {
+    cpu.setMemory(armedMemory>0?this:memory);
+    cpu.setPorts(armedPorts>0?this:ports);
+    if (!isArmed() || machine.debugger==this)
+      return;
+    machine.debugger=this;
+    // Armed in the middle of Z80.run: it stops after this instruction and
+    // runFrame carries on here with the rest of the slice
+    if (!open && cpu.getCyclesToDo()>0) {
+      stolen=cpu.yieldSlice();
+      open=true;
+    }
+  }
+
+  // Called by MC1000machine.runFrame; false when stopped, with the rest of
+  // the frame left for the next call
+  boolean runFrame() {
+    if (stolen!=0) {
+      cpu.restoreSlice(stolen);
+      stolen=0;
+    } else if (!open) {
+      cpu.beginSlice(MC1000machine.CYCLES_PER_FRAME);
+      open=true;
+    }
+
+    if (pending) {
+      pending=false;
+      return false;
+    }
+    while (cpu.getCyclesToDo()>0) {
+      if (!isArmed()) {
+        cpu.resume();
+        break;
+      }
+      int pc=cpu.getPC();
+      Condition c=breakpoints[pc];
+      if (c!=null && !(resuming && pc==resumePc) && c.test(this)) {
+        stop(BREAKPOINT,pc,0);
+        pending=false;
+        resuming=true;
+        resumePc=pc;
+        return false;
+      }
+      resuming=false;
+      cpu.step();
+      if (pending) {
+        pending=false;
+        return false;
+      }
+    }
+
+    open=false;
+    if (!isArmed())
+      machine.debugger=null;
+    return true;
+  }
+
+  private void stop (int why, int addr, int data) {
+    reason=why;
+    address=addr;
+    value=data;
+    stops++;
+    pending=true;
+  }
+
+  public int readByte (int addr) {
+    int data=memory.readByte(addr);
+    Condition c=reads[addr&0xFFFF];
+    if (c!=null) {
+      value=data;
+      if (c.test(this))
+        stop(READ,addr,data);
+    }
+    return data;
+  }
+
+  public void writeByte (int addr, int data) {
+    Condition c=writes[addr&0xFFFF];
+    if (c!=null) {
+      value=data;
+      if (c.test(this))
+        stop(WRITE,addr,data);
+    }
+    memory.writeByte(addr,data);
+  }
+
+  public void out (int addr, int data, long clocks) {
+    Condition c=portOuts[addr&0xFF];
+    if (c!=null) {
+      value=data;
+      if (c.test(this))
+        stop(PORT_OUT,addr&0xFF,data);
+    }
+    ports.out(addr,data,clocks);
+  }
+
+  public int in (int addr, long clocks) {
+    int data=ports.in(addr,clocks);
+    Condition c=portIns[addr&0xFF];
+    if (c!=null) {
+      value=data;
+      if (c.test(this))
+        stop(PORT_IN,addr&0xFF,data);
+    }
+    return data;
+  }
+
+  public String describe() {
+    int af=cpu.getRegister(Z80.REG_AF);
+    return REASONS[reason]+" at "+Symbols.hex(address)+(reason>BREAKPOINT?" value "+hex2(value):"")
+      +"  PC="+Symbols.hex(cpu.getPC())+" AF="+Symbols.hex(af)
+      +" BC="+Symbols.hex(cpu.getRegister(Z80.REG_BC))+" DE="+Symbols.hex(cpu.getRegister(Z80.REG_DE))
+      +" HL="+Symbols.hex(cpu.getRegister(Z80.REG_HL))+" SP="+Symbols.hex(cpu.getRegister(Z80.REG_SP))
+      +" IX="+Symbols.hex(cpu.getRegister(Z80.REG_IX))+" IY="+Symbols.hex(cpu.getRegister(Z80.REG_IY))
+      +" clock "+cpu.getClocks();
+  }
+
+  private static String hex2 (int v) {
+    return Symbols.hex(v).substring(2);
+  }
+
+  // Compiles a condition; null or empty text is ALWAYS
+  public static Condition compile (String text) {
+    if (text==null || text.trim().length()==0)
+      return ALWAYS;
+    Parser p=new Parser(text);
+    Condition c=p.or();
+    if (p.pos<p.text.length())
+      throw new IllegalArgumentException("unexpected '"+p.text.substring(p.pos)+"' in condition");
+    return c;
+  }
+
+  // A number from the machine, read when the condition is tested
+  interface Operand {
+    int get(Debugger d);
+  }
+
+  static class Parser {
+    static final String[] REGISTERS={"AF","BC","DE","HL","IX","IY","SP","PC","A","F","B","C","D","E","H","L","VALUE"};
+
+    String text;
+    int pos;
+
+    Parser(String s) {
+      text=s.replaceAll("\\s+","").toUpperCase();
+    }
+
+    Condition or() {
+      final Condition left=and();
+      if (!take("||"))
+        return left;
+      final Condition right=or();
+      return new Condition() {
+        public boolean test (Debugger d) {
+          return left.test(d) || right.test(d);
+        }
+      };
+    }
+
+    Condition and() {
+      final Condition left=not();
+      if (!take("&&"))
+        return left;
+      final Condition right=and();
+      return new Condition() {
+        public boolean test (Debugger d) {
+          return left.test(d) && right.test(d);
+        }
+      };
+    }
+
+    Condition not() {
+      if (take("!")) {
+        final Condition c=not();
+        return new Condition() {
+          public boolean test (Debugger d) {
+            return !c.test(d);
+          }
+        };
+      }
+      if (text.startsWith("[",pos)) {
+        pos++;
+        Condition c=or();
+        expect("]");
+        return c;
+      }
+      return compare();
+    }
+
+    Condition compare() {
+      final Operand left=operand();
+      String[] ops={"==","!=","<=",">=","<",">"};
+      for (int i=0; i<ops.length; i++)
+        if (take(ops[i])) {
+          final Operand right=operand();
+          final int op=i;
+          return new Condition() {
+            public boolean test (Debugger d) {
+              int a=left.get(d),b=right.get(d);
+              switch (op) {
+                case 0: return a==b;
+                case 1: return a!=b;
+                case 2: return a<=b;
+                case 3: return a>=b;
+                case 4: return a<b;
+                default: return a>b;
+              }
+            }
+          };
+        }
+      // A bare operand is true when not zero
+      return new Condition() {
+        public boolean test (Debugger d) {
+          return left.get(d)!=0;
+        }
+      };
+    }
+
+    Operand operand() {
+      if (take("(")) {
+        final Operand addr=operand();
+        expect(")");
+        return new Operand() {
+          public int get (Debugger d) {
+            return d.memory.readByte(addr.get(d)&0xFFFF);
+          }
+        };
+      }
+      for (int i=0; i<REGISTERS.length; i++)
+        if (text.startsWith(REGISTERS[i],pos) && !isNumber(REGISTERS[i])) {
+          pos+=REGISTERS[i].length();
+          return register(REGISTERS[i]);
+        }
+      int start=pos;
+      while (pos<text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos)=='$'))
+        pos++;
+      String n=text.substring(start,pos);
+      if (n.length()==0)
+        throw new IllegalArgumentException("operand expected at '"+text.substring(start)+"'");
+      final int v;
+      if (n.startsWith("0X"))
+        v=Integer.parseInt(n.substring(2),16);
+      else if (n.startsWith("$"))
+        v=Integer.parseInt(n.substring(1),16);
+      else if (n.endsWith("H"))
+        v=Integer.parseInt(n.substring(0,n.length()-1),16);
+      else
+        v=Integer.parseInt(n);
+      return new Operand() {
+        public int get (Debugger d) {
+          return v;
+        }
+      };
+    }
+
+    // Names that could also start a hex number such as 0BCH are registers
+    // only where a number cannot be
+    private boolean isNumber (String register) {
+      int end=pos;
+      while (end<text.length() && Character.isLetterOrDigit(text.charAt(end)))
+        end++;
+      return end-pos>register.length() && text.substring(pos,end).matches("[0-9A-F]+H");
+    }
+
+    static Operand register (String name) {
+      final int reg,shift,mask;
+      if (name.equals("VALUE"))
+        return new Operand() {
+          public int get (Debugger d) {
+            return d.value;
+          }
+        };
+      String pairs="AFBCDEHL";
+      if (name.length()==2) {
+        String[] names={"AF","BC","DE","HL","IX","IY","SP","PC"};
+        int[] regs={Z80.REG_AF,Z80.REG_BC,Z80.REG_DE,Z80.REG_HL,Z80.REG_IX,Z80.REG_IY,Z80.REG_SP,Z80.REG_PC};
+        reg=regs[Arrays.asList(names).indexOf(name)];
+        shift=0;
+        mask=0xFFFF;
+      } else {
+        int i=pairs.indexOf(name);
+        int[] regs={Z80.REG_AF,Z80.REG_BC,Z80.REG_DE,Z80.REG_HL};
+        reg=regs[i/2];
+        shift=(i&1)==0?8:0;
+        mask=0xFF;
+      }
+      return new Operand() {
+        public int get (Debugger d) {
+          return (d.cpu.getRegister(reg)>>shift)&mask;
+        }
+      };
+    }
+
+    private boolean take (String s) {
+      if (!text.startsWith(s,pos))
+        return false;
+      pos+=s.length();
+      return true;
+    }
+
+    private void expect (String s) {
+      if (!take(s))
+        throw new IllegalArgumentException("'"+s+"' expected in condition");
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    boolean has48kb=false;
+    int frames=600,maxStops=20;
+    List<String[]> arms=new ArrayList<String[]>();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-stops") && i+1<argv.length)
+        maxStops=Integer.parseInt(argv[++i]);
+      else if (argv[i].matches("-(break|read|write|in|out)") && i+1<argv.length) {
+        arms.add(new String[] {argv[i],argv[i+1]});
+        i++;
+      }
+    }
+    if (rom==null) {
+      System.out.println ("usage: java Debugger -rom mc1000.rom [-48] [-frames n] [-stops n] [-break addr[,condition]]... [-read addr[,condition]]... [-write addr[,condition]]... [-in port]... [-out port]...");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    Debugger debugger=new Debugger(machine);
+    for (String[] a : arms) {
+      int comma=a[1].indexOf(',');
+      String where=comma<0?a[1]:a[1].substring(0,comma);
+      Condition c=compile(comma<0?null:a[1].substring(comma+1));
+      int addr=Integer.parseInt(where.replaceFirst("(?i)^(0x|\\$)",""),16);
+      if (a[0].equals("-break"))
+        debugger.setBreakpoint(addr,c);
+      else if (a[0].equals("-read"))
+        debugger.watchRead(addr,c);
+      else if (a[0].equals("-write"))
+        debugger.watchWrite(addr,c);
+      else if (a[0].equals("-in"))
+        debugger.watchIn(addr,c);
+      else
+        debugger.watchOut(addr,c);
+    }
+
+    int frame=0;
+    while (frame<frames && debugger.getStops()<maxStops) {
+      long before=debugger.getStops();
+      machine.runFrame();
+      if (debugger.getStops()>before)
+        System.out.println ("frame "+frame+": "+debugger.describe());
+      else
+        frame++;
+    }
+    System.out.println (frame+" frames, "+debugger.getStops()+" stops");
+  }
+}
@@ -0,0 +1,36 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs forked children of a machine on a thread pool.
+//
+// The forks are taken on the calling thread, which must be the one running
+// the parent, so the parent can keep running while the children do.
+public class ForkRunner {
+  ExecutorService pool;
+
+  ForkRunner(int threads) {
+    pool=Executors.newFixedThreadPool(threads);
+  }
+
+  public <T> Future<T> submit (MC1000machine parent, ForkTask<T> task, int index) {
+    final MC1000machine child=parent.fork();
+    final ForkTask<T> t=task;
+    final int i=index;
+    return pool.submit(new Callable<T>() {
+      public T call() throws Exception {
+        return t.run(child,i);
+      }
+    });
+  }
+
+  public <T> List<Future<T>> submitAll (MC1000machine parent, ForkTask<T> task, int count) {
+    List<Future<T>> results=new ArrayList<Future<T>>(count);
+    for (int i=0; i<count; i++)
+      results.add(submit(parent,task,i));
+    return results;
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+}
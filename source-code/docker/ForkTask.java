@@ -0,0 +1,5 @@
+
+public interface ForkTask<T>
+{
+ public T run(MC1000machine child, int index) throws Exception;
+}
@@ -0,0 +1,228 @@
+import java.awt.event.*;
+import java.util.*;
+
+// Runs frames against the wall clock on its own thread.
+//
+// usage: java FramePacer -rom mc1000.rom [-48] [-speed x] [-seconds n]
+//                        [-timer]
+//
+// Frame n starts at a deadline base+n*period, kept in nanoseconds from
+// one base, so late frames do not push the ones after them and the rate
+// does not drift.  The wait sleeps until SPIN before the deadline and
+// yields from there, as sleep alone wakes up a millisecond or more late.
+// A frame that ends past the next deadline is not drawn, up to MAX_SKIP
+// in a row; once the machine is more than MAX_BEHIND frames behind the
+// deadlines start over from now, as after a pause in the host.
+//
+// The speed multiplies the frame rate: 0.5, 1, 2, or UNLIMITED to run
+// frames back to back, drawing at most at the normal rate.
+//
+// Lateness is how far behind its deadline a frame starts; the pacer keeps
+// the last one as drift, the mean of the change between frames as jitter,
+// and the worst.  The tool runs a machine headless for -seconds and shows
+// these, or with -timer the same for a javax.swing.Timer of 16 ms running
+// one frame per tick, as the applet did.
+public class FramePacer implements Runnable {
+  public static final int FRAMES_PER_SECOND=60;
+  public static final double UNLIMITED=0;
+  static final long SECOND=1000000000L;
+  static final long SPIN=1500000;
+  static final int MAX_SKIP=4;
+  static final int MAX_BEHIND=8;
+
+  public interface Client {
+    void runFrame();
+    void drawFrame();
+  }
+
+  Client client;
+  volatile double speed=1;
+  volatile boolean running;
+  Thread thread;
+
+  // Written by the pacer thread only
+  volatile long frames,skipped,resyncs;
+  volatile long drift,jitterSum,jitterCount,worst;
+  long lastLate;
+
+  FramePacer(Client c) {
+    client=c;
+  }
+
+  public void setSpeed (double s) {
+    speed=s;
+  }
+
+  public double getSpeed() {
+    return speed;
+  }
+
+  public void start() {
+    running=true;
+    thread=new Thread(this,"MC-1000 frames");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() {
+    running=false;
+    if (thread!=null)
+      try {
+        thread.join();
+      } catch (InterruptedException e) {}
+    thread=null;
+  }
+
+  public void run() {
+    double s=speed,period=0;
+    long base=System.nanoTime(),lastDraw=base,n=0;
+    int skips=0;
+
+    while (running) {
+      if (speed!=s || n==0) {
+        s=speed;
+        period=s==UNLIMITED?0:SECOND/(FRAMES_PER_SECOND*s);
+        base=System.nanoTime();
+        n=0;
+        lastLate=0;
+      }
+
+      if (s==UNLIMITED) {
+        client.runFrame();
+        frames++;
+        long now=System.nanoTime();
+        if (now-lastDraw>=SECOND/FRAMES_PER_SECOND) {
+          client.drawFrame();
+          lastDraw=now;
+        } else
+          skipped++;
+        continue;
+      }
+
+      long deadline=base+(long)(n*period);
+      if (!waitUntil(deadline))
+        return;
+      late(System.nanoTime()-deadline);
+      client.runFrame();
+      frames++;
+      n++;
+
+      long next=base+(long)(n*period),now=System.nanoTime();
+      if (now>next && skips<MAX_SKIP) {
+        skips++;
+        skipped++;
+      } else {
+        client.drawFrame();
+        lastDraw=now;
+        skips=0;
+      }
+      if (System.nanoTime()-next>MAX_BEHIND*period) {
+        n=0;
+        resyncs++;
+      }
+    }
+  }
+
+  // Sleeps, then yields, until the deadline; false when interrupted
+  static boolean waitUntil (long deadline) {
+    long left;
+    while ((left=deadline-System.nanoTime())>0)
+      if (left>SPIN)
+        try {
+          Thread.sleep((left-SPIN)/1000000,(int)((left-SPIN)%1000000));
+        } catch (InterruptedException e) {
+          return false;
+        }
+      else
+        Thread.yield();
+    return true;
+  }
+
+  void late (long nanos) {
+    drift=nanos;
+    if (frames>0) {
+      jitterSum+=Math.abs(nanos-lastLate);
+      jitterCount++;
+    }
+    worst=Math.max(worst,nanos);
+    lastLate=nanos;
+  }
+
+  // How far behind its deadline the last frame started, in nanoseconds,
+  // negative when ahead
+  public long getDrift() {
+    return drift;
+  }
+
+  // The mean change in lateness from one frame to the next, in nanoseconds
+  public long getJitter() {
+    return jitterCount==0?0:jitterSum/jitterCount;
+  }
+
+  public String toString() {
+    return String.format(Locale.ROOT,"%d frames, %d not drawn, %d resyncs, drift %.3f ms, jitter %.3f ms, worst %.3f ms",
+      frames,skipped,resyncs,drift/1e6,getJitter()/1e6,worst/1e6);
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    boolean has48kb=false,timer=false;
+    double speed=1;
+    int seconds=10;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+      else if (argv[i].equals("-speed") && i+1<argv.length)
+        speed=Double.parseDouble(argv[++i]);
+      else if (argv[i].equals("-seconds") && i+1<argv.length)
+        seconds=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-timer"))
+        timer=true;
+    }
+    if (rom==null) {
+      System.out.println ("usage: java FramePacer -rom mc1000.rom [-48] [-speed x] [-seconds n] [-timer]");
+      System.exit(1);
+    }
+
+    final MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    final FramePacer pacer=new FramePacer(new Client() {
+      public void runFrame() {
+        machine.runFrame();
+      }
+
+      public void drawFrame() {
+        machine.vdp.draw();
+      }
+    });
+    pacer.setSpeed(speed);
+
+    long time=System.nanoTime();
+    if (timer) {
+      final long base=System.nanoTime();
+      javax.swing.Timer t=new javax.swing.Timer(16,new ActionListener() {
+        public void actionPerformed (ActionEvent e) {
+          pacer.late(System.nanoTime()-base-pacer.frames*SECOND/FRAMES_PER_SECOND);
+          machine.runFrame();
+          machine.vdp.draw();
+          pacer.frames++;
+        }
+      });
+      t.start();
+      Thread.sleep(seconds*1000L);
+      t.stop();
+    } else {
+      pacer.start();
+      Thread.sleep(seconds*1000L);
+      pacer.stop();
+    }
+    time=System.nanoTime()-time;
+
+    System.out.println (pacer);
+    System.out.println (String.format(Locale.ROOT,"%.2f frames/s over %d s, %.2f expected",
+      pacer.frames*1e9/time,seconds,speed==UNLIMITED?0:FRAMES_PER_SECOND*speed));
+  }
+}
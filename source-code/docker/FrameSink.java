@@ -0,0 +1,7 @@
+// Where a host shows the frames.  The pixels are ARGB, width*height of
+// them row by row, and the same array comes back every frame: read it
+// before the next one, or keep it and read it whenever.
+public interface FrameSink
+{
+ public void frame(int[] pixels, int width, int height);
+}
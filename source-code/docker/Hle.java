@@ -0,0 +1,280 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+
+// High-level emulation of hot ROM routines.
+//
+// usage: java Hle -rom mc1000.rom -map file [-48] [-frames n] [-verify]
+//                 [-turbo n]
+//
+// A map file names ROM entry points the way Symbols reads them, one per
+// line, "C100 ldir", each naming a Java routine.  The routine is trapped at
+// its entry and run in Java on the registers and memory, up to and
+// including its RET, and the CPU is charged the cycles the Z80 code would
+// have taken, or a fixed -turbo count.  Routines are meant to be exact:
+// same memory, same registers, R and flags included, same cycles.
+//
+// The one difference that remains is where a slice ends.  Interrupts are
+// taken between slices, so a ROM routine that runs past the end of a slice
+// is interrupted in its middle, where the Java one has already finished.
+// Forks made for run-ahead and rewind get no traps and run the ROM code.
+//
+// This is the trap, the accounting and the check, not yet the speed-up.
+// Only the block moves, "ldir" and "lddr", ship as routines.  The
+// floating-point, string and screen routines BASIC spends its time in
+// are still to be written: each has to be worked out from the ROM's own
+// code, which is not in this tree, and checked with -verify against it,
+// since a routine that is not exact is worse than none.  They plug in
+// through register() and a map line each.
+//
+// With -verify every call is checked before it is taken: the machine is
+// forked, the fork runs the ROM code step by step until it returns, and
+// its registers, state hash and cycles must match the Java routine's.
+// The tool runs the same frames on a plain machine and on one with the
+// routines in place, and shows calls, cycles and mismatches per entry
+// with the time both took; it exits with 2 on any mismatch.
+public class Hle implements Z80Trap {
+  static final int MAX_STEPS=10000000;
+  static final String[] REG_NAMES={"AF","BC","DE","HL","AF'","BC'","DE'","HL'","IX","IY","PC","SP","I","R","IFF1","IFF2","IM"};
+
+  // A ROM routine in Java.  run() works on h.regs and h.mem from the entry
+  // up to the RET, which Hle adds, and returns the cycles taken.  The step
+  // that hit the trap has already counted the first fetch in R.
+  public abstract static class Routine {
+    String name;
+
+    Routine(String n) {
+      name=n;
+    }
+
+    abstract int run (Hle h);
+  }
+
+  static class Entry {
+    int addr;
+    Routine routine;
+    long calls,cycles,mismatches;
+  }
+
+  static final HashMap<String,Routine> ROUTINES=new HashMap<String,Routine>();
+
+  static {
+    // LDIR; RET and LDDR; RET
+    register(new Routine("ldir") {
+      int run (Hle h) {
+        return h.block(1);
+      }
+    });
+    register(new Routine("lddr") {
+      int run (Hle h) {
+        return h.block(-1);
+      }
+    });
+  }
+
+  public static void register (Routine r) {
+    ROUTINES.put(r.name,r);
+  }
+
+  MC1000machine machine;
+  Memory mem;
+  int[] regs;
+  HashMap<Integer,Entry> entries;
+  int turbo=-1;
+  boolean verify;
+
+  Hle(MC1000machine m) {
+    machine=m;
+    mem=m.z80core.getMemory();
+    regs=new int[Z80.REG_COUNT];
+    entries=new HashMap<Integer,Entry>();
+  }
+
+  public void load (String file) throws IOException {
+    load(new FileReader(file),file);
+  }
+
+  // As the applet fetches the ROM and tapes, from its codebase
+  public void load (URL url) throws IOException {
+    load(new InputStreamReader(url.openStream()),url.toString());
+  }
+
+  void load (Reader in, String name) throws IOException {
+    Symbols map=new Symbols();
+    map.load(in);
+    for (Map.Entry<Integer,String> e : map.names.entrySet()) {
+      Routine r=ROUTINES.get(e.getValue().toLowerCase());
+      if (r==null)
+        throw new IOException(name+": no routine named "+e.getValue());
+      add(e.getKey(),r);
+    }
+  }
+
+  public void add (int addr, Routine r) {
+    Entry e=new Entry();
+    e.addr=addr&0xFFFF;
+    e.routine=r;
+    entries.put(e.addr,e);
+    machine.z80core.setTrap(e.addr,this);
+  }
+
+  public void remove () {
+    for (int addr : entries.keySet())
+      machine.z80core.removeTrap(addr);
+  }
+
+  // Cycles a turbo call takes instead of the routine's own, or -1
+  public void setTurbo (int cycles) {
+    turbo=cycles;
+  }
+
+  public void setVerify (boolean v) {
+    verify=v;
+  }
+
+  public boolean trap (Z80 c) {
+    c.getRegisters(regs);
+    Entry e=entries.get(regs[Z80.REG_PC]);
+    MC1000machine rom=verify?machine.fork():null;
+
+    int cycles=e.routine.run(this);
+    // RET
+    regs[Z80.REG_PC]=readWord(regs[Z80.REG_SP]);
+    regs[Z80.REG_SP]=(regs[Z80.REG_SP]+2)&0xFFFF;
+    refresh(1);
+    cycles+=Z80.cycles_main_opcode[0xC9];
+    c.setRegisters(regs);
+
+    e.calls++;
+    e.cycles+=cycles;
+    if (rom!=null && !matches(e,rom,cycles))
+      e.mismatches++;
+    c.setCyclesToDo(c.getCyclesToDo()-(turbo>=0?turbo:cycles));
+    return true;
+  }
+
+  // Runs the ROM code on the fork made at the entry and compares
+  boolean matches (Entry e, MC1000machine rom, int cycles) {
+    Z80 cpu=rom.z80core;
+    int[] r=new int[Z80.REG_COUNT];
+    cpu.getRegisters(r);
+    // The fork's first step counts the fetch in R again
+    r[Z80.REG_R]=(r[Z80.REG_R]&0x80)|((r[Z80.REG_R]-1)&0x7F);
+    cpu.setRegisters(r);
+    int sp=(r[Z80.REG_SP]+2)&0xFFFF,ret=readWord(r[Z80.REG_SP]);
+    int start=cpu.getCyclesToDo();
+    for (int n=0; n<MAX_STEPS; n++) {
+      cpu.step();
+      cpu.getRegisters(r);
+      if (r[Z80.REG_PC]==ret && r[Z80.REG_SP]==sp)
+        break;
+    }
+    String diff="";
+    for (int i=0; i<Z80.REG_COUNT; i++)
+      if (r[i]!=regs[i])
+        diff+=" "+REG_NAMES[i]+" "+Integer.toHexString(regs[i])+"/"+Integer.toHexString(r[i]);
+    if (start-cpu.getCyclesToDo()!=cycles)
+      diff+=" cycles "+cycles+"/"+(start-cpu.getCyclesToDo());
+    // The registers are already in the hash; this catches memory
+    if (diff.length()==0 && rom.stateHash()!=machine.stateHash())
+      diff+=" memory";
+    if (diff.length()==0)
+      return true;
+    System.out.println ("mismatch at "+Symbols.hex(e.addr)+" "+e.routine.name+", hle/rom:"+diff);
+    return false;
+  }
+
+  // LDIR or LDDR to the end, as Z80.LDI and Z80.LDD do it one byte at a time
+  int block (int step) {
+    int hl=regs[Z80.REG_HL],de=regs[Z80.REG_DE],bc=regs[Z80.REG_BC];
+    int a=regs[Z80.REG_AF]>>8;
+    int n=bc==0?0x10000:bc;
+    int b=0;
+    for (int i=0; i<n; i++) {
+      b=mem.readByte(hl)&0xFF;
+      mem.writeByte(de,b);
+      hl=(hl+step)&0xFFFF;
+      de=(de+step)&0xFFFF;
+    }
+    regs[Z80.REG_HL]=hl;
+    regs[Z80.REG_DE]=de;
+    regs[Z80.REG_BC]=0;
+    // H, N and P/V clear, Y and X from bits 1 and 3 of the last byte plus A
+    b=(b+a)&0xFF;
+    int f=regs[Z80.REG_AF]&0xC1;
+    if ((b&0x02)!=0)
+      f|=0x20;
+    if ((b&0x08)!=0)
+      f|=0x08;
+    regs[Z80.REG_AF]=a<<8|f;
+    // Every iteration fetches ED and the opcode
+    refresh(2*n-1);
+    return n*(Z80.cycles_main_opcode[0xED]+Z80.cycles_ed_opcode[step>0?0xB0:0xB8]);
+  }
+
+  // Counts n fetches in the low 7 bits of R
+  void refresh (int n) {
+    int r=regs[Z80.REG_R];
+    regs[Z80.REG_R]=(r&0x80)|((r+n)&0x7F);
+  }
+
+  int readWord (int addr) {
+    return (mem.readByte(addr)&0xFF)|(mem.readByte((addr+1)&0xFFFF)&0xFF)<<8;
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,map=null;
+    boolean has48kb=false,verify=false;
+    int frames=600,turbo=-1;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-map") && i+1<argv.length)
+        map=argv[++i];
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-verify"))
+        verify=true;
+      else if (argv[i].equals("-turbo") && i+1<argv.length)
+        turbo=Integer.parseInt(argv[++i]);
+    }
+    if (rom==null || map==null) {
+      System.out.println ("usage: java Hle -rom mc1000.rom -map file [-48] [-frames n] [-verify] [-turbo n]");
+      System.exit(1);
+    }
+
+    MC1000machine plain=new MC1000machine(has48kb);
+    plain.memory.loadROM(rom);
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    Hle hle=new Hle(machine);
+    hle.load(map);
+    hle.setTurbo(turbo);
+    hle.setVerify(verify);
+
+    ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+    long time=threads.getCurrentThreadCpuTime();
+    for (int f=0; f<frames; f++)
+      plain.runFrame();
+    long plainTime=threads.getCurrentThreadCpuTime()-time;
+    time=threads.getCurrentThreadCpuTime();
+    for (int f=0; f<frames; f++)
+      machine.runFrame();
+    long hleTime=threads.getCurrentThreadCpuTime()-time;
+
+    long mismatches=0;
+    for (Entry e : new TreeMap<Integer,Entry>(hle.entries).values()) {
+      System.out.println (String.format(Locale.ROOT,"%s %-12s %10d calls %14d cycles %8d mismatches",
+        Symbols.hex(e.addr),e.routine.name,e.calls,e.cycles,e.mismatches));
+      mismatches+=e.mismatches;
+    }
+    System.out.println (frames+" frames: plain "+plainTime/1000000+" ms, hle "+hleTime/1000000+" ms"
+      +(verify?" (verifying)":""));
+    if (mismatches>0)
+      System.exit(2);
+  }
+}
@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.*;
+
+// One machine of a SessionHost, with its CPU accounting.
+//
+// A slice runs one frame on whichever pool thread picks it up; the busy
+// flag makes sure there is never more than one at a time, and is what
+// passes the machine safely from one thread to the next.
+//
+// The guest counts as waiting while a frame ends with PC in the host's
+// key-wait range and no input queued; any other frame, and any input,
+// makes it active.
+public class HostSession implements Runnable {
+  final int id;
+  final MC1000machine machine;
+  final AtomicBoolean busy;
+  final int waitStart,waitEnd;
+  volatile boolean parked;
+  volatile long lastActive;
+
+  long cpuNanos;
+  long frames,dropped;
+
+  HostSession(int n, MC1000machine m, int start, int end) {
+    id=n;
+    machine=m;
+    waitStart=start;
+    waitEnd=end;
+    busy=new AtomicBoolean();
+    lastActive=System.nanoTime();
+  }
+
+  // Called by the host clock, false when the previous slice is still running
+  boolean schedule (SessionHost host) {
+    if (!busy.compareAndSet(false,true)) {
+      dropped++;
+      return false;
+    }
+    host.pool.execute(this);
+    return true;
+  }
+
+  public void run() {
+    long start=System.nanoTime();
+    try {
+      machine.runFrame();
+      if (!isWaiting())
+        lastActive=System.nanoTime();
+    } finally {
+      cpuNanos+=System.nanoTime()-start;
+      frames++;
+      busy.set(false);
+    }
+  }
+
+  // Input from the client, which also wakes a parked session
+  public synchronized void post (int code) {
+    machine.psg.getKeyboard().post(code);
+    lastActive=System.nanoTime();
+    parked=false;
+  }
+
+  // Whether the guest sits in the key-wait loop with nothing to read
+  boolean isWaiting() {
+    int pc=machine.z80core.getPC();
+    return pc>=waitStart && pc<waitEnd && machine.psg.getKeyboard().getEvents().isEmpty();
+  }
+
+  // Draws the screen between slices into the caller's pixels, WIDTH*HEIGHT
+  // of them, so that a session keeps no frame buffer; the client may be a
+  // few frames late
+  public int[] draw (int[] pixels) {
+    while (!busy.compareAndSet(false,true))
+      Thread.yield();
+    try {
+      return machine.vdp.render(pixels);
+    } finally {
+      busy.set(false);
+    }
+  }
+
+  public boolean isParked() {
+    return parked;
+  }
+
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getDropped() {
+    return dropped;
+  }
+}
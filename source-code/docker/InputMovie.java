@@ -0,0 +1,139 @@
+import java.io.*;
+
+// A recorded session: the machine setup and every input event with the cycle
+// at which the CPU saw it. Replayed from a cold reset it gives a bit-identical
+// run, which is checked against the state hash stored at the end.  Since
+// version 2 it also names the key routine a TextInjector trapped, as the
+// text typed there is replayed through the same trap.
+public class InputMovie {
+  static final byte[] MAGIC={'M','C','1','K','M','O','V',0x1A};
+  static final int VERSION=2;
+
+  boolean has48kb;
+  long romChecksum,tapeChecksum;
+  long endClock,finalHash;
+  int keyTrap;            // the key routine trapped by a TextInjector, or -1
+  long[] stamps;
+  int[] codes;
+  int count;
+
+  InputMovie() {
+    stamps=new long[1024];
+    codes=new int[1024];
+    count=0;
+    keyTrap=-1;
+  }
+
+  InputMovie(MC1000machine m) {
+    this();
+    has48kb=m.has48kb();
+    romChecksum=m.memory.romChecksum();
+    tapeChecksum=m.tape.getChecksum();
+  }
+
+  public void add (long stamp, int code) {
+    if (count==stamps.length) {
+      long[] s=new long[count*2];
+      int[] c=new int[count*2];
+      // By hand, as Keyboard is part of MC1000core
+      for (int i=0; i<count; i++) {
+        s[i]=stamps[i];
+        c[i]=codes[i];
+      }
+      stamps=s;
+      codes=c;
+    }
+    stamps[count]=stamp;
+    codes[count]=code;
+    count++;
+  }
+
+  public void finish (MC1000machine m) {
+    endClock=m.z80core.getClocks();
+    finalHash=m.stateHash();
+    keyTrap=m.psg.getKeyboard().keyTrap;
+  }
+
+  public int getEventCount() {
+    return count;
+  }
+
+  // Queue every event of the movie, the queue must be able to hold them all
+  public void feed (InputQueue queue) {
+    for (int i=0; i<count; i++)
+      if (!queue.offer(stamps[i],codes[i]))
+        throw new IllegalStateException("input queue too small for movie");
+  }
+
+  public void write (String file) throws IOException {
+    DataOutputStream out=new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file)));
+    try {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      out.writeByte(has48kb?1:0);
+      out.writeInt((int)romChecksum);
+      out.writeInt((int)tapeChecksum);
+      out.writeLong(endClock);
+      out.writeInt((int)finalHash);
+      out.writeInt(keyTrap);
+      writeVarint(out,count);
+      long last=0;
+      for (int i=0; i<count; i++) {
+        writeVarint(out,stamps[i]-last);
+        writeVarint(out,codes[i]);
+        last=stamps[i];
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  public static InputMovie read (String file) throws IOException {
+    DataInputStream in=new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+    try {
+      byte[] magic=new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!java.util.Arrays.equals(magic,MAGIC))
+        throw new IOException("not an MC-1000 movie: "+file);
+      int version=in.readUnsignedByte();
+      if (version<1 || version>VERSION)
+        throw new IOException("unsupported movie version: "+file);
+
+      InputMovie movie=new InputMovie();
+      movie.has48kb=in.readUnsignedByte()!=0;
+      movie.romChecksum=in.readInt()&0xFFFFFFFFL;
+      movie.tapeChecksum=in.readInt()&0xFFFFFFFFL;
+      movie.endClock=in.readLong();
+      movie.finalHash=in.readInt()&0xFFFFFFFFL;
+      if (version>1)
+        movie.keyTrap=in.readInt();
+      int n=(int)readVarint(in);
+      long last=0;
+      for (int i=0; i<n; i++) {
+        last+=readVarint(in);
+        movie.add(last,(int)readVarint(in));
+      }
+      return movie;
+    } finally {
+      in.close();
+    }
+  }
+
+  static void writeVarint (DataOutput out, long v) throws IOException {
+    while ((v&~0x7FL)!=0) {
+      out.writeByte((int)(v&0x7F)|0x80);
+      v>>>=7;
+    }
+    out.writeByte((int)v);
+  }
+
+  static long readVarint (DataInput in) throws IOException {
+    long v=0;
+    for (int shift=0; ; shift+=7) {
+      int b=in.readUnsignedByte();
+      v|=(long)(b&0x7F)<<shift;
+      if ((b&0x80)==0)
+        return v;
+    }
+  }
+}
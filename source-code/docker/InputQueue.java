@@ -0,0 +1,52 @@
+// Lock-free ring of input events, each stamped with the emulated cycle at
+// which it applies. One producer (the AWT thread or a movie player) and one
+// consumer (the CPU thread through Keyboard.update).  Plain volatile
+// fields rather than atomics keep it within what MC1000core may use.
+public class InputQueue {
+  final long[] stamps;
+  final int[] codes;
+  final int mask;
+  volatile long head,tail;
+
+  InputQueue(int capacity) {
+    int size=2;
+    while (size<capacity)
+      size<<=1;
+    stamps=new long[size];
+    codes=new int[size];
+    mask=size-1;
+  }
+
+  public boolean offer (long stamp, int code) {
+    long t=tail;
+    if (t-head>mask)
+      return false;
+    int i=(int)t&mask;
+    stamps[i]=stamp;
+    codes[i]=code;
+    tail=t+1;
+    return true;
+  }
+
+  // Free slots, from the producer's side
+  public int space() {
+    return (int)(mask+1-(tail-head));
+  }
+
+  public boolean isEmpty() {
+    return head==tail;
+  }
+
+  // True when the oldest event is due at the given cycle
+  public boolean isDue (long clock) {
+    long h=head;
+    return h!=tail && stamps[(int)h&mask]<=clock;
+  }
+
+  public int poll() {
+    long h=head;
+    int code=codes[(int)h&mask];
+    head=h+1;
+    return code;
+  }
+}
@@ -0,0 +1,7 @@
+// Gives the machine the host's input once per frame, as keyboard events
+// made by Keyboard.keyEvent and Keyboard.modifierEvent, applied in order
+// with Keyboard.apply
+public interface InputSource
+{
+ public void poll(Keyboard keys);
+}
@@ -0,0 +1,45 @@
+import javax.sound.sampled.*;
+
+// Plays the audio through a javax.sound line
+public class JavaSoundSink implements AudioSink {
+  SourceDataLine line;
+  byte[] bytes;
+
+  JavaSoundSink() {
+    bytes=new byte[0];
+  }
+
+  // A sound line when the host has one, otherwise a sink that discards
+  public static AudioSink openDefault (int sampleRate) {
+    AudioSink sink=new JavaSoundSink();
+    try {
+      sink.open(sampleRate);
+    } catch (Exception e) {
+      sink=new NullSink();
+      ((NullSink)sink).open(sampleRate);
+    }
+    return sink;
+  }
+
+  public void open (int sampleRate) throws LineUnavailableException {
+    AudioFormat format=new AudioFormat(sampleRate,16,1,true,false);
+    line=AudioSystem.getSourceDataLine(format);
+    line.open(format,sampleRate/10*2);
+    line.start();
+  }
+
+  public void write (short[] s, int n) {
+    if (bytes.length<n*2)
+      bytes=new byte[n*2];
+    for (int i=0; i<n; i++) {
+      bytes[i*2]=(byte)s[i];
+      bytes[i*2+1]=(byte)(s[i]>>8);
+    }
+    line.write(bytes,0,n*2);
+  }
+
+  public void close () {
+    line.drain();
+    line.close();
+  }
+}
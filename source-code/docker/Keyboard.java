@@ -1,26 +1,200 @@
 import java.awt.event.*;
+import java.nio.*;
 
 public class Keyboard implements KeyListener {
+  // Input events: column in bits 0-2, line in bits 3-5
+  static final int EVENT_PRESSED=0x40;
+  static final int EVENT_KEY=0x000;
+  static final int EVENT_MODIFIER=0x080;
+  static final int EVENT_TAPE=0x100;
+  // A character for the key routine trap of a TextInjector, in bits 0-6
+  static final int EVENT_CHAR=0x200;
+
   int[] keyMap;
   int keySelect;
   boolean tapeStarted;
+  InputQueue events;
+  InputMovie recording;
+  InputMovie journal;     // events applied since the last rewind snapshot
+  InputQueue replay;      // events re-executed after a rewind seek
+  ScanListener injector;
+  int keyTrap;            // the key routine a TextInjector traps, or -1
+  int typed;              // its character, taken in the same trap
+  volatile long lastClock;
+  boolean speculative;
+  // Posted keys down, as the producer sees them, and the events refused
+  long keysDown;
+  int modifiersDown;
+  volatile int dropped;
 
   Keyboard() {
     keyMap=new int[8];
     for (int i=0; i<8; i++)
       keyMap[i]=0xFF;
     tapeStarted=false;
+    events=new InputQueue(256);
+    recording=null;
+    injector=null;
+    keyTrap=-1;
+    typed=-1;
+  }
+
+  public static int keyEvent (int line, int col, boolean pressed) {
+    return EVENT_KEY|(line<<3)|col|(pressed?EVENT_PRESSED:0);
+  }
+
+  public static int modifierEvent (int line, boolean pressed) {
+    return EVENT_MODIFIER|(line<<3)|(pressed?EVENT_PRESSED:0);
+  }
+
+  public InputQueue getEvents() {
+    return events;
+  }
+
+  public void startRecording (InputMovie movie) {
+    recording=movie;
+  }
+
+  public InputMovie stopRecording() {
+    InputMovie movie=recording;
+    recording=null;
+    return movie;
+  }
+
+  // Queue an event for the next keyboard read, from any single producer
+  // thread.  The queue keeps a slot for the release of every key posted
+  // down, so when it is full a press or the tape may be refused, counted
+  // and false returned, but a release never is and no key stays stuck.
+  public boolean post (int code) {
+    boolean pressed=(code&EVENT_PRESSED)!=0;
+    long key=0;
+    int modifier=0;
+    if ((code&~0x7F)==EVENT_KEY)
+      key=1L<<(code&0x3F);
+    else if ((code&~0x7F)==EVENT_MODIFIER)
+      modifier=1<<((code>>3)&7);
+    boolean release=!pressed && ((keysDown&key)!=0 || (modifiersDown&modifier)!=0);
+
+    int held=Long.bitCount(keysDown)+Integer.bitCount(modifiersDown);
+    if (!release && (events.space()<=held || !events.offer(lastClock,code))) {
+      dropped++;
+      return false;
+    }
+    if (release)
+      events.offer(lastClock,code);
+    if (pressed) {
+      keysDown|=key;
+      modifiersDown|=modifier;
+    } else {
+      keysDown&=~key;
+      modifiersDown&=~modifier;
+    }
+    return true;
+  }
+
+  // Events post has refused since the start
+  public int getDropped() {
+    return dropped;
+  }
+
+  // Called by the CPU thread before every read of the PSG.  Frames run
+  // speculatively are thrown away, they see no new input and stamp nothing.
+  public void update (long clock) {
+    if (speculative)
+      return;
+    lastClock=clock;
+    while (replay!=null && replay.isDue(clock))
+      take(clock,replay.poll());
+    while (events.isDue(clock))
+      take(clock,events.poll());
+  }
+
+  // Apply an event generated on the CPU thread, it is seen from the next read on
+  public void inject (int code) {
+    take(lastClock+1,code);
+  }
+
+  // A character handed to the key routine trap, recorded and journaled as
+  // input so that replays hand it over at the same cycle
+  public void type (long clock, int c) {
+    take(clock,EVENT_CHAR|(c&0x7F));
+  }
+
+  // The character for the key routine trap, or -1.  Input due by now is
+  // applied first, which is where a replay finds the recorded one.
+  public int takeTyped (long clock) {
+    update(clock);
+    int c=typed;
+    typed=-1;
+    return c;
+  }
+
+  private void take (long clock, int code) {
+    apply(code);
+    if (recording!=null)
+      recording.add(clock,code);
+    if (journal!=null)
+      journal.add(clock,code);
+  }
+
+  public void apply (int code) {
+    int line=(code>>3)&7;
+    int col=code&7;
+    boolean pressed=(code&EVENT_PRESSED)!=0;
+
+    switch (code&~0x7F) {
+      case EVENT_KEY:
+        if (pressed)
+          keyMap[line]&=(~(1<<col))&0xFF;
+        else
+          keyMap[line]|=(1<<col);
+        break;
+      case EVENT_MODIFIER:
+        for (int i=0; i<8; i++)
+          if (pressed)
+            keyMap[i]&=(~(1<<line))&0xFF;
+          else
+            keyMap[i]|=(1<<line);
+        break;
+      case EVENT_TAPE:
+        tapeStarted=true;
+        break;
+      case EVENT_CHAR:
+        typed=code&0x7F;
+        break;
+    }
   }
 
   public int read() {
-    int line;
+    int line,ret=0xFF;
 
     for (int i=0; i<8; i++) {
       line=(~(1<<i))&0xFF;
-      if (line==keySelect) 
-	return keyMap[i];
+      if (line==keySelect) {
+	ret=keyMap[i];
+	break;
+      }
     }
-    return 0xFF; 
+    if (injector!=null && !speculative)
+      injector.scanned(this,keySelect);
+    return ret; 
+  }
+
+  // Events still queued are not part of the state
+  public void saveState (ByteBuffer b) {
+    for (int i=0; i<8; i++)
+      b.put((byte)keyMap[i]);
+    b.put((byte)keySelect);
+    b.put((byte)(tapeStarted?1:0));
+    b.putLong(lastClock);
+  }
+
+  public void loadState (ByteBuffer b) {
+    for (int i=0; i<8; i++)
+      keyMap[i]=b.get()&0xFF;
+    keySelect=b.get()&0xFF;
+    tapeStarted=b.get()!=0;
+    lastClock=b.getLong();
   }
 
   public boolean hasTapeStarted() {
@@ -218,15 +392,12 @@ public class Keyboard implements KeyListener {
 	line=0; col=4; // joy B - right
 	break;
       case KeyEvent.VK_F5:
-	tapeStarted=true;
+	post(EVENT_TAPE);
 	return;
       default:
 	return;
     }
-    if (e.getID()==KeyEvent.KEY_PRESSED)
-      keyMap[line]&=(~(1<<col))&0xFF;
-    else
-      keyMap[line]|=(1<<col);
+    post(keyEvent(line,col,e.getID()==KeyEvent.KEY_PRESSED));
   }
 
   public void keyPressed(KeyEvent e) {
@@ -237,11 +408,7 @@ public class Keyboard implements KeyListener {
   }
  
   private void setLine (KeyEvent e, int line) {
-    for (int i=0; i<8; i++)
-      if (e.getID()==KeyEvent.KEY_PRESSED)
-        keyMap[i]&=(~(1<<line))&0xFF;
-      else
-        keyMap[i]|=(1<<line);
+    post(modifierEvent(line,e.getID()==KeyEvent.KEY_PRESSED));
   }
 
   public void keyTyped(KeyEvent e) {}
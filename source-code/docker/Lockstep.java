@@ -0,0 +1,362 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs two execution engines side by side and proves they agree.
+//
+// usage: java Lockstep [-rom mc1000.rom] [-engines z80,batch] [-seeds n]
+//                      [-first seed] [-steps n] [-every n] [-context n]
+//                      [-threads n]
+//
+// Each seed builds a machine with random RAM, random registers and random
+// code at 0x0100, over the ROM when one is given, and both engines run on
+// forks of it.  After every instruction, or every -every instructions,
+// the register files, the clocks and the logs of memory writes and port
+// accesses are compared.  When a block of several instructions disagrees
+// the two sides go back to the forks taken at the start of the block and
+// step again one instruction at a time, which finds the first instruction
+// that differs.  It is reported with the -context instructions before it,
+// the state before and after on both sides and what each one wrote.  Seeds
+// run in parallel on -threads; the exit code is 2 if any disagreed.
+//
+// The engines are "z80", Z80.step(), and "batch", the BatchZ80 kernels on
+// a batch of one machine, with the Z80 for the opcodes they do not cover.
+public class Lockstep {
+  static final String[] REGS={"AF","BC","DE","HL","AF'","BC'","DE'","HL'","IX","IY","PC","SP","I","R","IFF1","IFF2","IM"};
+  static final int WRITE=1,IN=2,OUT=3;
+  static final String[] KINDS={"","W","IN","OUT"};
+  static final int CODE=0x0100,CODE_SIZE=0x1000;
+
+  // Memory writes and port accesses between two comparisons
+  static class Log implements Memory, Ports {
+    Memory memory;
+    Ports ports;
+    int[] entries;
+    int count;
+
+    Log(Memory m, Ports p) {
+      memory=m;
+      ports=p;
+      entries=new int[64];
+    }
+
+    private void add (int kind, int addr, int data) {
+      if (count==entries.length)
+        entries=Arrays.copyOf(entries,2*count);
+      entries[count++]=kind<<24|(addr&0xFFFF)<<8|(data&0xFF);
+    }
+
+    public int readByte (int addr) {
+      return memory.readByte(addr);
+    }
+
+    public void writeByte (int addr, int data) {
+      add(WRITE,addr,data);
+      memory.writeByte(addr,data);
+    }
+
+    public int in (int addr, long clocks) {
+      int v=ports.in(addr,clocks);
+      add(IN,addr,v);
+      return v;
+    }
+
+    public void out (int addr, int data, long clocks) {
+      add(OUT,addr,data);
+      ports.out(addr,data,clocks);
+    }
+
+    boolean same (Log o) {
+      if (count!=o.count)
+        return false;
+      for (int i=0; i<count; i++)
+        if (entries[i]!=o.entries[i])
+          return false;
+      return true;
+    }
+
+    public String toString() {
+      StringBuilder s=new StringBuilder();
+      for (int i=0; i<count; i++) {
+        int e=entries[i];
+        s.append(i>0?" ":"").append(KINDS[e>>>24]).append(' ').append(hex((e>>8)&0xFFFF,4))
+          .append('=').append(hex(e&0xFF,2));
+      }
+      return count==0?"nothing":s.toString();
+    }
+  }
+
+  abstract static class Engine {
+    String name;
+    MC1000machine machine;
+    Z80 cpu;
+    Log log;
+    long kernels,digest;
+    int[] regs;
+
+    Engine(String name, MC1000machine m) {
+      this.name=name;
+      machine=m;
+      cpu=m.z80core;
+      log=new Log(m.memory,m.ports);
+      cpu.setMemory(log);
+      cpu.setPorts(log);
+      regs=new int[Z80.REG_COUNT];
+    }
+
+    abstract void step();
+
+    // One instruction, opening a new frame when the last one is done
+    void next() {
+      if (cpu.getCyclesToDo()<=0) {
+        machine.endSlice();
+        cpu.beginSlice(MC1000machine.CYCLES_PER_FRAME);
+      }
+      step();
+    }
+
+    // Folds the state after each instruction into digest, so that blocks
+    // compare every instruction in them, not just the last
+    void nextFolded() {
+      next();
+      cpu.getRegisters(regs);
+      long d=digest;
+      for (int i=0; i<regs.length; i++)
+        d=(d+regs[i])*0x9E3779B97F4A7C15L;
+      digest=d+cpu.getClocks();
+    }
+  }
+
+  static Engine engine (String name, MC1000machine m) {
+    if (name.equals("z80"))
+      return new Engine(name,m) {
+        void step() {
+          cpu.step();
+        }
+      };
+    if (name.equals("batch")) {
+      final BatchZ80 batch=new BatchZ80(new MC1000machine[]{m});
+      Engine e=new Engine(name,m) {
+        void step() {
+          if (batch.stepInstruction(0))
+            kernels++;
+        }
+      };
+      batch.mem[0]=e.log;
+      batch.ports[0]=e.log;
+      return e;
+    }
+    throw new IllegalArgumentException("no engine "+name);
+  }
+
+  static MC1000machine machine (long seed, String rom) throws Exception {
+    MC1000machine m=new MC1000machine(false);
+    if (rom!=null)
+      m.memory.loadROM(rom);
+    Random random=new Random(seed);
+    for (int i=0; i<m.memory.ram.length(); i++)
+      m.memory.writeByte(i,random.nextInt(256));
+    int[] r=new int[Z80.REG_COUNT];
+    for (int i=0; i<r.length; i++)
+      r[i]=random.nextInt(0x10000);
+    r[Z80.REG_PC]=CODE+random.nextInt(CODE_SIZE);
+    r[Z80.REG_I]&=0xFF;
+    r[Z80.REG_R]&=0xFF;
+    r[Z80.REG_IFF1]=r[Z80.REG_IFF2]=random.nextInt(2);
+    r[Z80.REG_IM]=random.nextInt(3);
+    m.z80core.setRegisters(r);
+    m.z80core.beginSlice(MC1000machine.CYCLES_PER_FRAME);
+    return m;
+  }
+
+  static String hex (int v, int digits) {
+    String s=Integer.toHexString(v).toUpperCase();
+    while (s.length()<digits)
+      s="0"+s;
+    return s;
+  }
+
+  static String registers (int[] r) {
+    StringBuilder s=new StringBuilder();
+    for (int i=0; i<r.length; i++)
+      s.append(i>0?" ":"").append(REGS[i]).append('=').append(hex(r[i],i>=Z80.REG_I?2:4));
+    return s.toString();
+  }
+
+  // The four bytes at pc, first byte highest
+  static int opcode (Engine e, int pc) {
+    int op=0;
+    for (int i=0; i<4; i++)
+      op=op<<8|e.machine.memory.readByte((pc+i)&0xFFFF);
+    return op;
+  }
+
+  static String instruction (int[] regs, int opcode) {
+    return hex(regs[Z80.REG_PC],4)+" "+hex(opcode,8);
+  }
+
+  static class Seed {
+    long seed,steps;
+    String report;
+  }
+
+  // Steps both sides one instruction at a time from index, keeping the
+  // last instructions for the report; null if they agree throughout
+  static String compare (Engine a, Engine b, long index, long count, int context) {
+    int[] ra=new int[Z80.REG_COUNT],rb=new int[Z80.REG_COUNT];
+    // The registers before each of the last instructions, and their opcodes
+    int[][] trail=new int[context+1][Z80.REG_COUNT];
+    int[] opcodes=new int[context+1];
+    for (long n=0; n<count; n++) {
+      int t=(int)((index+n)%trail.length);
+      int[] before=trail[t];
+      a.cpu.getRegisters(before);
+      opcodes[t]=opcode(a,before[Z80.REG_PC]);
+      a.log.count=0;
+      b.log.count=0;
+      a.next();
+      b.next();
+      a.cpu.getRegisters(ra);
+      b.cpu.getRegisters(rb);
+      if (Arrays.equals(ra,rb) && a.cpu.getClocks()==b.cpu.getClocks() && a.log.same(b.log))
+        continue;
+
+      String fields="";
+      for (int i=0; i<ra.length; i++)
+        if (ra[i]!=rb[i])
+          fields+=" "+REGS[i];
+      if (a.cpu.getClocks()!=b.cpu.getClocks())
+        fields+=" clock";
+      if (!a.log.same(b.log))
+        fields+=" accesses";
+
+      StringBuilder s=new StringBuilder();
+      s.append("first difference at instruction "+(index+n)+", "+instruction(before,opcodes[t])+", in"+fields+"\n");
+      for (long i=Math.max(index+n-context,index); i<index+n; i++) {
+        int k=(int)(i%trail.length);
+        s.append("  "+i+" "+instruction(trail[k],opcodes[k])+" "+registers(trail[k])+"\n");
+      }
+      s.append("  before     "+registers(before)+"\n");
+      s.append("  "+pad(a.name)+" "+registers(ra)+" clock "+a.cpu.getClocks()+"\n");
+      s.append("  "+pad(b.name)+" "+registers(rb)+" clock "+b.cpu.getClocks()+"\n");
+      s.append("  "+pad(a.name)+" "+a.log+"\n");
+      s.append("  "+pad(b.name)+" "+b.log);
+      return s.toString();
+    }
+    return null;
+  }
+
+  private static String pad (String s) {
+    while (s.length()<10)
+      s+=" ";
+    return s;
+  }
+
+  static Seed run (long seed, String rom, String[] names, long steps, int every, int context, long[] kernels) throws Exception {
+    Seed result=new Seed();
+    result.seed=seed;
+    MC1000machine m=machine(seed,rom);
+    Engine a=engine(names[0],m.fork()),b=engine(names[1],m.fork());
+
+    if (every<=1) {
+      result.report=compare(a,b,0,steps,context);
+      result.steps=steps;
+    } else {
+      for (long n=0; n<steps && result.report==null; ) {
+        // The state at the start of the block, to step again from
+        MC1000machine checkA=a.machine.fork(),checkB=b.machine.fork();
+        int block=(int)Math.min(every,steps-n);
+        a.log.count=0;
+        b.log.count=0;
+        for (int i=0; i<block; i++) {
+          a.nextFolded();
+          b.nextFolded();
+        }
+        if (a.digest!=b.digest || !a.log.same(b.log)) {
+          long kernelsA=a.kernels,kernelsB=b.kernels;
+          a=engine(names[0],checkA);
+          b=engine(names[1],checkB);
+          a.kernels=kernelsA;
+          b.kernels=kernelsB;
+          result.report=compare(a,b,n,block,context);
+        }
+        n+=block;
+        result.steps=n;
+      }
+    }
+    synchronized (kernels) {
+      kernels[0]+=a.kernels+b.kernels;
+    }
+    return result;
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    String[] names={"z80","batch"};
+    int seeds=64,every=1,context=8,threads=Runtime.getRuntime().availableProcessors();
+    long first=0,steps=100000;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-engines") && i+1<argv.length)
+        names=argv[++i].split(",");
+      else if (argv[i].equals("-seeds") && i+1<argv.length)
+        seeds=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-first") && i+1<argv.length)
+        first=Long.parseLong(argv[++i]);
+      else if (argv[i].equals("-steps") && i+1<argv.length)
+        steps=Long.parseLong(argv[++i]);
+      else if (argv[i].equals("-every") && i+1<argv.length)
+        every=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-context") && i+1<argv.length)
+        context=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-threads") && i+1<argv.length)
+        threads=Integer.parseInt(argv[++i]);
+      else {
+        System.out.println ("usage: java Lockstep [-rom mc1000.rom] [-engines z80,batch] [-seeds n]");
+        System.out.println ("                     [-first seed] [-steps n] [-every n] [-context n]");
+        System.out.println ("                     [-threads n]");
+        System.exit(1);
+      }
+    }
+    if (names.length!=2) {
+      System.out.println ("-engines takes two engines");
+      System.exit(1);
+    }
+
+    final String r=rom;
+    final String[] e=names;
+    final long s=steps;
+    final int every2=every,context2=context;
+    final long[] kernels=new long[1];
+    ExecutorService pool=Executors.newFixedThreadPool(threads);
+    List<Future<Seed>> results=new ArrayList<Future<Seed>>();
+    long time=System.nanoTime();
+    for (long seed=first; seed<first+seeds; seed++) {
+      final long n=seed;
+      results.add(pool.submit(new Callable<Seed>() {
+        public Seed call() throws Exception {
+          return run(n,r,e,s,every2,context2,kernels);
+        }
+      }));
+    }
+
+    int diverged=0;
+    long total=0;
+    for (Future<Seed> f : results) {
+      Seed seed=f.get();
+      total+=seed.steps;
+      if (seed.report!=null) {
+        diverged++;
+        System.out.println ("seed "+seed.seed+": "+seed.report);
+      }
+    }
+    pool.shutdown();
+    time=System.nanoTime()-time;
+
+    System.out.println (seeds+" seeds, "+total+" instructions on "+names[0]+" and "+names[1]+", "
+      +diverged+" diverged, "+time/1000000+" ms; "+kernels[0]+" instructions through BatchZ80 kernels");
+    if (diverged>0)
+      System.exit(2);
+  }
+}
@@ -0,0 +1,80 @@
+import java.io.*;
+
+// The machine with nothing of a host in it, for hosts other than the
+// applet and for compiling to WebAssembly.
+//
+// The host gives an AssetLoader for the ROM and tapes, a FrameSink for the
+// picture and an InputSource for the keyboard, any of them null when it
+// has no use for it.  step(frames) runs the Z80, memory, ports, PSG
+// keyboard and tape input and draws the MC6847 picture into framebuffer()
+// with nothing but primitives and arrays: no AWT, no threads, no clocks
+// of the host and no Metrics.  The framebuffer is the array the renderer
+// draws into, so a host reading it never copies.
+//
+// Sound stays with the hosts that have an AudioSink; input is taken at
+// the start of each frame instead of at the exact cycle.
+public class MC1000core {
+  public static final int WIDTH=MC6847.WIDTH,HEIGHT=MC6847.HEIGHT;
+
+  MC1000machine machine;
+  AssetLoader assets;
+  FrameSink frames;
+  InputSource input;
+  int[] framebuffer;
+  boolean booted;
+
+  public MC1000core (AssetLoader a, FrameSink f, InputSource i, boolean has48kb) throws IOException {
+    this(a.load("mc1000.rom"),f,i,has48kb);
+    assets=a;
+    if (!booted)
+      throw new IOException("mc1000.rom is missing or not 16kb");
+  }
+
+  // For hosts that hand over the ROM themselves and load no tapes.  No
+  // exceptions on this side, WebAssembly has none: see hasROM()
+  public MC1000core (byte[] rom, FrameSink f, InputSource i, boolean has48kb) {
+    frames=f;
+    input=i;
+    machine=new MC1000machine(has48kb,false);
+    booted=machine.memory.loadROM(rom);
+    framebuffer=machine.vdp.render();
+  }
+
+  public boolean hasROM() {
+    return booted;
+  }
+
+  // Runs whole frames and shows the last one
+  public void step (int n) {
+    Keyboard keys=machine.psg.getKeyboard();
+    for (int i=0; i<n; i++) {
+      if (input!=null)
+        input.poll(keys);
+      machine.z80core.run(MC1000machine.CYCLES_PER_FRAME);
+      machine.endSlice();
+    }
+    machine.vdp.render();
+    if (frames!=null)
+      frames.frame(framebuffer,WIDTH,HEIGHT);
+  }
+
+  // ARGB pixels, WIDTH*HEIGHT of them, redrawn in place by every step
+  public int[] framebuffer() {
+    return framebuffer;
+  }
+
+  public void loadTape (String name) throws CSWError,IOException {
+    byte[] data=assets.load(name);
+    if (data==null)
+      throw new FileNotFoundException(name);
+    DataInputStream in=new DataInputStream(new ByteArrayInputStream(data));
+    if (name.toLowerCase().endsWith(".wav"))
+      machine.tape.readFromWav(in);
+    else
+      machine.tape.readFromStream(in);
+  }
+
+  public MC1000machine getMachine() {
+    return machine;
+  }
+}
@@ -2,20 +2,45 @@ import java.applet.Applet;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
-import javax.swing.*;
+import java.awt.datatransfer.*;
+import java.net.*;
+
+public class MC1000emu extends Applet implements FramePacer.Client {
+  static final double[] SPEEDS={1,2,FramePacer.UNLIMITED,0.5};
 
-public class MC1000emu extends Applet implements ActionListener {
   MC1000machine machine;
-  Timer timer;
+  FramePacer pacer;
+  int speed;
+  String movieFile;
+  TextInjector injector;
+  RewindBuffer rewind;
+  volatile boolean rewinding;
+  RunAhead runAhead;
+  BufferedImage frame;
 
-  public void actionPerformed(ActionEvent e) {
-    machine.z80core.run(59600);
+  public void runFrame() {
+    if (rewinding)
+      try {
+        rewind.stepBack(machine);
+      } catch (Exception ex) {
+        ex.printStackTrace();
+      }
+    else {
+      machine.runFrame();
+      if (rewind!=null)
+        rewind.record(machine);
+    }
+  }
+
+  public void drawFrame() {
+    frame=runAhead.draw();
     paint(getGraphics());
   }
 
   public void paint (Graphics g) {
-    BufferedImage buffer=machine.vdp.draw();
-    g.drawImage(buffer,0,0,null);
+    if (frame==null)
+      frame=machine.vdp.draw();
+    g.drawImage(frame,0,0,null);
   }
 
   public void update(Graphics g) {}
@@ -36,21 +61,96 @@ public class MC1000emu extends Applet implements ActionListener {
       machine.memory.loadROM(getCodeBase());
       if (tape!=null)
         machine.tape.readFromURL(this,tape);
+      if (getParameter("hle")!=null) {
+        Hle hle=new Hle(machine);
+        hle.load(new URL(getCodeBase(),getParameter("hle")));
+        if (getParameter("turbo")!=null)
+          hle.setTurbo(Integer.parseInt(getParameter("turbo")));
+      }
     } catch (Exception e) {
       e.printStackTrace();
       System.exit(1);
     }
     
-    timer=new Timer (16,this);
+    movieFile=getParameter("record");
+    if (movieFile!=null)
+      machine.psg.getKeyboard().startRecording(new InputMovie(machine));
+
+    if (getParameter("keytrap")!=null)
+      injector=new TextInjector(machine,Integer.parseInt(getParameter("keytrap"),16));
+    else
+      injector=new TextInjector(machine);
+
+    runAhead=new RunAhead(machine,0);
+    if (getParameter("runahead")!=null)
+      runAhead.setFrames(Integer.parseInt(getParameter("runahead")));
+
+    if (getParameter("rewind")!=null) {
+      rewind=new RewindBuffer(Integer.parseInt(getParameter("rewind")));
+      rewind.attach(machine);
+    }
+
+    if (!"off".equals(getParameter("sound")))
+      machine.psg.enableAudio(JavaSoundSink.openDefault(44100),44100,true);
+
+    pacer=new FramePacer(this);
+    if (getParameter("speed")!=null)
+      pacer.setSpeed(Double.parseDouble(getParameter("speed")));
     addKeyListener (machine.psg.getKeyListener());
+    addKeyListener (new KeyAdapter() {
+      public void keyPressed (KeyEvent e) {
+        if (e.getKeyCode()==KeyEvent.VK_INSERT && e.isShiftDown())
+          paste();
+        if (e.getKeyCode()==KeyEvent.VK_F8 && rewind!=null)
+          rewinding=true;
+        if (e.getKeyCode()==KeyEvent.VK_F9) {
+          speed=(speed+1)%SPEEDS.length;
+          pacer.setSpeed(SPEEDS[speed]);
+        }
+      }
+
+      // F8 rewinds one frame per tick while held; F9 steps through the
+      // speeds
+      public void keyReleased (KeyEvent e) {
+        if (e.getKeyCode()==KeyEvent.VK_F8)
+          rewinding=false;
+      }
+    });
+  }
+
+  // Shift+Insert types the clipboard into the machine
+  public void paste () {
+    try {
+      Clipboard clipboard=Toolkit.getDefaultToolkit().getSystemClipboard();
+      injector.type((String)clipboard.getData(DataFlavor.stringFlavor));
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
   }
 
   public void start () {
-    timer.start();
+    pacer.start();
   }
 
   public void stop () {
-    timer.stop();
+    pacer.stop();
+    if (machine.metrics()!=null) {
+      System.out.println (machine.metrics());
+      System.out.println (pacer);
+    }
+    machine.psg.disableAudio();
+    if (rewind!=null)
+      rewind.close();
+    if (movieFile!=null) {
+      InputMovie movie=machine.psg.getKeyboard().stopRecording();
+      if (movie!=null)
+        try {
+          movie.finish(machine);
+          movie.write(movieFile);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+    }
   }
 
   public String getAppletInfo() {
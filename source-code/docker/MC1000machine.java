@@ -1,4 +1,18 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
 public class MC1000machine {
+  public static final int CYCLES_PER_FRAME=59600;
+
+  // Save-state sections, each written as tag, length and payload so that a
+  // reader skips the sections it does not know
+  static final int STATE_CPU=0x43505520;   // "CPU "
+  static final int STATE_RAM=0x52414D20;   // "RAM "
+  static final int STATE_VDP=0x56445020;   // "VDP "
+  static final int STATE_PSG=0x50534720;   // "PSG "
+  static final int STATE_MEDIA=0x4D454449; // "MEDI"
 
   public MC1000memory memory;
   public MC1000ports ports;
@@ -6,14 +20,226 @@ public class MC1000machine {
   public MC6847 vdp;
   public AY38912 psg;
   public CSW tape;
+  MachineState quick;
+  Metrics metrics;
+  Debugger debugger;
+  private Map<Integer,Integer> sectionSizes;
 
   MC1000machine(boolean has48kb) {
+    this(has48kb,Boolean.getBoolean(Metrics.PROPERTY));
+  }
+
+  // Without measures the machine never touches Metrics, as MC1000core needs
+  MC1000machine(boolean has48kb, boolean measured) {
     vdp=new MC6847(this); 
     memory=new MC1000memory(this,has48kb);    
     ports=new MC1000ports(this);    
     z80core=new Z80(this,false,0xc000);
     psg=new AY38912(this);
     tape=new CSW(this);
+    if (measured)
+      metrics=new Metrics();
+  }
+
+  // A child that shares the RAM and VRAM pages copy-on-write, and the ROM
+  // and tape as they are, starting from this machine's current state.
+  // Pending input events and devices attached to the ports later stay
+  // with the parent.  Call it from the thread running this machine; the
+  // child may then run on any thread.
+  public MC1000machine fork() {
+    return new MC1000machine(this);
+  }
+
+  private MC1000machine(MC1000machine parent) {
+    vdp=parent.vdp.fork(this);
+    memory=parent.memory.fork(this);
+    ports=new MC1000ports(this);
+    z80core=new Z80(this,false,0xc000);
+    psg=new AY38912(this);
+    tape=parent.tape;
+    if (parent.metrics!=null)
+      metrics=new Metrics();
+
+    ByteBuffer b=ByteBuffer.allocate(256);
+    parent.z80core.saveState(b);
+    parent.psg.saveState(b);
+    b.flip();
+    z80core.loadState(b);
+    psg.loadState(b);
+  }
+
+  // Returns early when a debugger stops the machine; the next call runs
+  // the rest of the frame
+  public void runFrame() {
+    if (metrics!=null)
+      metrics.beginFrame(this);
+    if (debugger==null)
+      z80core.run(CYCLES_PER_FRAME);
+    // Armed before or during the slice, the rest of it runs on the debugger
+    if (debugger!=null && !debugger.runFrame())
+      return;
+    endSlice();
+    if (metrics!=null)
+      metrics.endFrame(this);
+  }
+
+  // What is done after every slice: logged port writes are handed over and
+  // the sound up to here is rendered
+  public void endSlice() {
+    ports.endSlice();
+    psg.endSlice(z80core.getClocks());
+  }
+
+  // What the machine has done so far, or null unless started with
+  // -Dmc1000.metrics=true
+  public Metrics.Snapshot metrics() {
+    if (metrics==null)
+      return null;
+    return metrics.snapshot(this);
+  }
+
+  public boolean has48kb() {
+    return memory.ram.length()>16384;
+  }
+
+  // In-memory state, for undoing frames run ahead
+  public void quickSave() {
+    if (quick==null)
+      quick=new MachineState();
+    quick.capture(this);
+  }
+
+  public void quickLoad() {
+    try {
+      quick.restore(this);
+    } catch (IOException e) {
+      // Cannot happen, the state was taken from this very machine
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  // Upper bound of the bytes saveState writes
+  public int stateSize() {
+    return 5*8+Z80.REG_COUNT*4+64+memory.ram.length()+5+0x1800+4+64+16;
+  }
+
+  public void saveState (ByteBuffer b) {
+    int start;
+
+    // First, so that a state from another ROM is refused before any change
+    start=beginSection(b,STATE_MEDIA);
+    b.putLong(memory.romChecksum());
+    b.putLong(tape.getChecksum());
+    endSection(b,start);
+    start=beginSection(b,STATE_CPU);
+    z80core.saveState(b);
+    endSection(b,start);
+    start=beginSection(b,STATE_RAM);
+    memory.saveState(b);
+    endSection(b,start);
+    start=beginSection(b,STATE_VDP);
+    vdp.saveState(b);
+    endSection(b,start);
+    start=beginSection(b,STATE_PSG);
+    psg.saveState(b);
+    endSection(b,start);
+  }
+
+  // The state must come from the same ROM, the tape is the caller's concern.
+  // Every section is checked before any is applied, so a state that is
+  // refused leaves the machine as it was.
+  public void loadState (ByteBuffer b) throws IOException {
+    int start=b.position();
+    while (b.remaining()>=8) {
+      int tag=b.getInt();
+      int length=b.getInt();
+      if (length<0 || length>b.remaining())
+        throw new IOException("state is cut short");
+      int size=sectionSize(tag);
+      if (size>=0 && length!=size)
+        throw new IOException("state section has the wrong size");
+      if (tag==STATE_MEDIA && b.getLong(b.position())!=memory.romChecksum())
+        throw new IOException("state was saved with a different ROM");
+      if (tag==STATE_RAM && b.getInt(b.position()+1)!=memory.ram.length())
+        throw new IOException("state was saved with a different RAM size");
+      b.position(b.position()+length);
+    }
+
+    b.position(start);
+    while (b.remaining()>=8) {
+      int tag=b.getInt();
+      int length=b.getInt();
+      ByteBuffer section=b.slice();
+      section.limit(length);
+      b.position(b.position()+length);
+
+      switch (tag) {
+        case STATE_CPU:
+          z80core.loadState(section);
+          break;
+        case STATE_RAM:
+          memory.loadState(section);
+          break;
+        case STATE_VDP:
+          vdp.loadState(section);
+          break;
+        case STATE_PSG:
+          psg.loadState(section);
+          break;
+      }
+    }
+  }
+
+  // The length saveState gives a section, -1 for a tag it does not write.
+  // Measured once on this machine, every section has a fixed size.
+  private int sectionSize (int tag) {
+    if (sectionSizes==null) {
+      Map<Integer,Integer> sizes=new HashMap<Integer,Integer>();
+      ByteBuffer b=ByteBuffer.allocate(stateSize());
+      saveState(b);
+      b.flip();
+      while (b.remaining()>=8) {
+        int t=b.getInt();
+        int length=b.getInt();
+        sizes.put(t,length);
+        b.position(b.position()+length);
+      }
+      sectionSizes=sizes;
+    }
+    Integer size=sectionSizes.get(tag);
+    return size==null?-1:size;
+  }
+
+  private static int beginSection (ByteBuffer b, int tag) {
+    b.putInt(tag);
+    b.putInt(0);
+    return b.position();
+  }
+
+  private static void endSection (ByteBuffer b, int start) {
+    b.putInt(start-4,b.position()-start);
+  }
+
+  // CRC of everything the guest can observe, used to check replays
+  public long stateHash() {
+    CRC32 crc=new CRC32();
+    int[] regs=new int[Z80.REG_COUNT];
+
+    z80core.getRegisters(regs);
+    for (int i=0; i<regs.length; i++)
+      updateWord(crc,regs[i]);
+    for (int i=0; i<memory.ram.length(); i++)
+      crc.update(memory.ram.read(i));
+    RamPages vram=vdp.getVRAM();
+    for (int i=0; i<vram.length(); i++)
+      crc.update(vram.read(i));
+    crc.update(vdp.mode);
+    return crc.getValue();
+  }
+
+  private static void updateWord (CRC32 crc, int v) {
+    crc.update(v);
+    crc.update(v>>8);
   }
   
 }
@@ -1,29 +1,80 @@
 import java.io.*;
 import java.lang.*;
 import java.net.*;
+import java.nio.*;
 import java.util.zip.*;
 
+// The 64kb the Z80 sees, in pages of RamPages.PAGE_SIZE.
+//
+// Each page has a type byte, and readByte and writeByte look at nothing
+// else to pick where an access goes: RAM pages go to the RamPages, ROM
+// pages to the ROM array, unmapped pages read 0xFF and drop writes, and
+// DEVICE pages call the Memory mapped there with the full address.  Only
+// pages with side effects are devices, so ordinary RAM pays for none of
+// them.  The VRAM window at 0x8000-0x97FF is a device mapped and unmapped
+// by port 0x80; map() puts others in place of whole pages.
 public class MC1000memory implements Memory {
-  int[] ram;
+  static final int PAGE_SHIFT=RamPages.PAGE_SHIFT;
+  static final int PAGES=0x10000>>PAGE_SHIFT;
+  static final int VRAM_START=0x8000,VRAM_END=0x9800;
+  static final byte UNMAPPED=0,RAM=1,ROM=2,DEVICE=3;
+
+  RamPages ram;
   int[] rom;
   boolean vramEnabled;
+  long romCrc;
   MC1000machine machine;
+  // One page more, as an instruction at 0xFFFF fetches from 0x10000 on
+  byte[] types;
+  Memory[] devices;
+
+  final Memory vram=new Memory() {
+    public void writeByte (int addr, int data) {
+      machine.vdp.getVRAM().write(addr-VRAM_START,data);
+      if (machine.metrics!=null)
+        machine.metrics.vramWrite();
+    }
+
+    public int readByte (int addr) {
+      return machine.vdp.getVRAM().read(addr-VRAM_START);
+    }
+  };
 
   MC1000memory (MC1000machine m, boolean has48k) { 
     machine=m;
     if (has48k)
-      ram=new int[48*1024];
+      ram=new RamPages(48*1024);
     else
-      ram=new int[16384];
+      ram=new RamPages(16384);
       
     rom=new int[16384];
     vramEnabled=false;
-
-    for (int i=0; i<ram.length; i++)
-      ram[i]=0;
+    romCrc=-1;
 
     for (int i=0; i<rom.length; i++)
       rom[i]=0;
+
+    types=new byte[PAGES+1];
+    devices=new Memory[PAGES+1];
+    for (int p=0; p<types.length; p++)
+      types[p]=standard(p);
+  }
+
+  // A child sharing the RAM pages copy-on-write and the ROM as it is
+  private MC1000memory (MC1000machine m, MC1000memory parent) {
+    machine=m;
+    ram=parent.ram.fork();
+    rom=parent.rom;
+    romCrc=parent.romCrc;
+    vramEnabled=parent.vramEnabled;
+    types=parent.types.clone();
+    devices=new Memory[PAGES+1];
+    for (int p=0; p<devices.length; p++)
+      devices[p]=parent.devices[p]==parent.vram?vram:parent.devices[p];
+  }
+
+  public MC1000memory fork (MC1000machine m) {
+    return new MC1000memory(m,this);
   }
 
   public void loadROM (URL codeBase) throws IOException {
@@ -31,16 +82,123 @@ public class MC1000memory implements Memory {
       //URL http=new URL (codeBase,"mc1000.rom.gz");
       //DataInput in=new DataInputStream (new GZIPInputStream (http.openStream()));
       URL http=new URL (codeBase,"mc1000.rom");
-      DataInput in=new DataInputStream ((http.openStream()));
-      for (int i=0; i<16384; i++)
-        rom[i]=in.readByte()&0xFF;
+      loadROM (http.openStream());
     } catch (Exception e) {
       throw new IOException();
     }	
   }
 
+  public void loadROM (String file) throws IOException {
+    loadROM (new FileInputStream (file));
+  }
+
+  // A new array each time, as forked machines may share the old one
+  public void loadROM (InputStream stream) throws IOException {
+    DataInputStream in=new DataInputStream (new BufferedInputStream (stream));
+    try {
+      int[] r=new int[16384];
+      for (int i=0; i<16384; i++)
+        r[i]=in.readByte()&0xFF;
+      rom=r;
+      romCrc=-1;
+    } finally {
+      in.close();
+    }
+  }
+
+  // False, and the ROM as it was, unless the image has 16kb; it throws
+  // nothing, as MC1000core must not
+  public boolean loadROM (byte[] image) {
+    if (image==null || image.length<16384)
+      return false;
+    int[] r=new int[16384];
+    for (int i=0; i<16384; i++)
+      r[i]=image[i]&0xFF;
+    rom=r;
+    romCrc=-1;
+    return true;
+  }
+
+  public long romChecksum() {
+    if (romCrc<0) {
+      CRC32 crc=new CRC32();
+      for (int i=0; i<rom.length; i++)
+        crc.update(rom[i]);
+      romCrc=crc.getValue();
+    }
+    return romCrc;
+  }
+
+  public void saveState (ByteBuffer b) {
+    b.put((byte)(vramEnabled?1:0));
+    b.putInt(ram.length());
+    ram.get(b);
+  }
+
+  public void loadState (ByteBuffer b) throws IOException {
+    setVram(b.get()!=0);
+    if (b.getInt()!=ram.length())
+      throw new IOException("state was saved with a different RAM size");
+    ram.put(b);
+  }
+
+  // The four bytes from addr on, the first in the low bits, read as
+  // readByte would; RAM and ROM pages are read without going through it
+  public long fetch4 (int addr) {
+    int last=(addr+3)&0xFFFF;
+    byte type=types[addr>>PAGE_SHIFT];
+    if (last>addr && type==types[last>>PAGE_SHIFT]) {
+      if (type==RAM)
+        return ram.read(addr)|ram.read(addr+1)<<8|ram.read(addr+2)<<16|(long)ram.read(last)<<24;
+      if (type==ROM) {
+        int a=addr-0xC000;
+        return rom[a]|rom[a+1]<<8|rom[a+2]<<16|(long)rom[a+3]<<24;
+      }
+    }
+    return readByte(addr)|readByte((addr+1)&0xFFFF)<<8
+      |readByte((addr+2)&0xFFFF)<<16|(long)readByte(last)<<24;
+  }
+
+  // The type of page p with no devices on it
+  byte standard (int p) {
+    int addr=p<<PAGE_SHIFT;
+    if (addr<ram.length())
+      return RAM;
+    if (addr>=0xC000 && addr<=0xFFFF)
+      return ROM;
+    return UNMAPPED;
+  }
+
+  // Puts a device in place of the pages from addr to addr+size, which
+  // must start and end on page boundaries.  Pages in the VRAM window go
+  // back to VRAM when port 0x80 switches it on.
+  public void map (int addr, int size, Memory device) {
+    for (int p=addr>>PAGE_SHIFT; p<(addr+size)>>PAGE_SHIFT; p++) {
+      types[p]=DEVICE;
+      devices[p]=device;
+    }
+  }
+
+  // Back to RAM, ROM or nothing, as the machine has it
+  public void unmap (int addr, int size) {
+    for (int p=addr>>PAGE_SHIFT; p<(addr+size)>>PAGE_SHIFT; p++) {
+      types[p]=standard(p);
+      devices[p]=null;
+    }
+  }
+
+  void setVram (boolean enabled) {
+    if (enabled==vramEnabled)
+      return;
+    vramEnabled=enabled;
+    if (enabled)
+      map(VRAM_START,VRAM_END-VRAM_START,vram);
+    else
+      unmap(VRAM_START,VRAM_END-VRAM_START);
+  }
+
   public void vramStatus (int set) {
-    vramEnabled=(set&1)==0;
+    setVram((set&1)==0);
   }
 
   public void vram80Status (int set) {
@@ -48,26 +206,24 @@ public class MC1000memory implements Memory {
   }
 
   public void writeByte(int addr,int data) {
-    if (addr>=0x8000 && addr<0x9800 && vramEnabled) {
-      machine.vdp.getVRAM()[addr-0x8000]=data;
-      //System.out.println ("write ("+Integer.toHexString(addr)+")="+Integer.toHexString(data));
-    } else if (addr<ram.length)
-      ram[addr]=data;
+    int p=addr>>PAGE_SHIFT;
+    byte type=types[p];
+    if (type==RAM)
+      ram.write(addr,data);
+    else if (type==DEVICE)
+      devices[p].writeByte(addr,data);
   }
 
   public int readByte(int addr) {
-    int ret;
-
-    if (addr>=0x8000 && addr<0x9800 && vramEnabled)
-      ret=machine.vdp.getVRAM()[addr-0x8000];
-    else if (addr<ram.length)
-      ret=ram[addr];
-    else if (addr>=0xC000 && addr<=0xFFFF)
-      ret=rom[addr-0xC000];
-    else ret=0xFF;
-
-    //System.out.println ("IN ("+Integer.toHexString(addr)+")="+Integer.toHexString(ret));
-    return ret&0xFF;
+    int p=addr>>PAGE_SHIFT;
+    byte type=types[p];
+    if (type==RAM)
+      return ram.read(addr);
+    if (type==ROM)
+      return rom[addr-0xC000];
+    if (type==DEVICE)
+      return devices[p].readByte(addr)&0xFF;
+    return 0xFF;
   }
 
-}
\ No newline at end of file
+}
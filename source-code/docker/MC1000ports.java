@@ -1,57 +1,145 @@
-import java.math.BigInteger;
-import java.lang.Integer;
-
+// The 256 I/O ports, each with the device on it.
+//
+// The table is built with the machine.  in() and out() take the low byte
+// of the port, index the table with it and call the device with that byte
+// and the cycle; a port with nothing on it reads 0xFF and drops writes.
+// attach() puts a device on a port.  A device that can take its writes
+// late goes through batch(), which gives a WriteLog flushed by endSlice();
+// PSGsynth gets the PSG register writes that way.  With Metrics on, every
+// access is counted per port there.
 public class MC1000ports implements Ports {
+  static final int LOG_SIZE=4096;
+
+  static final Ports OPEN=new Ports() {
+    public void out (int port, int data, long clocks) {}
+
+    public int in (int port, long clocks) {
+      return 0xFF;
+    }
+  };
+
   MC1000machine machine;
+  Ports[] devices;
+  WriteLog[] logs;
+  int logCount;
 
   MC1000ports(MC1000machine m) {
     machine=m;
+    devices=new Ports[256];
+    for (int i=0; i<devices.length; i++)
+      devices[i]=OPEN;
+    logs=new WriteLog[4];
+
+    // PSG register select, read and write
+    attach(0x20,new Ports() {
+      public void out (int port, int data, long clocks) {
+        machine.psg.setRegister(data);
+      }
+
+      public int in (int port, long clocks) {
+        return 0xFF;
+      }
+    });
+    attach(0x40,new Ports() {
+      public void out (int port, int data, long clocks) {}
+
+      public int in (int port, long clocks) {
+        return machine.psg.readRegister(clocks);
+      }
+    });
+    attach(0x60,new Ports() {
+      public void out (int port, int data, long clocks) {
+        machine.psg.writeRegister(data,clocks);
+      }
+
+      public int in (int port, long clocks) {
+        return 0xFF;
+      }
+    });
+    // VRAM in the memory map and the MC6847 mode
+    attach(0x80,new Ports() {
+      public void out (int port, int data, long clocks) {
+        machine.memory.vramStatus(data);
+        machine.vdp.changeMode(data);
+      }
+
+      public int in (int port, long clocks) {
+        return 0xFF;
+      }
+    });
+    // 80 columns: 0x10 and 0x11 not implemented yet
+    attach(0x12,new Ports() {
+      public void out (int port, int data, long clocks) {
+        machine.memory.vram80Status(data);
+      }
+
+      public int in (int port, long clocks) {
+        return 0xFF;
+      }
+    });
   }
-  
-  public void out(int addr,int data, BigInteger clocks) {
-    addr&=0xFF;
-    //System.out.println ("OUT ("+Integer.toHexString(addr)+")="+Integer.toHexString(data));
-    switch (addr) {
-      case 0x20: 
-        machine.psg.setRegister (data);
-	break;
-      case 0x60: 
-        machine.psg.writeRegister (data);
-	break;
-      case 0x80:
-	machine.memory.vramStatus (data);
-	machine.vdp.changeMode (data);
-	break;
-      case 0x10:
-      case 0x11:
-	// support for 80 columns not implemented yet 
-	break;
-      case 0x12:
-	machine.memory.vram80Status (data);
-	break;
-      default:
-        //System.out.println ("OUT ("+Integer.toHexString(addr)+")="+Integer.toHexString(data));
+
+  public void attach (int port, Ports device) {
+    devices[port&0xFF]=device==null?OPEN:device;
+  }
+
+  // A log for the device's writes, to write to in its place
+  public WriteLog batch (Ports device) {
+    WriteLog log=new WriteLog(device,LOG_SIZE);
+    if (logCount==logs.length) {
+      WriteLog[] l=new WriteLog[logs.length*2];
+      for (int i=0; i<logCount; i++)
+        l[i]=logs[i];
+      logs=l;
     }
+    logs[logCount++]=log;
+    return log;
+  }
+
+  // Stops flushing the log; its writes still waiting are dropped
+  public void unbatch (WriteLog log) {
+    for (int i=0; i<logCount; i++)
+      if (logs[i]==log) {
+        logs[i]=logs[--logCount];
+        logs[logCount]=null;
+        log.clear();
+        return;
+      }
+  }
+
+  // Hands the logged writes to their devices; called at the end of every
+  // slice
+  public void endSlice() {
+    for (int i=0; i<logCount; i++)
+      logs[i].flush();
   }
 
-  public int in(int addr, BigInteger clocks) {
-    int ret;
+  // The ports with a device on them, in order
+  public int[] attached() {
+    int n=0;
+    for (int i=0; i<devices.length; i++)
+      if (devices[i]!=OPEN)
+        n++;
+    int[] p=new int[n];
+    n=0;
+    for (int i=0; i<devices.length; i++)
+      if (devices[i]!=OPEN)
+        p[n++]=i;
+    return p;
+  }
+
+  public void out(int addr,int data, long clocks) {
     addr&=0xFF;
-    //System.out.println ("IN ("+Integer.toHexString(addr)+")");
-    switch (addr) {
-      case 0x10:
-      case 0x11:
-	// support for 80 columns not implemented yet 
-	ret=0xFF;
-	break;
-      case 0x40: 
-        ret=machine.psg.readRegister (clocks);
-	break;
-      default:
-        //System.out.println ("IN ("+Integer.toHexString(addr)+")");
-	ret=0xFF;
-    }
-    return ret;
+    if (machine.metrics!=null)
+      machine.metrics.port(addr);
+    devices[addr].out(addr,data,clocks);
+  }
+
+  public int in(int addr, long clocks) {
+    addr&=0xFF;
+    if (machine.metrics!=null)
+      machine.metrics.port(addr);
+    return devices[addr].in(addr,clocks);
   }
 
-}
\ No newline at end of file
+}
@@ -1,12 +1,14 @@
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.*;
 
 public class MC6847 {
+  public static final int WIDTH=256,HEIGHT=192;
+
   BufferedImage buffer;
-  boolean[] charset;
   int[] rgbdata;
-  int[] vram;
+  RamPages vram;
   int mode;
   MC1000machine machine;
 
@@ -24,33 +26,84 @@ public class MC6847 {
 
   MC6847(MC1000machine m) {
     machine=m;
-    buffer=new BufferedImage (256,192,BufferedImage.TYPE_INT_ARGB);
-    rgbdata=new int[256*192];
-    vram=new int[0x1800];
+    vram=new RamPages(0x1800);
+  }
 
-    for (int i=0; i<256*192; i++)
-      rgbdata[i]=opaqueGreen;
+  // A child sharing the VRAM pages copy-on-write
+  private MC6847(MC1000machine m, MC6847 parent) {
+    machine=m;
+    vram=parent.vram.fork();
+    mode=parent.mode;
+  }
 
-    for (int i=0; i<0x1800; i++)
-      vram[i]=0;
+  public MC6847 fork (MC1000machine m) {
+    return new MC6847(m,this);
+  }
 
-    charset=new boolean[512*12];
-    for (int i=0; i<7*512/32; i++) 
-      for (int j=0; j<32; j++)
-	charset[3*512+i*32+j]=((charsetComp[i]>>(31-j))&1)>0;
+  // The frame buffers are only needed once the machine is displayed
+  private void allocatePixels() {
+    if (rgbdata!=null)
+      return;
+    rgbdata=new int[WIDTH*HEIGHT];
+    for (int i=0; i<WIDTH*HEIGHT; i++)
+      rgbdata[i]=opaqueGreen;
+  }
+
+  // The image is a view of the pixels, no copy per frame
+  private void allocateFrame() {
+    if (buffer!=null)
+      return;
+    allocatePixels();
+    DataBufferInt data=new DataBufferInt(rgbdata,rgbdata.length);
+    int[] masks={0xFF0000,0xFF00,0xFF,0xFF000000};
+    buffer=new BufferedImage(ColorModel.getRGBdefault(),
+      Raster.createPackedRaster(data,WIDTH,HEIGHT,WIDTH,masks,null),false,null);
   }
 
-  public int[] getVRAM() {
+  public RamPages getVRAM() {
     return vram;
   }
 
+  public void saveState (ByteBuffer b) {
+    b.putInt(mode);
+    vram.get(b);
+  }
+
+  public void loadState (ByteBuffer b) {
+    changeMode(b.getInt());
+    vram.put(b);
+  }
+
   public void changeMode (int m) {
     //System.out.println ("mode: "+Integer.toHexString(m));
     mode=m;
   }
 
   public BufferedImage draw() {
-    BufferedImage image;
+    allocateFrame();
+    render();
+    return buffer;
+  }
+
+  // Draws the frame into the caller's pixels and keeps no buffer of its
+  // own, for hosts that share a few buffers among many machines
+  public int[] render (int[] pixels) {
+    int[] own=rgbdata;
+    rgbdata=pixels;
+    try {
+      return render();
+    } finally {
+      rgbdata=own;
+    }
+  }
+
+  // Draws the frame into the ARGB pixels, WIDTH*HEIGHT of them, and
+  // returns them; the array stays the same from frame to frame
+  public int[] render() {
+    int[] image;
+
+    if (machine!=null && machine.metrics!=null)
+      machine.metrics.draw();
     
     if ((mode&0xE0)==0) 
       image=drawText();
@@ -70,37 +123,38 @@ public class MC6847 {
     }
     
     // Draw tape progress bar
-    if (machine.psg.hasTapeStarted())
+    if (machine!=null && machine.psg.hasTapeStarted())
       if (machine.psg.tapeProgress()<100)
     {
       for (int i=0; i<102; i++) {
-        image.setRGB (77+i,180,opaqueWhite); 
-        image.setRGB (77+i,188,opaqueWhite); 
+        image[180*WIDTH+77+i]=opaqueWhite; 
+        image[188*WIDTH+77+i]=opaqueWhite; 
       }
       for (int i=181; i<188; i++) {
-        image.setRGB (77,i,opaqueWhite); 
-        image.setRGB (77+102,i,opaqueWhite); 
+        image[i*WIDTH+77]=opaqueWhite; 
+        image[i*WIDTH+77+102]=opaqueWhite; 
       }
       for (int i=0; i<machine.psg.tapeProgress(); i++) {
       	for (int j=181; j<188; j++) 
-        image.setRGB (78+i,j,opaqueWhite); 
+        image[j*WIDTH+78+i]=opaqueWhite; 
       }
     }
     
     return image;
   }
 
-  public BufferedImage drawGR () {
+  public int[] drawGR () {
     int i,j,ii,c,posput;
     int colorGR0[]={opaqueGreen,opaqueYellow,opaqueBlue,opaqueRed};
     int colorGR1[]={opaqueWhite,opaqueCyan,opaqueMagenta,opaqueOrange};
     int colorGR[];
 
+    allocatePixels();
     colorGR=(mode&2)==0?colorGR0:colorGR1;
     
     for (j=0; j<64; j++)
       for (i=0; i<32; i++) {
-	c=vram[(j<<5)+i];
+	c=vram.read((j<<5)+i);
 	posput=j*768+(i<<3);
 	for (ii=0; ii<4; ii++) {
 	  rgbdata[posput+0+0*256]=
@@ -113,27 +167,28 @@ public class MC6847 {
 	  posput+=2;
 	}
       }
-    buffer.setRGB (0,0,256,192,rgbdata,0,256);
-    return buffer;
+    return rgbdata;
   }
 
-  public BufferedImage drawHGR () {
+  public int[] drawHGR () {
     int i,j,ii,c,posput,colorHGR[]={opaqueBlack,opaqueGreen};
+
+    allocatePixels();
     for (j=0; j<192; j++)
       for (i=0; i<32; i++) {
-	c=vram[(j<<5)+i];
+	c=vram.read((j<<5)+i);
 	posput=(j<<8)+(i<<3);
 	for (ii=0; ii<8; ii++) 
 	  rgbdata[posput+ii]=colorHGR[(c>>(7-ii))&1];
       }
-    buffer.setRGB (0,0,256,192,rgbdata,0,256);
-    return buffer;
+    return rgbdata;
   }
 
-  public BufferedImage drawText () {
+  public int[] drawText () {
     int i,j,ii,jj,posget,posput,c;
     int front,back;
 
+    allocatePixels();
     //    System.out.println ("mode="+Integer.toHexString(mode));
     front=((mode&2)==0)?opaqueLightYellow:opaqueWhite;
     back=((mode&2)==0)?opaqueDarkGreen:opaqueRed;
@@ -145,7 +200,7 @@ public class MC6847 {
     for (j=0; j<16; j++)
       for (jj=0; jj<12; jj++)
   	for (i=0; i<32; i++) {
-	  c=vram[(j<<5)+i];
+	  c=vram.read((j<<5)+i);
 	  posget=(((c+32)&63)<<3)+(jj<<9)+1;
 	  posput=32+(((j*12)+jj)<<8)+(i*6);
 	  if ((c&128)>0)
@@ -155,8 +210,7 @@ public class MC6847 {
   	    for (ii=0; ii<6; ii++)
 	      rgbdata[posput+ii]=(charset[posget+ii]?front:back);
 	}
-    buffer.setRGB (0,0,256,192,rgbdata,0,256);
-    return buffer;
+    return rgbdata;
   }
 
   private static final int charsetComp[] = {
@@ -176,4 +230,15 @@ public class MC6847 {
 	472005660,1010704414,572267554,1042424382,538583580,136054818,570965532,35391488
   };
 
-}
\ No newline at end of file
+  // Shared by every instance, it is never written after this
+  private static final boolean charset[]=expandCharset();
+
+  private static boolean[] expandCharset() {
+    boolean[] c=new boolean[512*12];
+    for (int i=0; i<7*512/32; i++) 
+      for (int j=0; j<32; j++)
+	c[3*512+i*32+j]=((charsetComp[i]>>(31-j))&1)>0;
+    return c;
+  }
+
+}
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+// Save-state files: a small header followed by the machine sections.
+//
+//   "MC1KSAVE" version(2) flags(2) payload length(4) payload
+//
+// With FLAG_DEFLATE the payload is deflated.  Loading maps the file, so an
+// uncompressed state goes from the page cache into the machine without being
+// copied through a stream.
+public class MachineState {
+  static final byte[] MAGIC={'M','C','1','K','S','A','V','E'};
+  static final int VERSION=1;
+  static final int HEADER_SIZE=16;
+  static final int FLAG_DEFLATE=1;
+
+  ByteBuffer buffer;
+
+  MachineState() {
+    buffer=ByteBuffer.allocate(0);
+  }
+
+  // Capture the machine into the in-memory buffer, reused between calls
+  public ByteBuffer capture (MC1000machine m) {
+    int size=m.stateSize();
+    if (buffer.capacity()<size)
+      buffer=ByteBuffer.allocate(size);
+    buffer.clear();
+    m.saveState(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  public void restore (MC1000machine m) throws IOException {
+    buffer.rewind();
+    m.loadState(buffer);
+  }
+
+  public static void save (MC1000machine m, String name, boolean compress) throws IOException {
+    ByteBuffer payload=new MachineState().capture(m);
+    int flags=0;
+
+    if (compress) {
+      Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+      byte[] out=new byte[payload.limit()+payload.limit()/100+64];
+      deflater.setInput(payload.array(),0,payload.limit());
+      deflater.finish();
+      int n=deflater.deflate(out);
+      deflater.end();
+      payload=ByteBuffer.wrap(out,0,n);
+      flags|=FLAG_DEFLATE;
+    }
+
+    ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+    header.put(MAGIC);
+    header.putShort((short)VERSION);
+    header.putShort((short)flags);
+    header.putInt(payload.remaining());
+    header.flip();
+
+    FileChannel channel=new RandomAccessFile(name,"rw").getChannel();
+    try {
+      channel.truncate(0);
+      while (header.hasRemaining() || payload.hasRemaining())
+        channel.write(new ByteBuffer[] {header,payload});
+    } finally {
+      channel.close();
+    }
+  }
+
+  public static void load (MC1000machine m, String name) throws IOException {
+    FileChannel channel=new RandomAccessFile(name,"r").getChannel();
+    try {
+      MappedByteBuffer map=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+      m.loadState(payload(map));
+    } finally {
+      channel.close();
+    }
+  }
+
+  // Checks the header and returns the plain payload
+  static ByteBuffer payload (ByteBuffer file) throws IOException {
+    if (file.remaining()<HEADER_SIZE)
+      throw new IOException("not a save state");
+    for (int i=0; i<MAGIC.length; i++)
+      if (file.get()!=MAGIC[i])
+        throw new IOException("not a save state");
+    int version=file.getShort();
+    int flags=file.getShort();
+    int length=file.getInt();
+    if (version>VERSION)
+      throw new IOException("save state version "+version+" is newer than this emulator");
+    if (length<0 || length>file.remaining())
+      throw new IOException("save state is truncated");
+
+    ByteBuffer payload=file.slice();
+    payload.limit(length);
+    if ((flags&FLAG_DEFLATE)==0)
+      return payload;
+
+    byte[] in=new byte[length];
+    payload.get(in);
+    Inflater inflater=new Inflater();
+    inflater.setInput(in);
+    ByteArrayOutputStream out=new ByteArrayOutputStream(length*4);
+    byte[] chunk=new byte[16384];
+    try {
+      while (!inflater.finished()) {
+        int n=inflater.inflate(chunk);
+        if (n==0 && (inflater.needsInput() || inflater.needsDictionary()))
+          throw new IOException("save state is truncated");
+        out.write(chunk,0,n);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("save state is corrupt");
+    } finally {
+      inflater.end();
+    }
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+}
@@ -0,0 +1,189 @@
+import java.util.*;
+import jdk.jfr.*;
+
+// Counters of what a machine did and what it cost the host.
+//
+// Off unless the JVM is started with -Dmc1000.metrics=true.  Only then
+// does a machine get a Metrics, and the counting branches test for it,
+// so when it is off nothing is allocated; Z80.run itself is never touched,
+// the counting is in the frame, port, VRAM and draw paths.  The property
+// is read where the machine is made, not here, as MC1000core reaches this
+// class and may not read properties.  Each frame is also a JFR event,
+// "mc1000.Frame", taken when a recording enables it:
+//
+//   java -Dmc1000.metrics=true -XX:StartFlightRecording=filename=mc1000.jfr ...
+public class Metrics {
+  public static final String PROPERTY="mc1000.metrics";
+  // The ports the JFR event has fields for
+  static final int[] PORTS={0x20,0x40,0x60,0x80};
+
+  @Name("mc1000.Frame")
+  @Label("MC-1000 Frame")
+  @Category("MC-1000")
+  @Description("One emulated frame, timed over the CPU slice")
+  static class Frame extends Event {
+    @Label("Frame")
+    long frame;
+
+    @Label("Cycles")
+    long cycles;
+
+    @Label("VRAM Writes")
+    int vramWrites;
+
+    @Label("Port 0x20 Accesses")
+    int port20;
+
+    @Label("Port 0x40 Accesses")
+    int port40;
+
+    @Label("Port 0x60 Accesses")
+    int port60;
+
+    @Label("Port 0x80 Accesses")
+    int port80;
+
+    @Label("Tape Position")
+    @Description("CPU clocks since the tape started, 0 when stopped")
+    long tapeClocks;
+
+    @Label("Speculative")
+    boolean speculative;
+  }
+
+  // The counters at one moment, with the rates derived from them.  Frames
+  // run ahead are counted apart, so the rates are those of the real frames;
+  // drawn counts the images shown, run ahead or not.
+  public static class Snapshot {
+    public final long frames,drawn,skipped,cycles,hostNanos;
+    public final long aheadFrames,aheadNanos;
+    public final double emulatedMHz,nanosPerSlice,vramWritesPerFrame;
+    // The ports with a device on them, and accesses per emulated second
+    // to each
+    public final int[] ports;
+    public final double[] portRates;
+    public final long tapeClocks;
+    public final int tapeProgress;
+
+    Snapshot(Metrics m, MC1000machine machine) {
+      frames=m.frames;
+      drawn=m.drawn;
+      skipped=Math.max(0,m.frames-m.drawn);
+      cycles=m.cycles;
+      hostNanos=m.hostNanos;
+      aheadFrames=m.aheadFrames;
+      aheadNanos=m.aheadNanos;
+      emulatedMHz=hostNanos==0?0:cycles*1000.0/hostNanos;
+      nanosPerSlice=frames==0?0:(double)hostNanos/frames;
+      vramWritesPerFrame=m.lastVramWrites;
+      ports=machine.ports.attached();
+      portRates=new double[ports.length];
+      for (int i=0; i<ports.length; i++)
+        portRates[i]=cycles==0?0:m.ports[ports[i]]*(double)MC1000machine.CYCLES_PER_FRAME*60/cycles;
+      tapeClocks=machine.psg.tapeClocks();
+      tapeProgress=machine.psg.tapeProgress();
+    }
+
+    public String toString() {
+      StringBuffer s=new StringBuffer();
+      s.append(frames+" frames, "+drawn+" drawn, "+skipped+" skipped, ");
+      s.append(String.format("%.2f MHz, %.1f us/slice, %.0f VRAM writes/frame",
+        emulatedMHz,nanosPerSlice/1000,vramWritesPerFrame));
+      for (int i=0; i<ports.length; i++)
+        s.append(String.format(", port %02X %.0f/s",ports[i],portRates[i]));
+      s.append(", tape "+tapeProgress+"%");
+      if (aheadFrames>0)
+        s.append(String.format(", %d run ahead in %.1f us each",aheadFrames,aheadNanos/1000.0/aheadFrames));
+      return s.toString();
+    }
+  }
+
+  long frames,drawn,cycles,hostNanos;
+  long aheadFrames,aheadNanos;
+  long vramWrites,lastVramWrites;
+  long[] ports;
+  // Where the port and VRAM counts of the frame being run go
+  long[] counts,aheadPorts;
+  long aheadVram;
+  boolean speculative;
+  long[] framePorts;
+  long frameStart,frameClock,frameVram;
+  Frame event;
+
+  Metrics() {
+    ports=new long[256];
+    counts=ports;
+    aheadPorts=new long[256];
+    framePorts=new long[PORTS.length];
+  }
+
+  void beginFrame (MC1000machine m) {
+    event=new Frame();
+    event.begin();
+    speculative=m.psg.speculative;
+    if (speculative) {
+      // Thrown away when the frame is, only the event sees them
+      Arrays.fill(aheadPorts,0);
+      counts=aheadPorts;
+      aheadVram=0;
+    } else
+      counts=ports;
+    for (int i=0; i<PORTS.length; i++)
+      framePorts[i]=counts[PORTS[i]];
+    frameVram=vramWrites;
+    frameClock=m.z80core.getClocks();
+    frameStart=System.nanoTime();
+  }
+
+  void endFrame (MC1000machine m) {
+    long time=System.nanoTime()-frameStart;
+    long clocks=m.z80core.getClocks()-frameClock;
+    event.end();
+
+    long frameWrites=speculative?aheadVram:vramWrites-frameVram;
+    if (speculative) {
+      aheadFrames++;
+      aheadNanos+=time;
+    } else {
+      hostNanos+=time;
+      cycles+=clocks;
+      lastVramWrites=frameWrites;
+      frames++;
+    }
+
+    if (event.shouldCommit()) {
+      event.frame=frames;
+      event.cycles=clocks;
+      event.vramWrites=(int)frameWrites;
+      event.port20=(int)(counts[0x20]-framePorts[0]);
+      event.port40=(int)(counts[0x40]-framePorts[1]);
+      event.port60=(int)(counts[0x60]-framePorts[2]);
+      event.port80=(int)(counts[0x80]-framePorts[3]);
+      event.tapeClocks=m.psg.tapeClocks();
+      event.speculative=speculative;
+      event.commit();
+    }
+    event=null;
+    speculative=false;
+    counts=ports;
+  }
+
+  void port (int addr) {
+    counts[addr]++;
+  }
+
+  void vramWrite() {
+    if (speculative)
+      aheadVram++;
+    else
+      vramWrites++;
+  }
+
+  void draw() {
+    drawn++;
+  }
+
+  public Snapshot snapshot (MC1000machine m) {
+    return new Snapshot(this,m);
+  }
+}
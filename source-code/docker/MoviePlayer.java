@@ -0,0 +1,94 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Headless replay of recorded sessions at maximum speed.
+//
+// usage: java MoviePlayer -rom mc1000.rom [-tape file.csw] [-threads n] movie...
+//
+// Each movie runs on its own machine, so a suite is replayed in parallel.
+public class MoviePlayer {
+  String romFile,tapeFile;
+
+  MoviePlayer(String rom, String tape) {
+    romFile=rom;
+    tapeFile=tape;
+  }
+
+  public MC1000machine replay (InputMovie movie) throws Exception {
+    MC1000machine machine=new MC1000machine(movie.has48kb);
+    machine.memory.loadROM(romFile);
+    if (tapeFile!=null)
+      machine.tape.readFromFile(tapeFile);
+
+    if (machine.memory.romChecksum()!=movie.romChecksum)
+      throw new Exception("movie was recorded with a different ROM");
+    if (machine.tape.getChecksum()!=movie.tapeChecksum)
+      throw new Exception("movie was recorded with a different tape");
+
+    Keyboard keys=machine.psg.getKeyboard();
+    keys.events=new InputQueue(movie.getEventCount()+1);
+    movie.feed(keys.events);
+    // Text typed through the key routine comes back as recorded characters
+    if (movie.keyTrap>=0)
+      new TextInjector(machine,movie.keyTrap);
+
+    while (machine.z80core.getClocks()<movie.endClock)
+      machine.runFrame();
+    return machine;
+  }
+
+  public String check (String file) {
+    try {
+      InputMovie movie=InputMovie.read(file);
+      long time=System.nanoTime();
+      MC1000machine machine=replay(movie);
+      time=System.nanoTime()-time;
+      long hash=machine.stateHash();
+      return file+"\t"+(time/1000000)+" ms\t"+Long.toHexString(hash)+"\t"
+        +(hash==movie.finalHash?"MATCH":"MISMATCH");
+    } catch (Exception e) {
+      return file+"\tERROR "+e.getMessage();
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,tape=null;
+    int threads=Runtime.getRuntime().availableProcessors();
+    List<String> movies=new ArrayList<String>();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-tape") && i+1<argv.length)
+        tape=argv[++i];
+      else if (argv[i].equals("-threads") && i+1<argv.length)
+        threads=Integer.parseInt(argv[++i]);
+      else
+        movies.add(argv[i]);
+    }
+
+    if (rom==null || movies.isEmpty()) {
+      System.out.println ("usage: java MoviePlayer -rom mc1000.rom [-tape file.csw] [-threads n] movie...");
+      System.exit(1);
+    }
+
+    final MoviePlayer player=new MoviePlayer(rom,tape);
+    ExecutorService pool=Executors.newFixedThreadPool(threads);
+    List<Future<String>> results=new ArrayList<Future<String>>();
+    for (final String movie : movies)
+      results.add(pool.submit(new Callable<String>() {
+        public String call() {
+          return player.check(movie);
+        }
+      }));
+
+    boolean ok=true;
+    for (Future<String> r : results) {
+      String line=r.get();
+      ok&=line.endsWith("MATCH") && !line.endsWith("MISMATCH");
+      System.out.println (line);
+    }
+    pool.shutdown();
+    System.exit(ok?0:1);
+  }
+}
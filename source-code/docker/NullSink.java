@@ -0,0 +1,18 @@
+// Discards the audio, counting the samples, for headless runs and tests
+public class NullSink implements AudioSink {
+  long samples;
+
+  public void open (int sampleRate) {
+    samples=0;
+  }
+
+  public void write (short[] s, int n) {
+    samples+=n;
+  }
+
+  public void close () {}
+
+  public long getSamples() {
+    return samples;
+  }
+}
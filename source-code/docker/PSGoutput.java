@@ -0,0 +1,9 @@
+// Where the PSG register writes go to be heard.  AY38912 calls it only
+// while audio is enabled, the writes going through a WriteLog of the
+// ports; PSGsynth is the one that renders them.
+public interface PSGoutput
+{
+ public void start(long clock, int[] regs);
+ public void write(long clock, int reg, int value);
+ public void render(long clock);
+}
@@ -0,0 +1,179 @@
+// AY-3-8912 tone, noise and envelope synthesis.
+//
+// Register writes come with the cycle at which the CPU made them, logged
+// by a WriteLog of the ports and handed over at the end of the slice, and
+// the audio is rendered then: the samples between two writes are produced
+// as one block with the registers held constant, so the cost is per
+// sample and per write, never per CPU cycle.  As a Ports, the register
+// is the port.
+public class PSGsynth implements PSGoutput,Ports {
+  static final int CLOCK=MC1000machine.CYCLES_PER_FRAME*60;
+  static final int PSG_CLOCK=CLOCK/2;
+
+  static final int[] VOLUME={
+    0,150,224,318,462,675,925,1495,1847,2891,3852,4914,6230,7507,9264,10922
+  };
+
+  int sampleRate;
+  AudioRing ring;
+  short[] block;
+  int[] regs;
+
+  long renderedClock,samples;
+
+  long toneStep,noiseStep,envStep;
+  long[] period,toneCount;
+  boolean[] toneOut;
+  long noiseCount,envCount;
+  int rng;
+  int envLevel,envPos;
+  boolean envAttack,envHolding;
+  boolean muted;
+
+  PSGsynth(int rate, AudioRing r) {
+    sampleRate=rate;
+    ring=r;
+    block=new short[1024];
+    regs=new int[16];
+    period=new long[3];
+    toneCount=new long[3];
+    toneOut=new boolean[3];
+    rng=1;
+
+    // Counter increments per sample, in 16.16 fixed point.  A tone flips
+    // every 8*TP clocks, for clock/(16*TP); the noise LFSR shifts every
+    // 16*NP clocks, half the tone rate; an envelope step takes 16*EP
+    // clocks, so the 16 steps of a ramp take 256*EP
+    toneStep=((long)PSG_CLOCK<<16)/8/sampleRate;
+    noiseStep=toneStep/2;
+    envStep=((long)PSG_CLOCK<<16)/16/sampleRate;
+  }
+
+  public AudioRing getRing() {
+    return ring;
+  }
+
+  // Skipped slices (run-ahead, fast forward) keep the timing but make no sound
+  public void setMuted (boolean m) {
+    muted=m;
+  }
+
+  // Take over the registers of a running PSG, rendering from the given cycle
+  public void start (long clock, int[] current) {
+    for (int i=0; i<14; i++)
+      apply(i,current[i]);
+    renderedClock=clock;
+    samples=clock*sampleRate/CLOCK;
+  }
+
+  // The sound up to the write, then the register; writes come in order
+  public void write (long clock, int reg, int value) {
+    renderUntil(clock);
+    apply(reg,value);
+  }
+
+  public void out (int reg, int value, long clock) {
+    write(clock,reg,value);
+  }
+
+  public int in (int reg, long clock) {
+    return 0xFF;
+  }
+
+  // Render everything up to the given cycle, normally the end of the slice
+  public void render (long clock) {
+    renderUntil(clock);
+  }
+
+  private void renderUntil (long clock) {
+    if (clock<=renderedClock)
+      return;
+    long target=clock*sampleRate/CLOCK;
+    renderedClock=clock;
+    while (samples<target) {
+      int n=(int)Math.min(block.length,target-samples);
+      generate(n);
+      if (!muted)
+        ring.write(block,0,n);
+      samples+=n;
+    }
+  }
+
+  private void apply (int reg, int value) {
+    regs[reg]=value;
+    if (reg==13) {
+      envAttack=(value&4)!=0;
+      envPos=0;
+      envCount=0;
+      envHolding=false;
+      envLevel=envAttack?0:15;
+    }
+  }
+
+  private void generate (int n) {
+    int mixer=regs[7];
+    for (int c=0; c<3; c++) {
+      int p=regs[c*2]|((regs[c*2+1]&0x0F)<<8);
+      period[c]=(long)Math.max(p,1)<<16;
+    }
+    long noisePeriod=(long)Math.max(regs[6]&0x1F,1)<<16;
+    long envPeriod=(long)Math.max(regs[11]|(regs[12]<<8),1)<<16;
+
+    for (int i=0; i<n; i++) {
+      for (int c=0; c<3; c++) {
+        toneCount[c]+=toneStep;
+        while (toneCount[c]>=period[c]) {
+          toneCount[c]-=period[c];
+          toneOut[c]=!toneOut[c];
+        }
+      }
+
+      noiseCount+=noiseStep;
+      while (noiseCount>=noisePeriod) {
+        noiseCount-=noisePeriod;
+        rng=(((rng^(rng>>3))&1)<<16)|(rng>>1);
+      }
+
+      envCount+=envStep;
+      while (envCount>=envPeriod) {
+        envCount-=envPeriod;
+        stepEnvelope();
+      }
+
+      int out=0;
+      boolean noise=(rng&1)!=0;
+      for (int c=0; c<3; c++) {
+        boolean tone=toneOut[c] || (mixer&(1<<c))!=0;
+        boolean noiseOn=noise || (mixer&(8<<c))!=0;
+        if (tone && noiseOn) {
+          int amp=regs[8+c];
+          out+=VOLUME[(amp&0x10)!=0?envLevel:amp&0x0F];
+        }
+      }
+      block[i]=(short)(out-VOLUME[15]*3/2);
+    }
+  }
+
+  private void stepEnvelope() {
+    if (envHolding)
+      return;
+    int shape=regs[13];
+    if (++envPos<16) {
+      envLevel=envAttack?envPos:15-envPos;
+      return;
+    }
+
+    if ((shape&8)==0) {
+      envHolding=true;
+      envLevel=0;
+    } else if ((shape&1)!=0) {
+      envHolding=true;
+      envLevel=(envAttack^((shape&2)!=0))?15:0;
+    } else {
+      if ((shape&2)!=0)
+        envAttack=!envAttack;
+      envPos=0;
+      envLevel=envAttack?0:15;
+    }
+  }
+}
@@ -1,7 +1,5 @@
-import java.math.BigInteger;
-
 public interface Ports
 {
- public void out(int addr,int data, BigInteger clocks);
- public int in(int addr, BigInteger clocks);
+ public void out(int addr,int data, long clocks);
+ public int in(int addr, long clocks);
 }
\ No newline at end of file
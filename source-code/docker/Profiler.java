@@ -0,0 +1,366 @@
+import java.io.*;
+import java.util.*;
+
+// Where the guest spends its time: per address, per routine and per call path.
+//
+// usage: java Profiler -rom mc1000.rom [-48] [-boot frames] [-bas file]
+//                      [-type text] [-frames n] [-sym file]... [-flat file]
+//                      [-folded file]
+//
+// The profiler runs the frames itself, one Z80.step() at a time, and sits
+// between the CPU and the memory to count reads and writes per 256 byte
+// page.  Every instruction adds one count and its cycles to its address and
+// its cycles to the node of the current call path.  The path follows CALL,
+// RST and RET, and is unwound by the stack pointer, so code that drops
+// return addresses or resets SP does not leave stale frames behind.
+//
+// The flat profile groups addresses into routines, starting at each symbol
+// and at each address seen called; the folded output is one line per call
+// path, "caller;callee cycles", as flamegraph.pl reads it.
+public class Profiler implements Memory {
+  static final int MAX_DEPTH=256;
+  static final int TOP_ADDRESSES=40;
+  static final int WARMUP_FRAMES=300;
+  static final int CALL=1,RET=2,PREFIX_ED=3;
+
+  // The opcodes that may enter or leave a routine: CALL, CALL cc and RST;
+  // RET and RET cc; ED for RETN and RETI
+  static final int[] FLOW=new int[256];
+
+  static {
+    for (int op=0; op<256; op++)
+      if (op==0xCD || (op&0xC7)==0xC4 || (op&0xC7)==0xC7)
+        FLOW[op]=CALL;
+      else if (op==0xC9 || (op&0xC7)==0xC0)
+        FLOW[op]=RET;
+    FLOW[0xED]=PREFIX_ED;
+  }
+
+  // One call path: the routine entered and the cycles spent in it
+  static class Node {
+    int addr;
+    Node parent;
+    HashMap<Integer,Node> children;
+    long cycles,calls;
+
+    Node(int a, Node p) {
+      addr=a;
+      parent=p;
+    }
+
+    Node child (int a) {
+      if (children==null)
+        children=new HashMap<Integer,Node>();
+      Node n=children.get(a);
+      if (n==null) {
+        n=new Node(a,this);
+        children.put(a,n);
+      }
+      return n;
+    }
+  }
+
+  MC1000machine machine;
+  Z80 cpu;
+  Memory memory;
+  Symbols symbols;
+
+  long[] counts,cycles;
+  long[] reads,writes;
+  boolean[] called;
+  Node root,current;
+  int[] stackSp;
+  int depth;
+  long frames,elapsed,charged;
+
+  Profiler(MC1000machine m, Symbols s) {
+    machine=m;
+    cpu=m.z80core;
+    memory=m.memory;
+    symbols=s;
+    counts=new long[0x10000];
+    cycles=new long[0x10000];
+    reads=new long[0x100];
+    writes=new long[0x100];
+    called=new boolean[0x10000];
+    root=new Node(-1,null);
+    current=root;
+    stackSp=new int[MAX_DEPTH];
+    cpu.setMemory(this);
+  }
+
+  public void detach() {
+    cpu.setMemory(memory);
+  }
+
+  public int readByte (int addr) {
+    reads[(addr>>8)&0xFF]++;
+    return memory.readByte(addr);
+  }
+
+  public void writeByte (int addr, int data) {
+    writes[(addr>>8)&0xFF]++;
+    memory.writeByte(addr,data);
+  }
+
+  public void runFrame() {
+    cpu.beginSlice(MC1000machine.CYCLES_PER_FRAME);
+    int left=cpu.getCyclesToDo();
+    while (left>0) {
+      int pc=cpu.getPC();
+      int flow=FLOW[memory.readByte(pc)];
+      int sp=flow==0?0:cpu.getRegister(Z80.REG_SP);
+      cpu.step();
+      int now=cpu.getCyclesToDo();
+      int spent=left-now;
+      left=now;
+
+      counts[pc]++;
+      cycles[pc]+=spent;
+      elapsed+=spent;
+
+      if (flow!=0) {
+        int newSp=cpu.getRegister(Z80.REG_SP);
+        if (flow==CALL && newSp==((sp-2)&0xFFFF))
+          enter(cpu.getPC(),newSp);
+        else if (flow==RET && newSp==((sp+2)&0xFFFF))
+          unwind(newSp);
+        else if (flow==PREFIX_ED && newSp==((sp+2)&0xFFFF) && (memory.readByte(pc+1)&0xC7)==0x45)
+          unwind(newSp);
+      }
+    }
+    charge();
+    frames++;
+    machine.endSlice();
+  }
+
+  // Gives the cycles since the last change of path to the current node
+  private void charge() {
+    current.cycles+=elapsed-charged;
+    charged=elapsed;
+  }
+
+  // A call pushed its return address at sp
+  private void enter (int target, int sp) {
+    unwind(sp+1);
+    charge();
+    called[target]=true;
+    if (depth==MAX_DEPTH)
+      return;
+    stackSp[depth++]=sp;
+    current=current.child(target);
+    current.calls++;
+  }
+
+  // Drops the frames whose return address lies below sp
+  private void unwind (int sp) {
+    charge();
+    while (depth>0 && stackSp[depth-1]<sp) {
+      depth--;
+      current=current.parent;
+    }
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getCount (int addr) {
+    return counts[addr&0xFFFF];
+  }
+
+  public long getCycles (int addr) {
+    return cycles[addr&0xFFFF];
+  }
+
+  public long[] getPageReads() {
+    return reads;
+  }
+
+  public long[] getPageWrites() {
+    return writes;
+  }
+
+  // Symbols plus a name for every routine seen called without one
+  private Symbols routines() {
+    Symbols r=new Symbols();
+    r.names.putAll(symbols.names);
+    for (int a=0; a<0x10000; a++)
+      if (called[a] && !r.has(a))
+        r.add(a,(a>=Symbols.ROM?"rom_":"ram_")+Symbols.hex(a));
+    return r;
+  }
+
+  public void writeFlat (PrintWriter out) {
+    Symbols r=routines();
+    long total=0,executed=0;
+    for (int a=0; a<0x10000; a++) {
+      total+=cycles[a];
+      executed+=counts[a];
+    }
+
+    // Self cycles and instructions of each routine
+    TreeMap<Integer,long[]> self=new TreeMap<Integer,long[]>();
+    for (int a=0; a<0x10000; a++)
+      if (counts[a]>0) {
+        long[] t=self.get(r.entry(a));
+        if (t==null)
+          self.put(r.entry(a),t=new long[2]);
+        t[0]+=cycles[a];
+        t[1]+=counts[a];
+      }
+
+    out.println (frames+" frames, "+executed+" instructions, "+total+" cycles");
+    out.println ();
+    out.println ("     %   self cycles   instructions  routine");
+    for (Map.Entry<Integer,long[]> e : sortByCycles(self)) {
+      long[] t=e.getValue();
+      out.printf ("%6.2f %13d %14d  %s%n",100.0*t[0]/Math.max(total,1),t[0],t[1],
+        e.getKey()<0?"(no routine)":r.name(e.getKey()));
+    }
+
+    out.println ();
+    out.println ("     %        cycles          count  address");
+    TreeMap<Integer,long[]> byAddress=new TreeMap<Integer,long[]>();
+    for (int a=0; a<0x10000; a++)
+      if (counts[a]>0)
+        byAddress.put(a,new long[] {cycles[a],counts[a]});
+    int shown=0;
+    for (Map.Entry<Integer,long[]> e : sortByCycles(byAddress)) {
+      if (shown++==TOP_ADDRESSES)
+        break;
+      long[] t=e.getValue();
+      out.printf ("%6.2f %13d %14d  %s %s%n",100.0*t[0]/Math.max(total,1),t[0],t[1],
+        Symbols.hex(e.getKey()),r.locate(e.getKey()));
+    }
+
+    out.println ();
+    writeHeatmap(out,"reads",reads);
+    out.println ();
+    writeHeatmap(out,"writes",writes);
+    out.flush();
+  }
+
+  private static List<Map.Entry<Integer,long[]>> sortByCycles (Map<Integer,long[]> m) {
+    List<Map.Entry<Integer,long[]>> list=new ArrayList<Map.Entry<Integer,long[]>>(m.entrySet());
+    Collections.sort(list,new Comparator<Map.Entry<Integer,long[]>>() {
+      public int compare (Map.Entry<Integer,long[]> a, Map.Entry<Integer,long[]> b) {
+        return Long.compare(b.getValue()[0],a.getValue()[0]);
+      }
+    });
+    return list;
+  }
+
+  // One character per 256 byte page, darker for more accesses on a log scale
+  private static void writeHeatmap (PrintWriter out, String title, long[] pages) {
+    String shades=" .:-=+*#%@";
+    long most=1;
+    for (int i=0; i<pages.length; i++)
+      most=Math.max(most,pages[i]);
+    out.println ("page "+title+", most "+most+" per page");
+    out.println ("      0123456789ABCDEF");
+    for (int row=0; row<16; row++) {
+      StringBuilder line=new StringBuilder(Symbols.hex(row<<12)+"  ");
+      for (int col=0; col<16; col++) {
+        long n=pages[row*16+col];
+        int shade=n==0?0:1+(int)((shades.length()-2)*Math.log(n)/Math.log(most+1));
+        line.append(shades.charAt(shade));
+      }
+      out.println (line);
+    }
+  }
+
+  public void writeFolded (PrintWriter out) {
+    writeFolded(out,root,"",routines());
+    out.flush();
+  }
+
+  private void writeFolded (PrintWriter out, Node n, String path, Symbols r) {
+    String name=n==root?"all":r.name(n.addr);
+    String here=path.length()==0?name:path+";"+name;
+    if (n.cycles>0)
+      out.println (here+" "+n.cycles);
+    if (n.children!=null)
+      for (Node c : n.children.values())
+        writeFolded(out,c,here,r);
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,bas=null,type=null,flat=null,folded=null;
+    boolean has48kb=false;
+    int boot=0,frames=600;
+    Symbols symbols=new Symbols();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+      else if (argv[i].equals("-boot") && i+1<argv.length)
+        boot=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-bas") && i+1<argv.length)
+        bas=argv[++i];
+      else if (argv[i].equals("-type") && i+1<argv.length)
+        type=argv[++i].replace("\\n","\n");
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-sym") && i+1<argv.length)
+        symbols.load(argv[++i]);
+      else if (argv[i].equals("-flat") && i+1<argv.length)
+        flat=argv[++i];
+      else if (argv[i].equals("-folded") && i+1<argv.length)
+        folded=argv[++i];
+    }
+    if (rom==null) {
+      System.out.println ("usage: java Profiler -rom mc1000.rom [-48] [-boot frames] [-bas file] [-type text] [-frames n] [-sym file]... [-flat file] [-folded file]");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    for (int i=0; i<boot; i++)
+      machine.runFrame();
+    if (bas!=null) {
+      new BasicLoader(machine).load(bas);
+      if (type==null)
+        type="RUN\n";
+    }
+
+    // The same frames unprofiled on a fork, to show the overhead, after
+    // both ways have run on forks of their own to warm up
+    MC1000machine plain=machine.fork();
+    MC1000machine warm=machine.fork();
+    Profiler warmProfiler=new Profiler(machine.fork(),symbols);
+    for (int i=0; i<WARMUP_FRAMES; i++) {
+      warm.runFrame();
+      warmProfiler.runFrame();
+    }
+    if (type!=null) {
+      new TextInjector(machine).type(type);
+      new TextInjector(plain).type(type);
+    }
+    long time=System.nanoTime();
+    for (int i=0; i<frames; i++)
+      plain.runFrame();
+    long plainTime=System.nanoTime()-time;
+
+    Profiler profiler=new Profiler(machine,symbols);
+    time=System.nanoTime();
+    for (int i=0; i<frames; i++)
+      profiler.runFrame();
+    long profiledTime=System.nanoTime()-time;
+    profiler.detach();
+
+    PrintWriter out=new PrintWriter(flat==null?new OutputStreamWriter(System.out):new FileWriter(flat));
+    profiler.writeFlat(out);
+    if (flat!=null)
+      out.close();
+    if (folded!=null) {
+      PrintWriter f=new PrintWriter(new FileWriter(folded));
+      profiler.writeFolded(f);
+      f.close();
+    }
+    System.out.println (frames+" frames: plain "+plainTime/1000000+" ms, profiled "+profiledTime/1000000
+      +" ms, overhead "+String.format("%.2fx",(double)profiledTime/Math.max(plainTime,1)));
+  }
+}
@@ -0,0 +1,90 @@
+import java.nio.*;
+import java.util.*;
+
+// Memory kept in 1K pages that forked machines share copy-on-write.
+//
+// A page is written in place only by the instance that owns it.  Forking
+// hands every page over as shared, and whichever side writes to a shared
+// page first gets its own copy, so a fork costs the page table and each
+// child pays only for the pages it touches.
+public class RamPages {
+  static final int PAGE_SHIFT=10;
+  static final int PAGE_SIZE=1<<PAGE_SHIFT;
+  static final int PAGE_MASK=PAGE_SIZE-1;
+
+  byte[][] pages;
+  boolean[] owned;
+  int length;
+
+  RamPages(int size) {
+    length=size;
+    pages=new byte[(size+PAGE_MASK)>>PAGE_SHIFT][];
+    owned=new boolean[pages.length];
+    for (int i=0; i<pages.length; i++) {
+      pages[i]=new byte[PAGE_SIZE];
+      owned[i]=true;
+    }
+  }
+
+  private RamPages(RamPages parent) {
+    length=parent.length;
+    pages=parent.pages.clone();
+    owned=new boolean[pages.length];
+  }
+
+  public final int read (int addr) {
+    return pages[addr>>PAGE_SHIFT][addr&PAGE_MASK]&0xFF;
+  }
+
+  public final void write (int addr, int data) {
+    int p=addr>>PAGE_SHIFT;
+    if (!owned[p]) {
+      pages[p]=copy(pages[p]);
+      owned[p]=true;
+    }
+    pages[p][addr&PAGE_MASK]=(byte)data;
+  }
+
+  // By hand rather than clone(), which MC1000core may not use; it runs
+  // once per page a fork writes to
+  private static byte[] copy (byte[] page) {
+    byte[] c=new byte[PAGE_SIZE];
+    for (int i=0; i<PAGE_SIZE; i++)
+      c[i]=page[i];
+    return c;
+  }
+
+  public void get (ByteBuffer b) {
+    for (int p=0; p<pages.length; p++)
+      b.put(pages[p],0,Math.min(PAGE_SIZE,length-(p<<PAGE_SHIFT)));
+  }
+
+  // Replaces the whole contents, shared pages are dropped rather than copied
+  public void put (ByteBuffer b) {
+    for (int p=0; p<pages.length; p++) {
+      if (!owned[p]) {
+        pages[p]=new byte[PAGE_SIZE];
+        owned[p]=true;
+      }
+      b.get(pages[p],0,Math.min(PAGE_SIZE,length-(p<<PAGE_SHIFT)));
+    }
+  }
+
+  public final int length() {
+    return length;
+  }
+
+  // Both sides give up their pages; only call from the thread running this copy
+  public RamPages fork() {
+    Arrays.fill(owned,false);
+    return new RamPages(this);
+  }
+
+  public int ownedPages() {
+    int n=0;
+    for (int i=0; i<owned.length; i++)
+      if (owned[i])
+        n++;
+    return n;
+  }
+}
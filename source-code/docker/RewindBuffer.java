@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Keeps the last seconds of a session, one state per frame, for rewinding.
+//
+// The CPU thread only copies the state pages into a spare buffer.  A
+// background thread XORs the copy against the last keyframe, where most
+// bytes cancel out, and deflates it.  Every frame depends on its keyframe
+// only, so any of them is restored with two inflates.  The input events
+// applied during each frame are kept with it, which makes seeking to a
+// cycle between two frames a deterministic re-execution.
+//
+// The budget covers the compressed frames and the full-size buffers
+// around them: SPARE_BUFFERS states waiting for the worker, the last
+// keyframe, the keyframe cached for stepping back and the deflate
+// scratch.  Those buffers are the floor, about 11 states, some 600kb
+// with 48kb of RAM; attach() refuses a budget below it.  The CPU thread
+// waits for a buffer when the worker is SPARE_BUFFERS frames behind.
+public class RewindBuffer {
+  static final int SPARE_BUFFERS=8;
+
+  class Frame {
+    long number,clock;
+    Frame key;          // null for a keyframe
+    byte[] data;
+    int length;
+    long[] stamps;      // events applied while running up to this frame
+    int[] codes;
+  }
+
+  int maxFrames,keyInterval;
+  long budget,used,fixed;
+  ArrayDeque<Frame> frames;
+  long frameCount;
+
+  ExecutorService worker;
+  ArrayBlockingQueue<byte[]> spare;
+  int buffers;
+  Deflater deflater;
+  byte[] scratch;
+  byte[] keyRaw;
+  Frame lastKey;
+
+  // Decompressed keyframe, kept while stepping back through its frames
+  Frame cachedKey;
+  byte[] cachedRaw;
+
+  RewindBuffer(int seconds, long budgetBytes, int keyFrames) {
+    maxFrames=seconds*60;
+    budget=budgetBytes;
+    keyInterval=keyFrames;
+    frames=new ArrayDeque<Frame>();
+    spare=new ArrayBlockingQueue<byte[]>(SPARE_BUFFERS);
+    deflater=new Deflater(Deflater.BEST_SPEED);
+    scratch=new byte[0];
+    worker=Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t=new Thread(r,"rewind");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  RewindBuffer(int seconds) {
+    this(seconds,32*1024*1024,60);
+  }
+
+  public void attach (MC1000machine m) {
+    if (budget<floor(m))
+      throw new IllegalArgumentException("rewind budget of "+budget+" bytes is below the "
+        +floor(m)+" its buffers take");
+    m.psg.getKeyboard().journal=new InputMovie();
+  }
+
+  // Bytes the full-size buffers take for this machine, whatever is kept
+  public static long floor (MC1000machine m) {
+    return (SPARE_BUFFERS+3L)*m.stateSize();
+  }
+
+  // Called by the CPU thread at the end of every frame
+  public void record (MC1000machine m) {
+    int size=m.stateSize();
+    fixed=floor(m);
+    byte[] raw=spare.poll();
+    if (raw==null && buffers<SPARE_BUFFERS)
+      buffers++;
+    else if (raw==null)
+      try {
+        raw=spare.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    if (raw==null || raw.length<size)
+      raw=new byte[size];
+    ByteBuffer b=ByteBuffer.wrap(raw);
+    m.saveState(b);
+
+    final Frame f=new Frame();
+    f.number=frameCount++;
+    f.clock=m.z80core.getClocks();
+    InputMovie journal=m.psg.getKeyboard().journal;
+    if (journal!=null && journal.count>0) {
+      f.stamps=Arrays.copyOf(journal.stamps,journal.count);
+      f.codes=Arrays.copyOf(journal.codes,journal.count);
+      journal.count=0;
+    }
+
+    final byte[] state=raw;
+    final int length=b.position();
+    worker.execute(new Runnable() {
+      public void run() {
+        compress(f,state,length);
+        spare.offer(state);
+      }
+    });
+  }
+
+  // Goes back one frame, false when there is nothing older to go back to
+  public boolean stepBack (MC1000machine m) throws IOException {
+    flush();
+    Frame f;
+    synchronized (this) {
+      if (frames.size()<2)
+        return false;
+      drop(frames.pollLast());
+      f=frames.peekLast();
+    }
+    restore(m,f);
+    return true;
+  }
+
+  // Goes back to the first instruction boundary at or after the given cycle,
+  // replaying the input the machine saw on the way
+  public boolean seek (MC1000machine m, long clock) throws IOException {
+    flush();
+    Frame f=null,next=null;
+    synchronized (this) {
+      if (frames.isEmpty() || frames.peekFirst().clock>clock)
+        return false;
+      while (!frames.isEmpty() && frames.peekLast().clock>clock) {
+        next=frames.pollLast();
+        drop(next);
+      }
+      f=frames.peekLast();
+    }
+    restore(m,f);
+
+    Keyboard keys=m.psg.getKeyboard();
+    if (next!=null && next.codes!=null) {
+      keys.replay=new InputQueue(next.codes.length+1);
+      for (int i=0; i<next.codes.length; i++)
+        keys.replay.offer(next.stamps[i],next.codes[i]);
+    }
+    while (m.z80core.getClocks()<clock)
+      m.z80core.run((int)Math.min(clock-m.z80core.getClocks(),MC1000machine.CYCLES_PER_FRAME));
+    m.endSlice();
+    keys.replay=null;
+    return true;
+  }
+
+  public synchronized int getFrameCount() {
+    return frames.size();
+  }
+
+  // The compressed frames and the fixed buffers
+  public synchronized long getMemoryUsed() {
+    return used+fixed;
+  }
+
+  public synchronized long getOldestClock() {
+    return frames.isEmpty()?-1:frames.peekFirst().clock;
+  }
+
+  // Waits until every recorded frame has been compressed
+  public void flush() throws IOException {
+    try {
+      worker.submit(new Runnable() {
+        public void run() {}
+      }).get();
+    } catch (Exception e) {
+      throw new IOException("rewind worker failed: "+e);
+    }
+  }
+
+  public void close() {
+    worker.shutdown();
+  }
+
+  // Runs on the worker thread
+  private void compress (Frame f, byte[] raw, int length) {
+    boolean key=lastKey==null || keyRaw.length!=length
+      || f.number-lastKey.number>=keyInterval;
+
+    if (key) {
+      keyRaw=Arrays.copyOf(raw,length);
+      lastKey=f;
+    } else {
+      f.key=lastKey;
+      for (int i=0; i<length; i++)
+        raw[i]^=keyRaw[i];
+    }
+    f.length=length;
+
+    if (scratch.length<length+length/100+64)
+      scratch=new byte[length+length/100+64];
+    deflater.reset();
+    deflater.setInput(raw,0,length);
+    deflater.finish();
+    f.data=Arrays.copyOf(scratch,deflater.deflate(scratch));
+
+    synchronized (this) {
+      frames.addLast(f);
+      used+=f.data.length;
+      while (!frames.isEmpty() && (used+fixed>budget || frames.size()>maxFrames)) {
+        Frame old=frames.pollFirst();
+        drop(old);
+        // Frames whose keyframe is gone can no longer be restored
+        while (!frames.isEmpty() && frames.peekFirst().key==old)
+          drop(frames.pollFirst());
+      }
+    }
+  }
+
+  private void drop (Frame f) {
+    used-=f.data.length;
+    if (f==lastKey)
+      lastKey=null;
+  }
+
+  private void restore (MC1000machine m, Frame f) throws IOException {
+    byte[] state;
+    if (f.key==null) {
+      state=inflate(f);
+    } else {
+      if (cachedKey!=f.key) {
+        cachedRaw=inflate(f.key);
+        cachedKey=f.key;
+      }
+      state=inflate(f);
+      for (int i=0; i<state.length; i++)
+        state[i]^=cachedRaw[i];
+    }
+    m.loadState(ByteBuffer.wrap(state));
+
+    InputMovie journal=m.psg.getKeyboard().journal;
+    if (journal!=null)
+      journal.count=0;
+  }
+
+  private static byte[] inflate (Frame f) throws IOException {
+    byte[] out=new byte[f.length];
+    Inflater inflater=new Inflater();
+    try {
+      inflater.setInput(f.data);
+      if (inflater.inflate(out)!=f.length)
+        throw new IOException("rewind frame is corrupt");
+    } catch (DataFormatException e) {
+      throw new IOException("rewind frame is corrupt");
+    } finally {
+      inflater.end();
+    }
+    return out;
+  }
+}
@@ -0,0 +1,105 @@
+import java.awt.image.*;
+import java.util.*;
+
+// Hides input latency by showing the machine some frames in the future.
+//
+// usage: java RunAhead -rom mc1000.rom [-boot frames] [-frames n]
+//
+// After each real frame the state is saved, the machine runs ahead with the
+// current input held, the last of those frames is drawn, and the state is
+// restored.  A key pressed now is therefore on screen as soon as the ROM
+// would have echoed it that many frames later.  The frames run ahead are
+// silent and take no input; only the real frame is heard and recorded.
+public class RunAhead {
+  MC1000machine machine;
+  int frames;
+
+  RunAhead(MC1000machine m, int n) {
+    machine=m;
+    frames=n;
+  }
+
+  public void setFrames (int n) {
+    frames=n;
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  // The image to show after a real frame has been run
+  public BufferedImage draw() {
+    if (frames==0)
+      return machine.vdp.draw();
+
+    machine.quickSave();
+    machine.psg.setSpeculative(true);
+    for (int i=0; i<frames; i++)
+      machine.runFrame();
+    BufferedImage image=machine.vdp.draw();
+    machine.quickLoad();
+    machine.psg.setSpeculative(false);
+    return image;
+  }
+
+  // Real frames from a key press until the image shown changes
+  static int latency (MC1000machine booted, int ahead) {
+    MC1000machine m=booted.fork();
+    RunAhead runAhead=new RunAhead(m,ahead);
+    int[] before=pixels(runAhead.draw());
+    m.psg.getKeyboard().post(Keyboard.keyEvent(1,0,true));
+    for (int frame=1; frame<=60; frame++) {
+      m.runFrame();
+      if (!Arrays.equals(before,pixels(runAhead.draw())))
+        return frame;
+    }
+    return -1;
+  }
+
+  private static int[] pixels (BufferedImage image) {
+    return ((DataBufferInt)image.getRaster().getDataBuffer()).getData().clone();
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    int boot=120,maxFrames=3;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-boot") && i+1<argv.length)
+        boot=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        maxFrames=Integer.parseInt(argv[++i]);
+    }
+    if (rom==null) {
+      System.out.println ("usage: java RunAhead -rom mc1000.rom [-boot frames] [-frames n]");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(false);
+    machine.memory.loadROM(rom);
+    for (int i=0; i<boot; i++)
+      machine.runFrame();
+
+    for (int ahead=0; ahead<=maxFrames; ahead++) {
+      MC1000machine m=machine.fork();
+      RunAhead runAhead=new RunAhead(m,ahead);
+      for (int i=0; i<300; i++) {
+        m.runFrame();
+        runAhead.draw();
+      }
+      long time=System.nanoTime();
+      for (int i=0; i<300; i++) {
+        m.runFrame();
+        runAhead.draw();
+      }
+      time=(System.nanoTime()-time)/300;
+
+      int frames=latency(machine,ahead);
+      System.out.println ("run-ahead "+ahead+": key shown after "
+        +(frames<0?"-":frames*1000/60+" ms ("+frames+" frames)")
+        +", "+(time/1000)/1000.0+" ms per frame");
+    }
+  }
+}
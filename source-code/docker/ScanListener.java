@@ -0,0 +1,6 @@
+// Told of every keyboard read with the line the CPU selected, as
+// TextInjector paces its keys by them
+public interface ScanListener
+{
+ public void scanned(Keyboard k, int select);
+}
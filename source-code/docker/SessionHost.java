@@ -0,0 +1,172 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Runs many MC-1000 sessions in one JVM.
+//
+// usage: java SessionHost -rom mc1000.rom [-48] [-sessions n] [-seconds s]
+//                         [-threads n] [-idle seconds] [-keywait start-end]
+//
+// Every session is a fork of one machine booted to the BASIC prompt, so the
+// ROM, the character set and the CPU flag tables exist once, and a session
+// holds only the RAM and VRAM pages it has written.  A clock at 60 Hz hands
+// each live session one frame on a work-stealing pool; a session still busy
+// with its previous frame misses the tick instead of queueing, so a slow
+// session cannot crowd out the others.
+//
+// A session whose guest has only waited for a key for -idle seconds is
+// parked and costs nothing until its next key.  Waiting means the frames
+// end with PC in the -keywait range, the ROM's key-wait loop with the
+// scan it calls, and no input queued; a running program is never parked.
+// Without -keywait no session is parked.  Sessions are drawn into the
+// caller's pixels, so none holds a frame buffer; the tool draws every
+// session once a second into one shared buffer.
+public class SessionHost {
+  // Heap a session may use once started, guest RAM pages included
+  static final long TARGET_FOOTPRINT=64*1024;
+  static final int BOOT_FRAMES=120;
+
+  MC1000machine template;
+  ForkJoinPool pool;
+  ScheduledExecutorService clock;
+  List<HostSession> sessions;
+  long idleNanos;
+  int waitStart,waitEnd;
+  int nextId;
+
+  SessionHost(MC1000machine booted, int threads, int idleSeconds) {
+    template=booted;
+    pool=new ForkJoinPool(threads,ForkJoinPool.defaultForkJoinWorkerThreadFactory,null,true);
+    sessions=new CopyOnWriteArrayList<HostSession>();
+    idleNanos=idleSeconds*1000000000L;
+    clock=Executors.newSingleThreadScheduledExecutor();
+  }
+
+  // The addresses of the ROM's key-wait loop, end excluded
+  public void setKeyWait (int start, int end) {
+    waitStart=start;
+    waitEnd=end;
+  }
+
+  public synchronized HostSession open() {
+    HostSession s=new HostSession(nextId++,template.fork(),waitStart,waitEnd);
+    sessions.add(s);
+    return s;
+  }
+
+  public void close (HostSession s) {
+    sessions.remove(s);
+  }
+
+  public void start() {
+    clock.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        tick();
+      }
+    },0,1000000000L/60,TimeUnit.NANOSECONDS);
+  }
+
+  public void stop() throws InterruptedException {
+    clock.shutdown();
+    clock.awaitTermination(1,TimeUnit.SECONDS);
+    pool.shutdown();
+    pool.awaitTermination(1,TimeUnit.SECONDS);
+  }
+
+  void tick() {
+    long now=System.nanoTime();
+    for (HostSession s : sessions) {
+      if (s.parked)
+        continue;
+      if (now-s.lastActive>idleNanos) {
+        s.parked=true;
+        continue;
+      }
+      s.schedule(this);
+    }
+  }
+
+  public List<HostSession> getSessions() {
+    return sessions;
+  }
+
+  private static long usedHeap() {
+    Runtime r=Runtime.getRuntime();
+    for (int i=0; i<3; i++)
+      System.gc();
+    return r.totalMemory()-r.freeMemory();
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    boolean has48kb=false;
+    int count=1000,seconds=10,idle=60,waitStart=0,waitEnd=0;
+    int threads=Runtime.getRuntime().availableProcessors();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-sessions") && i+1<argv.length)
+        count=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-seconds") && i+1<argv.length)
+        seconds=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-threads") && i+1<argv.length)
+        threads=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-idle") && i+1<argv.length)
+        idle=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-keywait") && i+1<argv.length) {
+        String[] range=argv[++i].split("-");
+        waitStart=Integer.parseInt(range[0],16);
+        waitEnd=Integer.parseInt(range[1],16);
+      } else if (argv[i].equals("-48"))
+        has48kb=true;
+    }
+    if (rom==null) {
+      System.out.println ("usage: java SessionHost -rom mc1000.rom [-48] [-sessions n] [-seconds s] [-threads n] [-idle seconds] [-keywait start-end]");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    for (int i=0; i<BOOT_FRAMES; i++)
+      machine.runFrame();
+
+    SessionHost host=new SessionHost(machine,threads,idle);
+    host.setKeyWait(waitStart,waitEnd);
+    long heap=usedHeap();
+    for (int i=0; i<count; i++)
+      host.open();
+    long opened=(usedHeap()-heap)/count;
+
+    int[] pixels=new int[MC6847.WIDTH*MC6847.HEIGHT];
+    long drawn=0;
+    host.start();
+    for (int i=0; i<seconds; i++) {
+      Thread.sleep(1000);
+      for (HostSession s : host.getSessions()) {
+        s.draw(pixels);
+        drawn++;
+      }
+    }
+    host.stop();
+    long footprint=(usedHeap()-heap)/count;
+
+    long cpu=0,frames=0,dropped=0,parked=0,least=Long.MAX_VALUE,most=0;
+    for (HostSession s : host.getSessions()) {
+      if (s.isParked())
+        parked++;
+      cpu+=s.getCpuNanos();
+      frames+=s.getFrames();
+      dropped+=s.getDropped();
+      least=Math.min(least,s.getFrames());
+      most=Math.max(most,s.getFrames());
+    }
+    double cpuPerSecond=frames==0?0:(double)cpu/frames*60;
+    System.out.println (count+" sessions on "+threads+" threads for "+seconds+" s");
+    System.out.println ("frames run "+frames+" of "+(long)count*seconds*60+", missed "+dropped
+      +", per session "+least+" to "+most+", "+parked+" parked, "+drawn+" screens drawn");
+    System.out.println ("CPU per emulated second "+(long)(cpuPerSecond/1000)/1000.0+" ms, "
+      +(cpuPerSecond==0?"-":""+(long)(1e9/cpuPerSecond))+" real-time sessions per core");
+    System.out.println ("heap per session "+opened+" bytes opened, "+footprint+" bytes running, target "
+      +TARGET_FOOTPRINT+(footprint<=TARGET_FOOTPRINT?" (ok)":" (over)"));
+  }
+}
@@ -0,0 +1,174 @@
+import java.io.*;
+import java.util.*;
+
+// On-disk cache of machine states at the BASIC prompt and right after a
+// tape has been loaded, so later sessions skip the boot and the tape.
+//
+// usage: java SnapshotCache -rom mc1000.rom [-48] [-tape file.csw]
+//                           [-dir cache] [-budget megabytes]
+//
+// Entries are keyed by the ROM checksum, the RAM size and, after a tape
+// load, the tape checksum, so a changed ROM or tape never hits an old
+// entry.  The least recently used entries are deleted to stay within the
+// disk budget.
+public class SnapshotCache {
+  public static final String PROMPT="prompt";
+  public static final String LOADED="loaded";
+
+  static final int BOOT_FRAMES=120;
+  static final int SETTLE_FRAMES=60;
+
+  File dir;
+  long budget;
+
+  SnapshotCache(String directory, long budgetBytes) {
+    dir=new File(directory);
+    dir.mkdirs();
+    budget=budgetBytes;
+  }
+
+  public String key (MC1000machine m, String stage) {
+    String key=Long.toHexString(m.memory.romChecksum())+"-"+(m.has48kb()?"48k":"16k");
+    if (stage.equals(LOADED))
+      key+="-"+Long.toHexString(m.tape.getChecksum());
+    return key+"-"+stage;
+  }
+
+  // Loads a cached state into the machine, false when there is none
+  public boolean restore (MC1000machine m, String stage) {
+    File file=new File(dir,key(m,stage)+".sav");
+    if (!file.exists())
+      return false;
+    try {
+      MachineState.load(m,file.getPath());
+      file.setLastModified(System.currentTimeMillis());
+      return true;
+    } catch (IOException e) {
+      // Unreadable or from another ROM, it is rebuilt by the caller
+      file.delete();
+      return false;
+    } catch (RuntimeException e) {
+      // Damaged past what the checks catch, and rebuilt the same way
+      file.delete();
+      return false;
+    }
+  }
+
+  // Written aside and renamed, so concurrent sessions never read half a file
+  public void store (MC1000machine m, String stage) throws IOException {
+    File file=new File(dir,key(m,stage)+".sav");
+    File temp=File.createTempFile("snap",".tmp",dir);
+    try {
+      MachineState.save(m,temp.getPath(),true);
+      if (!temp.renameTo(file)) {
+        file.delete();
+        if (!temp.renameTo(file))
+          throw new IOException("cannot write "+file);
+      }
+    } finally {
+      temp.delete();
+    }
+    evict();
+  }
+
+  // Brings a freshly reset machine to the BASIC prompt
+  public void toPrompt (MC1000machine m) throws IOException {
+    if (restore(m,PROMPT))
+      return;
+    for (int i=0; i<BOOT_FRAMES; i++)
+      m.runFrame();
+    store(m,PROMPT);
+  }
+
+  // Brings a freshly reset machine to the prompt after loading its tape with
+  // the given command
+  public void toLoaded (MC1000machine m, String command) throws IOException {
+    if (restore(m,LOADED))
+      return;
+    toPrompt(m);
+
+    Keyboard keys=m.psg.getKeyboard();
+    ScanListener previous=keys.injector;
+    TextInjector injector=new TextInjector(m);
+    injector.type(command);
+    for (int i=0; i<command.length()*SETTLE_FRAMES && !injector.isIdle(); i++)
+      m.runFrame();
+    keys.injector=previous;
+    keys.inject(Keyboard.EVENT_TAPE);
+    long frames=m.tape.getLength(MC1000machine.CYCLES_PER_FRAME*60)
+      /MC1000machine.CYCLES_PER_FRAME+BOOT_FRAMES;
+    for (long i=0; i<frames && m.psg.tapeProgress()<100; i++)
+      m.runFrame();
+    for (int i=0; i<SETTLE_FRAMES; i++)
+      m.runFrame();
+    store(m,LOADED);
+  }
+
+  public long size() {
+    long total=0;
+    for (File f : entries())
+      total+=f.length();
+    return total;
+  }
+
+  private File[] entries() {
+    File[] files=dir.listFiles(new FilenameFilter() {
+      public boolean accept (File d, String name) {
+        return name.endsWith(".sav");
+      }
+    });
+    return files==null?new File[0]:files;
+  }
+
+  private void evict() {
+    File[] files=entries();
+    Arrays.sort(files,new Comparator<File>() {
+      public int compare (File a, File b) {
+        return Long.compare(a.lastModified(),b.lastModified());
+      }
+    });
+    long total=0;
+    for (File f : files)
+      total+=f.length();
+    for (int i=0; i<files.length-1 && total>budget; i++) {
+      total-=files[i].length();
+      files[i].delete();
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,tape=null,cacheDir="snapshots";
+    boolean has48kb=false;
+    long budget=64;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-tape") && i+1<argv.length)
+        tape=argv[++i];
+      else if (argv[i].equals("-dir") && i+1<argv.length)
+        cacheDir=argv[++i];
+      else if (argv[i].equals("-budget") && i+1<argv.length)
+        budget=Long.parseLong(argv[++i]);
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+    }
+    if (rom==null) {
+      System.out.println ("usage: java SnapshotCache -rom mc1000.rom [-48] [-tape file.csw] [-dir cache] [-budget megabytes]");
+      System.exit(1);
+    }
+
+    SnapshotCache cache=new SnapshotCache(cacheDir,budget*1024*1024);
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+    long time=System.nanoTime();
+    if (tape!=null) {
+      machine.tape.readFromFile(tape);
+      cache.toLoaded(machine,"TLOAD\n");
+    } else
+      cache.toPrompt(machine);
+    time=System.nanoTime()-time;
+    System.out.println ((tape!=null?LOADED:PROMPT)+" in "+(time/1000)/1000.0+" ms, "
+      +cache.size()/1024+" KB cached");
+  }
+}
@@ -0,0 +1,109 @@
+import java.io.*;
+import java.util.*;
+
+// Names for guest addresses, read from assembler symbol files.
+//
+// Each line gives one address and one name, in any of the usual forms:
+//
+//   C000 START          START EQU 0C000H          START: equ $c000
+//   START = 0xC000      START .equ 49152
+//
+// Comments after ';' are ignored.  Addresses are hex when written with a
+// 0x, $ or H, or when they contain a hex letter or stand first on the line;
+// otherwise decimal.  An address without a name of its own is shown as the
+// nearest name below it plus the offset, never crossing from RAM into the
+// ROM at 0xC000.
+public class Symbols {
+  static final int ROM=0xC000;
+
+  TreeMap<Integer,String> names;
+
+  Symbols() {
+    names=new TreeMap<Integer,String>();
+  }
+
+  public void load (String file) throws IOException {
+    load(new FileReader(file));
+  }
+
+  // Reads the lines and closes the reader
+  public void load (Reader reader) throws IOException {
+    BufferedReader in=new BufferedReader(reader);
+    try {
+      String line;
+      while ((line=in.readLine())!=null) {
+        int comment=line.indexOf(';');
+        if (comment>=0)
+          line=line.substring(0,comment);
+        String[] words=line.trim().replace(':',' ').replace('=',' ').split("\\s+");
+        if (words.length<2)
+          continue;
+        if (words.length>2 && words[1].toUpperCase().matches("\\.?EQU"))
+          add(words[0],words[2],false);
+        else if (words.length==2 && isAddress(words[0],true))
+          add(words[1],words[0],true);
+        else if (words.length==2)
+          add(words[0],words[1],false);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  public void add (int addr, String name) {
+    names.put(addr&0xFFFF,name);
+  }
+
+  public boolean has (int addr) {
+    return names.containsKey(addr);
+  }
+
+  // The name at addr, or its address in hex
+  public String name (int addr) {
+    String s=names.get(addr);
+    return s!=null?s:hex(addr);
+  }
+
+  // The entry at or below addr on the same side of the ROM, or -1
+  public int entry (int addr) {
+    Integer e=names.floorKey(addr);
+    if (e==null || (e<ROM && addr>=ROM))
+      return -1;
+    return e;
+  }
+
+  // name+offset, for addresses inside a routine
+  public String locate (int addr) {
+    int e=entry(addr);
+    if (e<0)
+      return hex(addr);
+    return e==addr?names.get(e):names.get(e)+"+"+Integer.toHexString(addr-e).toUpperCase();
+  }
+
+  static String hex (int addr) {
+    String s=Integer.toHexString(0x10000|addr).toUpperCase();
+    return s.substring(1);
+  }
+
+  private void add (String name, String value, boolean first) {
+    if (isAddress(value,first))
+      add(parse(value,first),name);
+  }
+
+  private static boolean isAddress (String s, boolean first) {
+    return s.matches("(?i)(0x|\\$)?[0-9a-f]+h?") && (first || s.matches("(?i)(0x|\\$).*|[0-9].*"));
+  }
+
+  private static int parse (String s, boolean first) {
+    String lower=s.toLowerCase();
+    if (lower.startsWith("0x"))
+      return Integer.parseInt(lower.substring(2),16);
+    if (lower.startsWith("$"))
+      return Integer.parseInt(lower.substring(1),16);
+    if (lower.endsWith("h"))
+      return Integer.parseInt(lower.substring(0,lower.length()-1),16);
+    if (first || lower.matches(".*[a-f].*"))
+      return Integer.parseInt(lower,16);
+    return Integer.parseInt(lower);
+  }
+}
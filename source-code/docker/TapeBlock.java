@@ -0,0 +1,90 @@
+import java.io.*;
+
+// One MC-1000 tape block: 14-byte name, start and end address, data and checksum
+public class TapeBlock {
+  static final int NAME_SIZE=14;
+  static final int HEADER_SIZE=NAME_SIZE+4;
+
+  int index;
+  long sampleOffset;
+  byte[] name;
+  int start,end;
+  byte[] data;
+  int checksum;
+  boolean truncated;
+
+  TapeBlock(byte[] header) {
+    name=new byte[NAME_SIZE];
+    System.arraycopy(header,0,name,0,NAME_SIZE);
+    start=(header[NAME_SIZE]&0xFF)|((header[NAME_SIZE+1]&0xFF)<<8);
+    end=(header[NAME_SIZE+2]&0xFF)|((header[NAME_SIZE+3]&0xFF)<<8);
+    data=new byte[0];
+  }
+
+  public int getLength() {
+    return end>=start?end-start+1:0;
+  }
+
+  public String getName() {
+    StringBuffer s=new StringBuffer();
+    for (int i=0; i<NAME_SIZE && name[i]!=0; i++) {
+      char c=(char)(name[i]&0x7F);
+      s.append(c<32?'?':c);
+    }
+    return s.toString().trim();
+  }
+
+  public int computeChecksum() {
+    int sum=0;
+    for (int i=0; i<data.length; i++)
+      sum+=data[i]&0xFF;
+    return sum&0xFF;
+  }
+
+  public boolean isChecksumOk() {
+    return !truncated && checksum==computeChecksum();
+  }
+
+  public String getStatus() {
+    if (truncated)
+      return "TRUNC";
+    return isChecksumOk()?"OK":"BAD";
+  }
+
+  // Instant load: copy the block straight into the machine memory
+  public void loadInto (Memory mem) {
+    for (int i=0; i<data.length; i++)
+      mem.writeByte((start+i)&0xFFFF,data[i]&0xFF);
+  }
+
+  // The image is the block exactly as it is stored on tape
+  public void writeImage (String file) throws IOException {
+    DataOutputStream out=new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file)));
+    try {
+      out.write(name);
+      out.writeByte(start&0xFF);
+      out.writeByte(start>>8);
+      out.writeByte(end&0xFF);
+      out.writeByte(end>>8);
+      out.write(data);
+      out.writeByte(checksum);
+    } finally {
+      out.close();
+    }
+  }
+
+  public static TapeBlock readImage (String file) throws IOException {
+    DataInputStream in=new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+    try {
+      byte[] header=new byte[HEADER_SIZE];
+      in.readFully(header);
+      TapeBlock block=new TapeBlock(header);
+      block.data=new byte[block.getLength()];
+      in.readFully(block.data);
+      block.checksum=in.readUnsignedByte();
+      return block;
+    } finally {
+      in.close();
+    }
+  }
+}
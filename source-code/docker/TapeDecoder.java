@@ -0,0 +1,132 @@
+import java.util.*;
+
+// Demodulates the pulses of a tape into MC-1000 blocks without running the CPU.
+//
+// Each bit is one square wave cycle, a short cycle is a 1 and a long cycle is
+// a 0. A block starts with a leader of 1s, and every byte is sent as a 0 start
+// bit followed by 8 data bits, LSB first. The threshold between short and long
+// is taken from the leader, so tapes recorded at odd speeds still decode.
+public class TapeDecoder {
+  static final int LEADER_MIN=128;  // minimum leader, in half-waves
+  static final int GAP_FACTOR=4;    // a half-wave this many leader halves long is silence
+
+  int[] pulses;
+  int pos;
+  long offset;
+  int threshold,gap;
+
+  TapeDecoder(CSW tape) {
+    pulses=tape.getPulses();
+    if (pulses==null)
+      pulses=new int[0];
+    pos=0;
+    offset=0;
+  }
+
+  public static List<TapeBlock> decode (CSW tape) {
+    return new TapeDecoder(tape).decodeAll();
+  }
+
+  public List<TapeBlock> decodeAll() {
+    List<TapeBlock> blocks=new ArrayList<TapeBlock>();
+    byte[] header=new byte[TapeBlock.HEADER_SIZE];
+
+    while (findLeader()) {
+      long blockOffset=offset;
+      if (readBytes(header)<header.length)
+        continue;
+
+      TapeBlock block=new TapeBlock(header);
+      block.index=blocks.size();
+      block.sampleOffset=blockOffset;
+      block.data=new byte[block.getLength()];
+      int n=readBytes(block.data);
+      int checksum=n==block.data.length?readByte():-1;
+      if (checksum<0) {
+        byte[] partial=new byte[n];
+        System.arraycopy(block.data,0,partial,0,n);
+        block.data=partial;
+        block.truncated=true;
+      } else
+        block.checksum=checksum;
+      blocks.add(block);
+    }
+    return blocks;
+  }
+
+  private boolean findLeader() {
+    while (pos<pulses.length) {
+      int run=0;
+      long sum=0;
+      while (pos<pulses.length) {
+        long p=pulses[pos];
+        if (run>0) {
+          long avg=sum/run;
+          if (p*4<avg*3 || p*4>avg*5)
+            break;
+        }
+        sum+=p;
+        run++;
+        skip(1);
+      }
+      if (run>=LEADER_MIN) {
+        int avg=(int)(sum/run);
+        threshold=avg*3/2;
+        gap=Math.max(avg*GAP_FACTOR,threshold+1);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int readBytes (byte[] buffer) {
+    for (int i=0; i<buffer.length; i++) {
+      int b=readByte();
+      if (b<0)
+        return i;
+      buffer[i]=(byte)b;
+    }
+    return buffer.length;
+  }
+
+  // Returns the next byte, or -1 on a gap or at the end of the tape
+  private int readByte() {
+    int bit,value=0;
+
+    do {
+      bit=readBit();
+    } while (bit==1);
+    if (bit<0)
+      return -1;
+
+    for (int i=0; i<8; i++) {
+      bit=readBit();
+      if (bit<0)
+        return -1;
+      value|=bit<<i;
+    }
+    return value;
+  }
+
+  private int readBit() {
+    while (pos+1<pulses.length) {
+      int a=pulses[pos],b=pulses[pos+1];
+      if (a>=gap || b>=gap)
+        return -1;
+      boolean isLong=a>=threshold;
+      if (isLong!=(b>=threshold)) {
+        // Half-waves out of phase, resync on the next one
+        skip(1);
+        continue;
+      }
+      skip(2);
+      return isLong?0:1;
+    }
+    return -1;
+  }
+
+  private void skip (int n) {
+    for (int i=0; i<n; i++)
+      offset+=pulses[pos++];
+  }
+}
@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Headless catalog of CSW/WAV tape dumps.
+//
+// usage: java TapeIndexer [-o index.tsv] [-x imagedir] file-or-dir...
+//
+// Every file is demodulated on a fork-join pool and the index gets one line
+// per block: file, block, sample offset, name, start, end, checksum status.
+// With -x each complete block is also saved as an instant-load image.
+public class TapeIndexer {
+  static final int MAX_FILES_PER_TASK=4;
+
+  static class IndexTask extends RecursiveTask<String> {
+    static final long serialVersionUID=1L;
+
+    List<File> files;
+    File imageDir;
+
+    IndexTask(List<File> f, File dir) {
+      files=f;
+      imageDir=dir;
+    }
+
+    protected String compute() {
+      if (files.size()>MAX_FILES_PER_TASK) {
+        int half=files.size()/2;
+        IndexTask left=new IndexTask(files.subList(0,half),imageDir);
+        IndexTask right=new IndexTask(files.subList(half,files.size()),imageDir);
+        left.fork();
+        String r=right.compute();
+        return left.join()+r;
+      }
+
+      StringBuilder s=new StringBuilder();
+      for (File f : files)
+        indexFile(f,s);
+      return s.toString();
+    }
+
+    private void indexFile (File f, StringBuilder s) {
+      CSW tape=new CSW();
+      try {
+        tape.readFromFile(f.getPath());
+      } catch (Exception e) {
+        s.append(f.getPath()).append("\t-\t-\t-\t-\t-\tERROR ").append(e.getMessage()).append('\n');
+        return;
+      }
+
+      for (TapeBlock b : TapeDecoder.decode(tape)) {
+        s.append(f.getPath()).append('\t')
+         .append(b.index).append('\t')
+         .append(b.sampleOffset).append('\t')
+         .append(b.getName()).append('\t')
+         .append(hex(b.start)).append('\t')
+         .append(hex(b.end)).append('\t')
+         .append(b.getStatus()).append('\n');
+
+        if (imageDir!=null && !b.truncated) {
+          try {
+            b.writeImage(new File(imageDir,f.getName()+"."+b.index+".bin").getPath());
+          } catch (IOException e) {
+            System.err.println ("can't write image for "+f+": "+e.getMessage());
+          }
+        }
+      }
+    }
+  }
+
+  public static String index (List<File> files, File imageDir) {
+    return new ForkJoinPool().invoke(new IndexTask(files,imageDir));
+  }
+
+  private static String hex (int v) {
+    String s=Integer.toHexString(v).toUpperCase();
+    while (s.length()<4)
+      s="0"+s;
+    return s;
+  }
+
+  private static void collect (File f, List<File> files) {
+    if (f.isDirectory()) {
+      File[] list=f.listFiles();
+      if (list==null)
+        return;
+      Arrays.sort(list);
+      for (File child : list)
+        collect(child,files);
+    } else {
+      String name=f.getName().toLowerCase();
+      if (name.endsWith(".csw") || name.endsWith(".wav"))
+        files.add(f);
+    }
+  }
+
+  public static void main (String[] argv) throws IOException {
+    String output=null;
+    File imageDir=null;
+    List<File> files=new ArrayList<File>();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-o") && i+1<argv.length)
+        output=argv[++i];
+      else if (argv[i].equals("-x") && i+1<argv.length) {
+        imageDir=new File(argv[++i]);
+        imageDir.mkdirs();
+      } else
+        collect(new File(argv[i]),files);
+    }
+
+    if (files.isEmpty()) {
+      System.out.println ("usage: java TapeIndexer [-o index.tsv] [-x imagedir] file-or-dir...");
+      System.exit(1);
+    }
+
+    long time=System.nanoTime();
+    String index=index(files,imageDir);
+    time=System.nanoTime()-time;
+
+    if (output==null)
+      System.out.print (index);
+    else {
+      Writer out=new BufferedWriter (new OutputStreamWriter (new FileOutputStream (output),"UTF-8"));
+      try {
+        out.write(index);
+      } finally {
+        out.close();
+      }
+    }
+    System.err.println (files.size()+" files indexed in "+(time/1000000)+" ms");
+  }
+}
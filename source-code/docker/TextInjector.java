@@ -0,0 +1,196 @@
+import java.io.*;
+
+// Types text into the machine much faster than a person could.
+//
+// Given the address of the ROM routine that waits for a key, every call to it
+// is trapped and returns the next character at once, so the speed is bound
+// only by how fast BASIC consumes the text. Without it the keyboard matrix is
+// driven directly, holding each key just for the number of scans of its line
+// the ROM needs to see it pressed and then released.
+//
+// In trap mode each character goes to the Keyboard as an input event at
+// the cycle of the trap, so recordings and the rewind journal have it;
+// on replay the trap takes the recorded one instead of new text.
+public class TextInjector implements Z80Trap, ScanListener {
+  static final String[] MATRIX={
+    "@HPX08","AIQY19","BJRZ2:","CKS\r3;","DLT 4,","EMU\b5-","FNV^6.","GOW\0007/"
+  };
+  static final int SHIFT_LINE=6;
+  static final int IDLE=0,PRESSED=1,RELEASED=2;
+
+  Keyboard keys;
+  StringBuilder pending;
+  int cursor;
+  volatile boolean hasPending;
+  int trapAddress;
+  int holdScans,releaseScans;
+  int state,line,col,scans;
+  boolean shift;
+
+  // Matrix mode
+  TextInjector(MC1000machine m) {
+    keys=m.psg.getKeyboard();
+    pending=new StringBuilder();
+    trapAddress=-1;
+    holdScans=2;
+    releaseScans=2;
+    state=IDLE;
+    keys.injector=this;
+  }
+
+  // Trap mode, on the entry of the ROM routine that returns a key in A
+  TextInjector(MC1000machine m, int keyRoutine) {
+    keys=m.psg.getKeyboard();
+    pending=new StringBuilder();
+    trapAddress=keyRoutine;
+    state=IDLE;
+    keys.keyTrap=keyRoutine;
+    m.z80core.setTrap(keyRoutine,this);
+  }
+
+  public void setScans (int hold, int release) {
+    holdScans=hold;
+    releaseScans=release;
+  }
+
+  public synchronized void type (String text) {
+    pending.append(text);
+    hasPending=cursor<pending.length();
+  }
+
+  public synchronized boolean isIdle() {
+    return cursor==pending.length() && state==IDLE;
+  }
+
+  private synchronized int nextChar() {
+    if (!hasPending)
+      return -1;
+    char c=pending.charAt(cursor++);
+    if (cursor==pending.length()) {
+      pending.setLength(0);
+      cursor=0;
+      hasPending=false;
+    }
+    if (c=='\n')
+      c='\r';
+    return Character.toUpperCase(c);
+  }
+
+  // Frames run ahead are undone and the text taken there would be lost,
+  // so they see the routine wait, as the matrix does
+  public boolean trap (Z80 cpu) {
+    if (keys.speculative)
+      return false;
+    long clock=cpu.getClocks();
+    int c=keys.takeTyped(clock);
+    if (c<0 && hasPending && (c=nextChar())>=0) {
+      keys.type(clock,c);
+      c=keys.takeTyped(clock);
+    }
+    if (c<0)
+      return false;
+    cpu.setA(c);
+    cpu.ret();
+    return true;
+  }
+
+  // Called after every read of the keyboard matrix
+  public void scanned (Keyboard k, int select) {
+    if (state==IDLE) {
+      press(k);
+      return;
+    }
+    if (select!=((~(1<<line))&0xFF))
+      return;
+    if (++scans<(state==PRESSED?holdScans:releaseScans))
+      return;
+
+    scans=0;
+    if (state==PRESSED) {
+      k.inject(Keyboard.keyEvent(line,col,false));
+      if (shift)
+        k.inject(Keyboard.modifierEvent(SHIFT_LINE,false));
+      state=RELEASED;
+    } else
+      state=IDLE;
+  }
+
+  private void press (Keyboard k) {
+    int c;
+    if (!hasPending)
+      return;
+    do {
+      c=nextChar();
+      if (c<0)
+        return;
+    } while (!locate(c));
+
+    if (shift)
+      k.inject(Keyboard.modifierEvent(SHIFT_LINE,true));
+    k.inject(Keyboard.keyEvent(line,col,true));
+    scans=0;
+    state=PRESSED;
+  }
+
+  // Shifted symbols sit 0x10 away from their key, as in ASCII bit-paired layouts
+  private boolean locate (int c) {
+    for (int pass=0; pass<2; pass++) {
+      int key=pass==0?c:c^0x10;
+      if (pass==1 && (c<0x21 || c>0x3F))
+        break;
+      for (int i=0; i<8; i++) {
+        int j=key==0?-1:MATRIX[i].indexOf(key);
+        if (j>=0) {
+          line=i;
+          col=j;
+          shift=pass==1;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // usage: java TextInjector -rom mc1000.rom [-trap addr] [-boot frames] file.bas
+  public static void main (String[] argv) throws Exception {
+    String rom=null,file=null;
+    int trap=-1,boot=120;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-trap") && i+1<argv.length)
+        trap=Integer.parseInt(argv[++i],16);
+      else if (argv[i].equals("-boot") && i+1<argv.length)
+        boot=Integer.parseInt(argv[++i]);
+      else
+        file=argv[i];
+    }
+    if (rom==null || file==null) {
+      System.out.println ("usage: java TextInjector -rom mc1000.rom [-trap addr] [-boot frames] file.bas");
+      System.exit(1);
+    }
+
+    StringBuilder text=new StringBuilder();
+    BufferedReader in=new BufferedReader (new FileReader (file));
+    for (String s=in.readLine(); s!=null; s=in.readLine())
+      text.append(s).append('\n');
+    in.close();
+
+    MC1000machine machine=new MC1000machine(true);
+    machine.memory.loadROM(rom);
+    for (int i=0; i<boot; i++)
+      machine.runFrame();
+
+    TextInjector injector=trap<0?new TextInjector(machine):new TextInjector(machine,trap);
+    injector.type(text.toString());
+    long time=System.nanoTime();
+    int frames=0;
+    while (!injector.isIdle()) {
+      machine.runFrame();
+      frames++;
+    }
+    time=System.nanoTime()-time;
+    System.out.println (text.length()+" chars in "+frames+" frames, "+(time/1000000)+" ms");
+  }
+}
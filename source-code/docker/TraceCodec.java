@@ -0,0 +1,129 @@
+import java.nio.*;
+
+// Packs TraceRecorder records against the record before them.
+//
+// A packed record is a mask of the fields that changed, as a varint, the
+// clock delta and the zigzag PC delta as varints, and then only the fields
+// in the mask.  R is expected to have moved by one, and the opcode bytes to
+// be the ones last seen at the same PC, so in a loop most records come down
+// to four or five bytes before deflate.  Packing and unpacking keep the
+// same state, so a codec only reads what a codec of its own kind wrote.
+public class TraceCodec {
+  static final int AF=1,HL=2,BC=4,DE=8,SP=16,OPCODE=32,R=64,IX=128,IY=256,I=512,INTERRUPTS=1024;
+  static final int MAX_PACKED=48;
+  // Mask bit and record offset of each 16 bit register, in packing order
+  static final int[] REG_BITS={AF,HL,BC,DE,SP,IX,IY};
+  static final int[] REG_OFFSETS={
+    TraceRecorder.REGS,TraceRecorder.REGS+6,TraceRecorder.REGS+2,TraceRecorder.REGS+4,
+    TraceRecorder.REGS+12,TraceRecorder.REGS+8,TraceRecorder.REGS+10
+  };
+
+  int[] opcodes;
+  long clock;
+  int pc,r,i,interrupts;
+  int[] regs;
+
+  TraceCodec() {
+    opcodes=new int[0x10000];
+    regs=new int[REG_BITS.length];
+  }
+
+  // Packs the record at offset at of records into out
+  public void pack (ByteBuffer records, int at, ByteBuffer out) {
+    long c=records.getLong(at+TraceRecorder.CLOCK);
+    int p=records.getShort(at+TraceRecorder.PC)&0xFFFF;
+    int op=records.getInt(at+TraceRecorder.OPCODE);
+    int newR=records.get(at+TraceRecorder.R)&0xFF;
+    int newI=records.get(at+TraceRecorder.I)&0xFF;
+    int ints=records.getShort(at+TraceRecorder.INTERRUPTS)&0xFFFF;
+
+    int mask=0;
+    for (int k=0; k<REG_BITS.length; k++)
+      if ((records.getShort(at+REG_OFFSETS[k])&0xFFFF)!=regs[k])
+        mask|=REG_BITS[k];
+    if (op!=opcodes[p])
+      mask|=OPCODE;
+    if (newR!=nextR(r))
+      mask|=R;
+    if (newI!=i)
+      mask|=I;
+    if (ints!=interrupts)
+      mask|=INTERRUPTS;
+
+    putVarint(out,mask);
+    putVarint(out,c-clock);
+    int delta=(short)(p-pc);
+    putVarint(out,(delta<<1)^(delta>>31));
+    for (int k=0; k<REG_BITS.length; k++)
+      if ((mask&REG_BITS[k])!=0) {
+        regs[k]=records.getShort(at+REG_OFFSETS[k])&0xFFFF;
+        out.putShort((short)regs[k]);
+      }
+    if ((mask&OPCODE)!=0) {
+      out.putInt(op);
+      opcodes[p]=op;
+    }
+    if ((mask&R)!=0)
+      out.put((byte)newR);
+    if ((mask&I)!=0)
+      out.put((byte)newI);
+    if ((mask&INTERRUPTS)!=0)
+      out.putShort((short)ints);
+
+    clock=c;
+    pc=p;
+    r=newR;
+    i=newI;
+    interrupts=ints;
+  }
+
+  // Unpacks one record from in into the RECORD bytes at offset at of record
+  public void unpack (ByteBuffer in, ByteBuffer record, int at) {
+    int mask=(int)getVarint(in);
+    clock+=getVarint(in);
+    int delta=(int)getVarint(in);
+    pc=(pc+((delta>>>1)^-(delta&1)))&0xFFFF;
+    for (int k=0; k<REG_BITS.length; k++)
+      if ((mask&REG_BITS[k])!=0)
+        regs[k]=in.getShort()&0xFFFF;
+    if ((mask&OPCODE)!=0)
+      opcodes[pc]=in.getInt();
+    r=(mask&R)!=0?in.get()&0xFF:nextR(r);
+    if ((mask&I)!=0)
+      i=in.get()&0xFF;
+    if ((mask&INTERRUPTS)!=0)
+      interrupts=in.getShort()&0xFFFF;
+
+    record.putLong(at+TraceRecorder.CLOCK,clock);
+    record.putShort(at+TraceRecorder.PC,(short)pc);
+    record.putInt(at+TraceRecorder.OPCODE,opcodes[pc]);
+    for (int k=0; k<REG_BITS.length; k++)
+      record.putShort(at+REG_OFFSETS[k],(short)regs[k]);
+    record.put(at+TraceRecorder.I,(byte)i);
+    record.put(at+TraceRecorder.R,(byte)r);
+    record.putShort(at+TraceRecorder.INTERRUPTS,(short)interrupts);
+  }
+
+  private static int nextR (int r) {
+    return (r&0x80)|((r+1)&0x7F);
+  }
+
+  static void putVarint (ByteBuffer out, long v) {
+    while ((v&~0x7FL)!=0) {
+      out.put((byte)(v|0x80));
+      v>>>=7;
+    }
+    out.put((byte)v);
+  }
+
+  static long getVarint (ByteBuffer in) {
+    long v=0;
+    int shift=0,b;
+    do {
+      b=in.get();
+      v|=(long)(b&0x7F)<<shift;
+      shift+=7;
+    } while ((b&0x80)!=0);
+    return v;
+  }
+}
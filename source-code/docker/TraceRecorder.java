@@ -0,0 +1,233 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+// Records every instruction the machine runs into a compressed trace file.
+//
+// usage: java TraceRecorder -rom mc1000.rom [-48] [-frames n] [-out file]
+//
+// The recorder runs the frames itself, one Z80.step() at a time, and before
+// each step puts a fixed RECORD byte record of the state into a ring of
+// longs: the clock, PC, the four bytes at PC, AF BC DE HL IX IY SP, I, R
+// and the interrupt state.  A writer thread drains the ring, packs each record
+// against the one before with TraceCodec, which keeps only what changed,
+// and deflates the result.  The CPU thread never blocks on the file; it
+// only waits when the ring is full.  TraceTool decodes and compares the
+// files.
+//
+// The aim is at most MAX_SLOWDOWN times the untraced frame time on the
+// emulation thread, which the tool shows as ok or over.  A record costs a
+// clock subtraction, the CPU writing its own fields, and one fetch of the
+// opcode bytes that goes straight to the RAM or ROM page; head is only
+// read again when the ring looks full.
+//
+// The file is the magic "MC1KTRCE", the version and the record size as
+// shorts, then one deflate stream of packed records.
+public class TraceRecorder implements Runnable {
+  static final byte[] MAGIC={'M','C','1','K','T','R','C','E'};
+  static final int VERSION=1;
+  static final int RECORD=32;
+  static final int RING_RECORDS=1<<16;
+  // Records between publishing the tail to the writer
+  static final int BATCH=1024;
+  static final int DRAIN_RECORDS=4096;
+  static final int WARMUP_FRAMES=120;
+  static final double MAX_SLOWDOWN=3;
+  static final int LONGS=RECORD/8;
+
+  // Offsets inside a record
+  static final int CLOCK=0,PC=8,OPCODE=10,REGS=14,I=28,R=29,INTERRUPTS=30;
+
+  MC1000machine machine;
+  Z80 cpu;
+  MC1000memory memory;
+
+  // RECORD/8 longs a record
+  long[] ring;
+  AtomicLong head,tail;
+  // The next record, and the first one the writer has not yet freed as
+  // last seen, so that only a full ring reads head
+  long next,limit;
+  Thread writer;
+  OutputStream out;
+  volatile boolean closed;
+  volatile IOException failure;
+  long stalls;
+
+  TraceRecorder(MC1000machine m, String file) throws IOException {
+    machine=m;
+    cpu=m.z80core;
+    memory=m.memory;
+    ring=new long[RING_RECORDS*LONGS];
+    head=new AtomicLong();
+    tail=new AtomicLong();
+    limit=RING_RECORDS;
+
+    DataOutputStream header=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),1<<16));
+    header.write(MAGIC);
+    header.writeShort(VERSION);
+    header.writeShort(RECORD);
+    out=new DeflaterOutputStream(header,new Deflater(Deflater.BEST_SPEED),1<<16);
+
+    writer=new Thread(this,"trace writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public void runFrame() {
+    cpu.beginSlice(MC1000machine.CYCLES_PER_FRAME);
+    // The clock at the end of the slice, so each record only subtracts
+    long end=cpu.getClocks()+cpu.getCyclesToDo();
+    while (cpu.getCyclesToDo()>0) {
+      record(end);
+      cpu.step();
+    }
+    tail.lazySet(next);
+    machine.endSlice();
+  }
+
+  // The record as four little-endian longs, in the order of the offsets;
+  // the CPU writes the last three from its fields
+  private void record(long end) {
+    if (next>=limit)
+      waitForRoom();
+    int at=(int)(next&(RING_RECORDS-1))*LONGS;
+    ring[at]=end-cpu.getCyclesToDo();
+    cpu.putTrace(ring,at,memory.fetch4(cpu.getPC()));
+    if ((++next&(BATCH-1))==0)
+      tail.lazySet(next);
+  }
+
+  private void waitForRoom() {
+    limit=head.get()+RING_RECORDS;
+    if (next<limit)
+      return;
+    tail.lazySet(next);
+    stalls++;
+    while (next>=(limit=head.get()+RING_RECORDS)) {
+      if (failure!=null)
+        throw new IllegalStateException("trace writer failed: "+failure.getMessage());
+      LockSupport.parkNanos(100000);
+    }
+  }
+
+  public void run() {
+    ByteBuffer records=ByteBuffer.allocate(DRAIN_RECORDS*RECORD).order(ByteOrder.LITTLE_ENDIAN);
+    LongBuffer chunk=records.asLongBuffer();
+    TraceCodec codec=new TraceCodec();
+    ByteBuffer packed=ByteBuffer.allocate(DRAIN_RECORDS*TraceCodec.MAX_PACKED).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      while (true) {
+        long h=head.get();
+        boolean last=closed;
+        int n=(int)Math.min(tail.get()-h,DRAIN_RECORDS);
+        // Up to the end of the ring at most
+        n=Math.min(n,RING_RECORDS-(int)(h&(RING_RECORDS-1)));
+        if (n==0) {
+          if (last)
+            break;
+          LockSupport.parkNanos(1000000);
+          continue;
+        }
+        chunk.clear();
+        chunk.put(ring,(int)(h&(RING_RECORDS-1))*LONGS,n*LONGS);
+        head.lazySet(h+n);
+        packed.clear();
+        for (int i=0; i<n; i++)
+          codec.pack(records,i*RECORD,packed);
+        out.write(packed.array(),0,packed.position());
+      }
+      out.close();
+    } catch (IOException e) {
+      failure=e;
+    }
+  }
+
+  // Flushes the ring and closes the file
+  public void close() throws IOException {
+    tail.set(next);
+    closed=true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    if (failure!=null)
+      throw failure;
+  }
+
+  public long getRecords() {
+    return next;
+  }
+
+  public long getStalls() {
+    return stalls;
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null,file="trace.bin";
+    boolean has48kb=false;
+    int frames=600;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-48"))
+        has48kb=true;
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-out") && i+1<argv.length)
+        file=argv[++i];
+    }
+    if (rom==null) {
+      System.out.println ("usage: java TraceRecorder -rom mc1000.rom [-48] [-frames n] [-out file]");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(has48kb);
+    machine.memory.loadROM(rom);
+
+    // Warm both paths up on throwaway forks before timing
+    MC1000machine warm=machine.fork();
+    File scratch=File.createTempFile("trace",".bin");
+    TraceRecorder warmup=new TraceRecorder(machine.fork(),scratch.getPath());
+    for (int i=0; i<WARMUP_FRAMES; i++) {
+      warm.runFrame();
+      warmup.runFrame();
+    }
+    warmup.close();
+    scratch.delete();
+
+    // The same frames untraced on a fork, to show the slowdown.  Both are
+    // timed on the emulation thread's clock, which is all the machine
+    // loses when the writer has a core of its own
+    ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+    MC1000machine plain=machine.fork();
+    long plainTime=threads.getCurrentThreadCpuTime();
+    for (int i=0; i<frames; i++)
+      plain.runFrame();
+    plainTime=threads.getCurrentThreadCpuTime()-plainTime;
+
+    TraceRecorder recorder=new TraceRecorder(machine,file);
+    long time=System.nanoTime();
+    long tracedTime=threads.getCurrentThreadCpuTime();
+    for (int i=0; i<frames; i++)
+      recorder.runFrame();
+    tracedTime=threads.getCurrentThreadCpuTime()-tracedTime;
+    recorder.close();
+    time=System.nanoTime()-time;
+
+    long size=new File(file).length();
+    System.out.println (recorder.getRecords()+" instructions, "+size+" bytes ("
+      +String.format("%.2f",(double)size/Math.max(recorder.getRecords(),1))+" per record), "
+      +recorder.getStalls()+" stalls on a full ring, "+time/1000000+" ms to the closed file");
+    double slowdown=(double)tracedTime/Math.max(plainTime,1);
+    System.out.println (frames+" frames: plain "+plainTime/1000000+" ms, traced "+tracedTime/1000000
+      +" ms, slowdown "+String.format("%.2fx",slowdown)+", target "+String.format("%.0fx",MAX_SLOWDOWN)
+      +(slowdown<=MAX_SLOWDOWN?" (ok)":" (over)"));
+  }
+}
@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+// Reads the trace files TraceRecorder writes.
+//
+// usage: java TraceTool -dump trace [-from n] [-count n] [-symbols file]
+//        java TraceTool -diff a b [-context n] [-noclock] [-symbols file]
+//
+// -dump prints the records one per line.  -diff reads two traces side by
+// side and stops at the first record where they part, printing the context
+// records before it, both versions of it and the fields that differ.  With
+// -noclock the clocks are left out of the comparison, for traces that
+// started at different times.
+public class TraceTool {
+  static final String[] FIELDS={"clock","PC","opcode","AF","BC","DE","HL","IX","IY","SP","I","R","interrupts"};
+  // Offset and width of each field in a record
+  static final int[] OFFSETS={
+    TraceRecorder.CLOCK,TraceRecorder.PC,TraceRecorder.OPCODE,
+    TraceRecorder.REGS,TraceRecorder.REGS+2,TraceRecorder.REGS+4,TraceRecorder.REGS+6,
+    TraceRecorder.REGS+8,TraceRecorder.REGS+10,TraceRecorder.REGS+12,
+    TraceRecorder.I,TraceRecorder.R,TraceRecorder.INTERRUPTS
+  };
+  static final int[] WIDTHS={8,2,4,2,2,2,2,2,2,2,1,1,2};
+
+  InputStream in;
+  TraceCodec codec;
+  ByteBuffer packed;
+  boolean eof;
+  long index;
+
+  TraceTool(String file) throws IOException {
+    DataInputStream header=new DataInputStream(new BufferedInputStream(new FileInputStream(file),1<<16));
+    byte[] magic=new byte[TraceRecorder.MAGIC.length];
+    header.readFully(magic);
+    if (!new String(magic,"US-ASCII").equals(new String(TraceRecorder.MAGIC,"US-ASCII")))
+      throw new IOException(file+": not a trace file");
+    int version=header.readShort();
+    int record=header.readShort();
+    if (version!=TraceRecorder.VERSION || record!=TraceRecorder.RECORD)
+      throw new IOException(file+": trace version "+version+" with "+record+" byte records not supported");
+    in=new InflaterInputStream(header,new Inflater(),1<<16);
+    codec=new TraceCodec();
+    packed=ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+    packed.flip();
+  }
+
+  // Reads the next record into record, or returns false at the end
+  public boolean next (ByteBuffer record) throws IOException {
+    if (packed.remaining()<TraceCodec.MAX_PACKED && !eof) {
+      packed.compact();
+      while (packed.hasRemaining()) {
+        int n=in.read(packed.array(),packed.position(),packed.remaining());
+        if (n<0) {
+          eof=true;
+          break;
+        }
+        packed.position(packed.position()+n);
+      }
+      packed.flip();
+    }
+    if (!packed.hasRemaining())
+      return false;
+    codec.unpack(packed,record,0);
+    index++;
+    return true;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  static ByteBuffer newRecord() {
+    return ByteBuffer.allocate(TraceRecorder.RECORD).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  static long field (ByteBuffer record, int f) {
+    int at=OFFSETS[f];
+    switch (WIDTHS[f]) {
+    case 8: return record.getLong(at);
+    case 4: return record.getInt(at)&0xFFFFFFFFL;
+    case 2: return record.getShort(at)&0xFFFF;
+    default: return record.get(at)&0xFF;
+    }
+  }
+
+  static String hex (long v, int digits) {
+    String s=Long.toHexString(v).toUpperCase();
+    while (s.length()<digits)
+      s="0"+s;
+    return s;
+  }
+
+  static String format (long index, ByteBuffer record, Symbols symbols) {
+    StringBuilder s=new StringBuilder();
+    s.append(index).append(' ').append(field(record,0)).append(' ');
+    int pc=(int)field(record,1);
+    s.append(symbols!=null?symbols.locate(pc):hex(pc,4));
+    s.append(' ');
+    for (int i=0; i<4; i++)
+      s.append(hex(record.get(TraceRecorder.OPCODE+i)&0xFF,2));
+    for (int f=3; f<FIELDS.length; f++)
+      s.append(' ').append(FIELDS[f]).append('=').append(hex(field(record,f),2*WIDTHS[f]));
+    return s.toString();
+  }
+
+  static void dump (String file, long from, long count, Symbols symbols) throws IOException {
+    TraceTool trace=new TraceTool(file);
+    ByteBuffer record=newRecord();
+    while (count>0 && trace.next(record)) {
+      if (trace.index>from) {
+        System.out.println (format(trace.index-1,record,symbols));
+        count--;
+      }
+    }
+    trace.close();
+  }
+
+  // Returns the index of the first record that differs, or -1
+  static long diff (String fileA, String fileB, int context, boolean clock, Symbols symbols) throws IOException {
+    TraceTool a=new TraceTool(fileA),b=new TraceTool(fileB);
+    ByteBuffer[] history=new ByteBuffer[Math.max(context,0)+1];
+    for (int i=0; i<history.length; i++)
+      history[i]=newRecord();
+    ByteBuffer other=newRecord();
+    long at=-1;
+
+    try {
+      while (true) {
+        ByteBuffer record=history[(int)(a.index%history.length)];
+        boolean hasA=a.next(record),hasB=b.next(other);
+        if (!hasA && !hasB) {
+          System.out.println ("traces match over "+a.index+" records");
+          return -1;
+        }
+        if (hasA!=hasB) {
+          System.out.println ((hasA?fileB:fileA)+" ends after "+(hasA?b.index:a.index)+" records");
+          return hasA?b.index:a.index;
+        }
+
+        String fields="";
+        for (int f=clock?0:1; f<FIELDS.length; f++)
+          if (field(record,f)!=field(other,f))
+            fields+=" "+FIELDS[f];
+        if (fields.length()==0)
+          continue;
+
+        at=a.index-1;
+        for (long i=Math.max(at-context,0); i<at; i++)
+          System.out.println ("  "+format(i,history[(int)(i%history.length)],symbols));
+        System.out.println ("< "+format(at,record,symbols));
+        System.out.println ("> "+format(at,other,symbols));
+        System.out.println ("first difference at record "+at+" in"+fields);
+        return at;
+      }
+    } finally {
+      a.close();
+      b.close();
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String dump=null,diffA=null,diffB=null,symbolFile=null;
+    long from=0,count=Long.MAX_VALUE;
+    int context=8;
+    boolean clock=true;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-dump") && i+1<argv.length)
+        dump=argv[++i];
+      else if (argv[i].equals("-diff") && i+2<argv.length) {
+        diffA=argv[++i];
+        diffB=argv[++i];
+      }
+      else if (argv[i].equals("-from") && i+1<argv.length)
+        from=Long.parseLong(argv[++i]);
+      else if (argv[i].equals("-count") && i+1<argv.length)
+        count=Long.parseLong(argv[++i]);
+      else if (argv[i].equals("-context") && i+1<argv.length)
+        context=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-noclock"))
+        clock=false;
+      else if (argv[i].equals("-symbols") && i+1<argv.length)
+        symbolFile=argv[++i];
+    }
+    if (dump==null && diffA==null) {
+      System.out.println ("usage: java TraceTool -dump trace [-from n] [-count n] [-symbols file]");
+      System.out.println ("       java TraceTool -diff a b [-context n] [-noclock] [-symbols file]");
+      System.exit(1);
+    }
+
+    Symbols symbols=null;
+    if (symbolFile!=null) {
+      symbols=new Symbols();
+      symbols.load(symbolFile);
+    }
+    if (dump!=null)
+      dump(dump,from,count,symbols);
+    else if (diff(diffA,diffB,context,clock,symbols)>=0)
+      System.exit(2);
+  }
+}
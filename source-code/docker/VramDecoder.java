@@ -0,0 +1,101 @@
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+
+// Reference decoder of the VramEncoder stream, and a viewer for VramServer.
+//
+// usage: java VramDecoder [-host name] [-port n] [-frames n]
+//
+// Deltas that arrive before the first keyframe are ignored.  The screen is
+// drawn by an MC6847 of its own, with no machine behind it.
+public class VramDecoder {
+  byte[] vram;
+  int mode,frame;
+  boolean synced;
+  long messages,bytes;
+  MC6847 vdp;
+
+  VramDecoder() {
+    vram=new byte[VramEncoder.SIZE];
+  }
+
+  public void decode (ByteBuffer in) {
+    bytes+=in.remaining();
+    messages++;
+    int type=in.get();
+    int f=in.getInt();
+    int m=in.get()&0xFF;
+
+    if (type==VramEncoder.KEY) {
+      in.get(vram);
+      synced=true;
+    } else if (synced) {
+      int runs=in.getShort()&0xFFFF;
+      int pos=0;
+      for (int i=0; i<runs; i++) {
+        pos+=VramEncoder.getVarint(in);
+        int length=VramEncoder.getVarint(in);
+        in.get(vram,pos,length);
+        pos+=length;
+      }
+    } else
+      return;
+    frame=f;
+    mode=m;
+  }
+
+  public boolean isSynced() {
+    return synced;
+  }
+
+  public byte[] getVRAM() {
+    return vram;
+  }
+
+  public BufferedImage draw() {
+    if (vdp==null)
+      vdp=new MC6847(null);
+    vdp.changeMode(mode);
+    vdp.getVRAM().put(ByteBuffer.wrap(vram));
+    return vdp.draw();
+  }
+
+  // Reads the length-prefixed messages of a VramServer until it closes
+  public void receive (InputStream stream, int maxFrames) throws IOException {
+    DataInputStream in=new DataInputStream(new BufferedInputStream(stream));
+    byte[] message=new byte[VramEncoder.BUFFER_SIZE];
+    try {
+      while (maxFrames<0 || messages<maxFrames) {
+        int length=in.readInt();
+        in.readFully(message,0,length);
+        decode(ByteBuffer.wrap(message,0,length));
+      }
+    } catch (EOFException e) {
+      // The server went away
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String host="localhost";
+    int port=VramServer.PORT,frames=-1;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-host") && i+1<argv.length)
+        host=argv[++i];
+      else if (argv[i].equals("-port") && i+1<argv.length)
+        port=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+    }
+
+    VramDecoder decoder=new VramDecoder();
+    Socket socket=new Socket(host,port);
+    long time=System.nanoTime();
+    decoder.receive(socket.getInputStream(),frames);
+    time=System.nanoTime()-time;
+    socket.close();
+    System.out.println (decoder.messages+" messages, "+decoder.bytes+" bytes, "
+      +decoder.bytes*1000000000L/Math.max(time,1)+" bytes/s, last frame "+decoder.frame);
+  }
+}
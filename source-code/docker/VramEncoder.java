@@ -0,0 +1,136 @@
+import java.nio.*;
+import java.util.*;
+
+// Encodes the MC6847 screen as VRAM changes, for remote viewers.
+//
+// The screen is fully described by its 6 KB of VRAM and the mode byte, so
+// a frame is sent as the byte runs that changed since the previous one.
+// Every message is
+//
+//   type(1) frame(4) mode(1) body
+//
+// where a KEY body is the whole VRAM and a DELTA body is a run count(2)
+// followed by skip(varint) length(varint) bytes for each run, skip being
+// counted from the end of the previous run.  Runs closer than MERGE_GAP are
+// merged, as a short gap costs less than a new run header.  Unchanged frames
+// produce no message at all.
+public class VramEncoder {
+  public static final int KEY=0;
+  public static final int DELTA=1;
+  public static final int SIZE=0x1800;
+  public static final int HEADER_SIZE=6;
+  public static final int MAX_MESSAGE=HEADER_SIZE+SIZE;
+  public static final int BUFFER_SIZE=2*MAX_MESSAGE;
+  static final int MERGE_GAP=3;
+
+  byte[] previous,current;
+  ByteBuffer currentBuffer;
+  int previousMode;
+  int frame,keyInterval,sinceKey;
+  boolean forceKey;
+
+  VramEncoder(int keyFrames) {
+    previous=new byte[SIZE];
+    current=new byte[SIZE];
+    currentBuffer=ByteBuffer.wrap(current);
+    keyInterval=keyFrames;
+    forceKey=true;
+  }
+
+  // The next frame is sent whole, for a viewer that has just joined
+  public void requestKey() {
+    forceKey=true;
+  }
+
+  // Encodes the current frame into out, which needs BUFFER_SIZE bytes of
+  // room; false when nothing changed
+  public boolean encode (MC6847 vdp, ByteBuffer out) {
+    currentBuffer.clear();
+    vdp.getVRAM().get(currentBuffer);
+    int mode=vdp.mode&0xFF;
+    frame++;
+
+    boolean key=forceKey || ++sinceKey>=keyInterval;
+    if (!key) {
+      int start=out.position();
+      if (!encodeDelta(mode,out))
+        return false;
+      // A delta bigger than the screen is sent as a keyframe instead
+      if (out.position()-start>MAX_MESSAGE) {
+        out.position(start);
+        key=true;
+      }
+    }
+    if (key) {
+      header(out,KEY,mode);
+      out.put(current);
+      forceKey=false;
+      sinceKey=0;
+    }
+
+    byte[] swap=previous;
+    previous=current;
+    current=swap;
+    currentBuffer=ByteBuffer.wrap(current);
+    previousMode=mode;
+    return true;
+  }
+
+  private boolean encodeDelta (int mode, ByteBuffer out) {
+    int start=out.position();
+    header(out,DELTA,mode);
+    int countPos=out.position();
+    out.putShort((short)0);
+
+    int runs=0,last=0,pos=0;
+    while (pos<SIZE) {
+      int m=Arrays.mismatch(current,pos,SIZE,previous,pos,SIZE);
+      if (m<0)
+        break;
+      int runStart=pos+m,runEnd=runStart+1;
+      while (runEnd<SIZE) {
+        int limit=Math.min(SIZE,runEnd+MERGE_GAP);
+        int n=Arrays.mismatch(current,runEnd,limit,previous,runEnd,limit);
+        if (n<0)
+          break;
+        runEnd+=n+1;
+      }
+      putVarint(out,runStart-last);
+      putVarint(out,runEnd-runStart);
+      out.put(current,runStart,runEnd-runStart);
+      runs++;
+      last=pos=runEnd;
+    }
+
+    out.putShort(countPos,(short)runs);
+    if (runs==0 && mode==previousMode) {
+      out.position(start);
+      return false;
+    }
+    return true;
+  }
+
+  private void header (ByteBuffer out, int type, int mode) {
+    out.put((byte)type);
+    out.putInt(frame);
+    out.put((byte)mode);
+  }
+
+  static void putVarint (ByteBuffer out, int v) {
+    while (v>=0x80) {
+      out.put((byte)(v|0x80));
+      v>>>=7;
+    }
+    out.put((byte)v);
+  }
+
+  static int getVarint (ByteBuffer in) {
+    int v=0,shift=0,b;
+    do {
+      b=in.get();
+      v|=(b&0x7F)<<shift;
+      shift+=7;
+    } while ((b&0x80)!=0);
+    return v;
+  }
+}
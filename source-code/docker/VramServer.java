@@ -0,0 +1,227 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+
+// Streams the screen of a running machine to viewers on the loopback.
+//
+// usage: java VramServer -rom mc1000.rom [-port n] [-frames n] [-bench]
+//
+// Each frame is encoded once by a VramEncoder and the message, prefixed by
+// its length, is queued to every viewer.  A viewer joining, or one so far
+// behind that its queue is full, gets a keyframe and only then deltas
+// again, so the CPU thread never waits for a socket.  With -bench the
+// machine runs flat out with one viewer in the same JVM, and the bytes and
+// time are compared with sending every frame as a PNG.
+public class VramServer implements Runnable {
+  static final int PORT=10847;
+  static final int QUEUE_SIZE=16;
+  static final int KEY_INTERVAL=300;
+  static final long DRAIN_TIMEOUT=5000000000L;
+
+  class Viewer implements Runnable {
+    Socket socket;
+    ArrayBlockingQueue<byte[]> queue;
+    boolean synced;
+    volatile boolean closed;
+    // Queued and dropped by the CPU thread, sent by the viewer's
+    long queued,dropped;
+    volatile long sent;
+
+    Viewer(Socket s) {
+      socket=s;
+      queue=new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+    }
+
+    public void run() {
+      try {
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        while (true) {
+          byte[] message=queue.take();
+          out.writeInt(message.length);
+          out.write(message);
+          if (queue.isEmpty())
+            out.flush();
+          sent++;
+        }
+      } catch (Exception e) {
+        // The viewer went away
+      }
+      closed=true;
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  ServerSocket server;
+  VramEncoder encoder;
+  ByteBuffer buffer;
+  List<Viewer> viewers;
+  volatile boolean needKey;
+  long messages,bytes;
+  ArrayList<byte[]> trash;
+
+  VramServer(int port) throws IOException {
+    server=new ServerSocket(port,50,InetAddress.getLoopbackAddress());
+    encoder=new VramEncoder(KEY_INTERVAL);
+    buffer=ByteBuffer.allocate(VramEncoder.BUFFER_SIZE);
+    viewers=new CopyOnWriteArrayList<Viewer>();
+    trash=new ArrayList<byte[]>();
+  }
+
+  public void start() {
+    Thread t=new Thread(this,"vram server");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Viewer v=new Viewer(server.accept());
+        Thread t=new Thread(v,"vram viewer");
+        t.setDaemon(true);
+        t.start();
+        viewers.add(v);
+        needKey=true;
+      }
+    } catch (IOException e) {
+      // Server closed
+    }
+  }
+
+  public void close() throws IOException {
+    server.close();
+    for (Viewer v : viewers)
+      v.socket.close();
+  }
+
+  // Called by the CPU thread after every frame
+  public void publish (MC6847 vdp) {
+    if (viewers.isEmpty())
+      return;
+    if (needKey) {
+      needKey=false;
+      encoder.requestKey();
+    }
+    buffer.clear();
+    if (!encoder.encode(vdp,buffer))
+      return;
+
+    byte[] message=Arrays.copyOf(buffer.array(),buffer.position());
+    boolean key=message[0]==VramEncoder.KEY;
+    messages++;
+    bytes+=message.length+4;
+    for (Viewer v : viewers) {
+      if (v.closed)
+        viewers.remove(v);
+      else if (!v.synced && !key)
+        v.dropped++;
+      else if (v.queue.offer(message)) {
+        v.queued++;
+        v.synced|=key;
+      } else {
+        int n=v.queue.drainTo(trash);
+        trash.clear();
+        v.queued-=n;
+        v.dropped+=n+1;
+        v.synced=false;
+        needKey=true;
+      }
+    }
+  }
+
+  public static void main (String[] argv) throws Exception {
+    String rom=null;
+    int port=PORT,frames=-1;
+    boolean bench=false;
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-rom") && i+1<argv.length)
+        rom=argv[++i];
+      else if (argv[i].equals("-port") && i+1<argv.length)
+        port=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-frames") && i+1<argv.length)
+        frames=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-bench"))
+        bench=true;
+    }
+    if (rom==null) {
+      System.out.println ("usage: java VramServer -rom mc1000.rom [-port n] [-frames n] [-bench]");
+      System.exit(1);
+    }
+
+    MC1000machine machine=new MC1000machine(false);
+    machine.memory.loadROM(rom);
+    VramServer server=new VramServer(port);
+    server.start();
+
+    if (!bench) {
+      long next=System.nanoTime();
+      for (int f=0; frames<0 || f<frames; f++) {
+        machine.runFrame();
+        server.publish(machine.vdp);
+        next+=1000000000L/60;
+        long wait=next-System.nanoTime();
+        if (wait>0)
+          Thread.sleep(wait/1000000,(int)(wait%1000000));
+      }
+      server.close();
+      return;
+    }
+
+    if (frames<0)
+      frames=3600;
+    final VramDecoder decoder=new VramDecoder();
+    final Socket socket=new Socket(InetAddress.getLoopbackAddress(),port);
+    Thread client=new Thread() {
+      public void run() {
+        try {
+          decoder.receive(socket.getInputStream(),-1);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    client.start();
+    while (server.viewers.isEmpty())
+      Thread.sleep(1);
+
+    long encodeTime=0,pngTime=0,pngBytes=0;
+    ByteArrayOutputStream png=new ByteArrayOutputStream();
+    for (int f=0; f<frames; f++) {
+      machine.runFrame();
+      long time=System.nanoTime();
+      server.publish(machine.vdp);
+      encodeTime+=System.nanoTime()-time;
+
+      time=System.nanoTime();
+      png.reset();
+      ImageIO.write(machine.vdp.draw(),"png",png);
+      pngTime+=System.nanoTime()-time;
+      pngBytes+=png.size()+4;
+    }
+    // Until the viewer has sent all it was given, some messages may have
+    // been dropped; then the decoder has them once the socket closes
+    Viewer viewer=server.viewers.get(0);
+    long deadline=System.nanoTime()+DRAIN_TIMEOUT;
+    while (viewer.sent<viewer.queued && System.nanoTime()<deadline)
+      Thread.sleep(1);
+    server.close();
+    client.join(DRAIN_TIMEOUT/1000000);
+
+    byte[] vram=new byte[VramEncoder.SIZE];
+    machine.vdp.getVRAM().get(ByteBuffer.wrap(vram));
+    System.out.println (frames+" frames, "+server.messages+" messages, "+viewer.sent+" sent, "
+      +viewer.dropped+" dropped, "+decoder.messages+" decoded, screen "
+      +(Arrays.equals(vram,decoder.getVRAM())?"matches":"DIFFERS"));
+    System.out.println ("vram stream: "+server.bytes+" bytes, "+server.bytes*60/frames+" bytes/s, "
+      +(encodeTime/frames)/1000.0+" us/frame");
+    System.out.println ("png frames:  "+pngBytes+" bytes, "+pngBytes*60/frames+" bytes/s, "
+      +(pngTime/frames)/1000.0+" us/frame");
+  }
+}
@@ -0,0 +1,65 @@
+import java.io.*;
+
+// Writes 16-bit mono PCM to a WAV file, the sizes are patched on close
+public class WavFileSink implements AudioSink {
+  String name;
+  RandomAccessFile file;
+  byte[] bytes;
+  int dataSize;
+
+  WavFileSink(String n) {
+    name=n;
+    bytes=new byte[0];
+  }
+
+  public void open (int sampleRate) throws IOException {
+    file=new RandomAccessFile(name,"rw");
+    file.setLength(0);
+    file.writeBytes("RIFF");
+    writeInt(0);
+    file.writeBytes("WAVEfmt ");
+    writeInt(16);
+    writeShort(1);             // PCM
+    writeShort(1);             // mono
+    writeInt(sampleRate);
+    writeInt(sampleRate*2);
+    writeShort(2);
+    writeShort(16);
+    file.writeBytes("data");
+    writeInt(0);
+    dataSize=0;
+  }
+
+  public void write (short[] s, int n) throws IOException {
+    if (bytes.length<n*2)
+      bytes=new byte[n*2];
+    for (int i=0; i<n; i++) {
+      bytes[i*2]=(byte)s[i];
+      bytes[i*2+1]=(byte)(s[i]>>8);
+    }
+    file.write(bytes,0,n*2);
+    dataSize+=n*2;
+  }
+
+  public void close () {
+    try {
+      file.seek(4);
+      writeInt(36+dataSize);
+      file.seek(40);
+      writeInt(dataSize);
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void writeInt (int v) throws IOException {
+    writeShort(v);
+    writeShort(v>>16);
+  }
+
+  private void writeShort (int v) throws IOException {
+    file.write(v&0xFF);
+    file.write((v>>8)&0xFF);
+  }
+}
@@ -0,0 +1,53 @@
+// Port writes to a device that can take them late.
+//
+// out() only notes the port, value and cycle; flush() hands them to the
+// device in order, with the cycles they were made at.  The PSG register
+// writes reach PSGsynth this way, so the sound is worked out once per
+// slice.  The log flushes itself when full and before the device is
+// read, so the device never answers without a write made before the
+// read.  The arrays are made once, nothing is allocated per write.
+// MC1000ports flushes every log at the end of a slice.
+public class WriteLog implements Ports {
+  Ports device;
+  long[] clocks;
+  int[] ports,values;
+  int count;
+
+  WriteLog(Ports d, int size) {
+    device=d;
+    clocks=new long[size];
+    ports=new int[size];
+    values=new int[size];
+  }
+
+  public void out (int port, int data, long clock) {
+    if (count==clocks.length)
+      flush();
+    clocks[count]=clock;
+    ports[count]=port;
+    values[count]=data;
+    count++;
+  }
+
+  public int in (int port, long clock) {
+    flush();
+    return device.in(port,clock);
+  }
+
+  public void flush() {
+    int n=count;
+    count=0;
+    for (int i=0; i<n; i++)
+      device.out(ports[i],values[i],clocks[i]);
+  }
+
+  // Drops the writes waiting, for a device that starts over
+  public void clear() {
+    count=0;
+  }
+
+  // Writes waiting for the next flush
+  public int pending() {
+    return count;
+  }
+}
@@ -11,7 +11,7 @@
 
  This source code is part of the Javel Project  */
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 public final class Z80 implements Cpu {
   private int AF, BC, DE, HL,
@@ -21,7 +21,7 @@ public final class Z80 implements Cpu {
   private int I, R, vector;
   private int cyclesToDo;
   private int sliceClocks;
-  private BigInteger totalClocks;
+  private long totalClocks;
   private MC1000machine machine;
    
   int NMIInt, IRQ;
@@ -36,15 +36,30 @@ public final class Z80 implements Cpu {
    
   private Ports port;
   private Memory mem;
+  private Z80Trap traps[];
+  private int trapCount;
    
   public void setPorts(Ports p) {
     this.port = p;
   }
+
+  public void setMemory(Memory m) {
+    this.mem = m;
+  }
+
+  public Memory getMemory() {
+    return mem;
+  }
    
   Z80(MC1000machine m, boolean intel8080, int startAddr) {
+    this(m.memory, m.ports, intel8080, startAddr);
     machine=m;
-    this.mem = machine.memory;
-    this.port = machine.ports;
+  }
+
+  // A CPU on its own memory and ports, outside any machine
+  Z80(Memory m, Ports p, boolean intel8080, int startAddr) {
+    this.mem = m;
+    this.port = p;
     this.frequency = frequency;
     this.intel8080 = intel8080;
       
@@ -62,6 +77,163 @@ public final class Z80 implements Cpu {
   public void dump() {
     System.out.println("PC=" + Integer.toHexString(PC));
   }
+
+  // Register file layout used by getRegisters() and setRegisters()
+  public static final int REG_AF = 0, REG_BC = 1, REG_DE = 2, REG_HL = 3,
+      REG_AF2 = 4, REG_BC2 = 5, REG_DE2 = 6, REG_HL2 = 7, REG_IX = 8,
+      REG_IY = 9, REG_PC = 10, REG_SP = 11, REG_I = 12, REG_R = 13,
+      REG_IFF1 = 14, REG_IFF2 = 15, REG_IM = 16, REG_COUNT = 17;
+
+  public final void getRegisters(int[] r) {
+    r[REG_AF] = AF; r[REG_BC] = BC; r[REG_DE] = DE; r[REG_HL] = HL;
+    r[REG_AF2] = AF2; r[REG_BC2] = BC2; r[REG_DE2] = DE2; r[REG_HL2] = HL2;
+    r[REG_IX] = IX; r[REG_IY] = IY; r[REG_PC] = PC; r[REG_SP] = SP;
+    r[REG_I] = I; r[REG_R] = R;
+    r[REG_IFF1] = IFF1; r[REG_IFF2] = IFF2; r[REG_IM] = IM;
+  }
+
+  public final void setRegisters(int[] r) {
+    AF = r[REG_AF]; BC = r[REG_BC]; DE = r[REG_DE]; HL = r[REG_HL];
+    AF2 = r[REG_AF2]; BC2 = r[REG_BC2]; DE2 = r[REG_DE2]; HL2 = r[REG_HL2];
+    IX = r[REG_IX]; IY = r[REG_IY]; PC = r[REG_PC]; SP = r[REG_SP];
+    I = r[REG_I]; R = r[REG_R];
+    IFF1 = r[REG_IFF1]; IFF2 = r[REG_IFF2]; IM = r[REG_IM];
+  }
+
+  // The registers as the last three longs of a TraceRecorder record at r[at],
+  // with the four opcode bytes given, written straight from the fields
+  public final void putTrace(long[] r, int at, long op) {
+    r[at + 1] = PC | op << 16 | (long) AF << 48;
+    r[at + 2] = BC | (long) DE << 16 | (long) HL << 32 | (long) IX << 48;
+    r[at + 3] = IY | (long) SP << 16 | (long) I << 32 | (long) R << 40
+        | (long) (IFF1 | IFF2 << 1 | IM << 2) << 48;
+  }
+
+  public final void saveState(ByteBuffer b) {
+    int[] r = new int[REG_COUNT];
+    getRegisters(r);
+    for (int i = 0; i < REG_COUNT; i++) {
+      b.putInt(r[i]);
+    }
+    b.putInt(XY);
+    b.putInt(enable);
+    b.put((byte) (halted ? 1 : 0));
+    b.putInt(IRQ);
+    b.putInt(NMIInt);
+    b.putInt(vector);
+    b.putInt(cyclesToDo);
+    b.putInt(sliceClocks);
+    b.putLong(totalClocks);
+  }
+
+  public final void loadState(ByteBuffer b) {
+    int[] r = new int[REG_COUNT];
+    for (int i = 0; i < REG_COUNT; i++) {
+      r[i] = b.getInt();
+    }
+    setRegisters(r);
+    XY = b.getInt();
+    enable = b.getInt();
+    halted = b.get() != 0;
+    IRQ = b.getInt();
+    NMIInt = b.getInt();
+    vector = b.getInt();
+    cyclesToDo = b.getInt();
+    sliceClocks = b.getInt();
+    totalClocks = b.getLong();
+  }
+
+  public final int getPC() {
+    return PC;
+  }
+
+  public final int getRegister(int reg) {
+    switch (reg) {
+    case REG_AF: return AF;
+    case REG_BC: return BC;
+    case REG_DE: return DE;
+    case REG_HL: return HL;
+    case REG_AF2: return AF2;
+    case REG_BC2: return BC2;
+    case REG_DE2: return DE2;
+    case REG_HL2: return HL2;
+    case REG_IX: return IX;
+    case REG_IY: return IY;
+    case REG_PC: return PC;
+    case REG_SP: return SP;
+    case REG_I: return I;
+    case REG_R: return R;
+    case REG_IFF1: return IFF1;
+    case REG_IFF2: return IFF2;
+    default: return IM;
+    }
+  }
+
+  public final void setRegister(int reg, int v) {
+    switch (reg) {
+    case REG_AF: AF = v; break;
+    case REG_BC: BC = v; break;
+    case REG_DE: DE = v; break;
+    case REG_HL: HL = v; break;
+    case REG_AF2: AF2 = v; break;
+    case REG_BC2: BC2 = v; break;
+    case REG_DE2: DE2 = v; break;
+    case REG_HL2: HL2 = v; break;
+    case REG_IX: IX = v; break;
+    case REG_IY: IY = v; break;
+    case REG_PC: PC = v; break;
+    case REG_SP: SP = v; break;
+    case REG_I: I = v; break;
+    case REG_R: R = v; break;
+    case REG_IFF1: IFF1 = v; break;
+    case REG_IFF2: IFF2 = v; break;
+    default: IM = v; break;
+    }
+  }
+
+  public final int getA() {
+    return (AF >> 8);
+  }
+
+  public final void setA(int v) {
+    AF = (AF & 0xFF) | ((v) << 8);
+  }
+
+  // Returns from the current subroutine, as if a RET was executed
+  public final void ret() {
+    RET();
+    cyclesToDo -= 10;
+  }
+
+  public final void addCycles(int n) {
+    cyclesToDo -= n;
+  }
+
+  // A trap runs instead of the instruction at its address when it returns true
+  public final void setTrap(int addr, Z80Trap t) {
+    if (traps == null) {
+      traps = new Z80Trap[0x10000];
+    }
+    if (traps[addr & 0xFFFF] == null) {
+      trapCount++;
+    }
+    traps[addr & 0xFFFF] = t;
+  }
+
+  public final void removeTrap(int addr) {
+    if (traps == null || traps[addr & 0xFFFF] == null) {
+      return;
+    }
+    traps[addr & 0xFFFF] = null;
+    if (--trapCount == 0) {
+      traps = null;
+    }
+  }
+
+  // Clock count of the instruction being executed
+  public final long getClocks() {
+    return totalClocks + sliceClocks - cyclesToDo;
+  }
    
   public final void start() {
     running = true;
@@ -84,7 +256,7 @@ public final class Z80 implements Cpu {
     IX = IY = XY = 0xFFFF; 
     enable = 0;
     cyclesToDo = 0;
-    totalClocks=BigInteger.ZERO;
+    totalClocks=0;
     sliceClocks=0;
   }
    
@@ -101,11 +273,11 @@ public final class Z80 implements Cpu {
   }
 
   private  final void  ioWriteByte(int p, int data) {
-    port.out(p, data, totalClocks.add(BigInteger.valueOf(sliceClocks-cyclesToDo)));
+    port.out(p, data, totalClocks + sliceClocks - cyclesToDo);
   }
 
   private  final int  ioReadByte(int p) { 
-    return port.in(p,totalClocks.add(BigInteger.valueOf(sliceClocks-cyclesToDo)));
+    return port.in(p, totalClocks + sliceClocks - cyclesToDo);
   }
    
   private final void memWriteWord(int address, int  data) {
@@ -117,10 +289,6 @@ public final class Z80 implements Cpu {
     return ((memReadByte(address)) | (memReadByte((address + 1)) << 8));
   }
    
-  private final void setA(int v) {
-    AF = (AF & 0xFF) | ((v) << 8);
-  }
-
   private final void setF(int v) {
     AF = (AF & 0xFF00) | (v);
   }
@@ -173,10 +341,6 @@ public final class Z80 implements Cpu {
     XY = (XY & 0xFF) | ((v) << 8);
   }
    
-  private final int getA() {
-    return (AF >> 8);
-  }
-
   private final int getB() {
     return (BC >> 8);
   }
@@ -5031,36 +5195,89 @@ public final class Z80 implements Cpu {
   }
    
   public final void run(int nbCycles) {
-    totalClocks=totalClocks.add(BigInteger.valueOf(sliceClocks-cyclesToDo));
+    beginSlice(nbCycles);
+    while (cyclesToDo > 0) {
+      step();
+    }
+  }
+
+  // Opens a slice of nbCycles without running it, for callers that drive
+  // the instructions themselves with step()
+  public final void beginSlice(int nbCycles) {
+    totalClocks += sliceClocks - cyclesToDo;
     sliceClocks=nbCycles;
     cyclesToDo += nbCycles;
     Interrupt();      
-      
+  }
+
+  // Runs what is left of the current slice
+  public final void resume() {
     while (cyclesToDo > 0) {
-      UpdateR();
+      step();
+    }
+  }
+
+  // One iteration of the run loop: a single instruction
+  public final void step() {
+    UpdateR();
          
-      // Accepts interrupts the intruction AFTER EI
-      switch (enable) {
-      case 2:
-        IFF1 = IFF2 = 1;
-        Interrupt();
-        enable = 0;
-        break;
+    // Accepts interrupts the intruction AFTER EI
+    switch (enable) {
+    case 2:
+      IFF1 = IFF2 = 1;
+      Interrupt();
+      enable = 0;
+      break;
             
-      case 1:
-        enable = 2;
-        break;
-      }
+    case 1:
+      enable = 2;
+      break;
+    }
          
-      if (halted == false) {
-        exeOpcode(memReadByte(PC++));
-        PC &= 0xFFFF;
-      } else {
-        cyclesToDo -= 4; 
-        Interrupt();
+    if (halted == false) {
+      if (traps != null && traps[PC] != null && traps[PC].trap(this)) {
+        return;
       }
+      exeOpcode(memReadByte(PC++));
+      PC &= 0xFFFF;
+    } else {
+      cyclesToDo -= 4; 
+      Interrupt();
     }
   }
+
+  // True when the next instruction needs nothing but the registers and memory
+  public final boolean isPlain() {
+    return enable == 0 && !halted && trapCount == 0;
+  }
+
+  public final int getCyclesToDo() {
+    return cyclesToDo;
+  }
+
+  public final void setCyclesToDo(int n) {
+    cyclesToDo = n;
+  }
+
+  // Ends the slice after the current instruction, keeping the clock, and
+  // returns the cycles taken away; call only from the thread running it
+  public final int yieldSlice() {
+    int left = cyclesToDo;
+    cyclesToDo -= left;
+    sliceClocks -= left;
+    return left;
+  }
+
+  // Gives back cycles taken by yieldSlice()
+  public final void restoreSlice(int cycles) {
+    cyclesToDo += cycles;
+    sliceClocks += cycles;
+  }
+
+  // The clock an I/O access sees when cyclesLeft remain in the slice
+  public final long clockAt(int cyclesLeft) {
+    return totalClocks + sliceClocks - cyclesLeft;
+  }
    
   public final void PendingIRQ(int value) {
     vector = value;
@@ -5147,7 +5364,7 @@ public final class Z80 implements Cpu {
     }
   }
    
-  private static final int cycles_main_opcode[] = {
+  static final int cycles_main_opcode[] = {
     4, 10, 7, 6, 4, 4, 7, 4, 4, 11, 7, 6, 4, 4, 7, 4, 10, 10, 7, 6, 4, 4, 7, 4,
     12, 11, 7, 6, 4, 4, 7, 4, 7, 10, 16, 6, 4, 4, 7, 4, 7, 11, 16, 6, 4, 4, 7, 4,
     7, 10, 13, 6, 11, 11, 10, 4, 7, 11, 13, 6, 4, 4, 7, 4, 4, 4, 4, 4, 4, 4, 7,
@@ -5161,7 +5378,7 @@ public final class Z80 implements Cpu {
     10, 4, 10, 11, 7, 11, 5, 6, 10, 4, 10, 0, 7, 11
   };
    
-  private static final int cycles_ed_opcode[] = {
+  static final int cycles_ed_opcode[] = {
     0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
     0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
     0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 12, 12, 15, 20, 8, 8, 8, 9, 12, 12, 15,
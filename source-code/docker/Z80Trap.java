@@ -0,0 +1,4 @@
+public interface Z80Trap
+{
+ public boolean trap(Z80 cpu);
+}
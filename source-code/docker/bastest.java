@@ -0,0 +1,47 @@
+import java.io.*;
+import java.util.*;
+
+// Round trip of the BASIC loader: load a program, list it back from RAM and
+// compare with the source, taken as the loader takes it: in line number
+// order, a line given twice as its last version.
+// usage: java BAStest mc1000.rom file.bas [boot frames]
+class BAStest {
+  public static void main (String[] argv) throws Exception {
+    MC1000machine machine=new MC1000machine(true);
+    machine.memory.loadROM(argv[0]);
+    int boot=argv.length>2?Integer.parseInt(argv[2]):200;
+    for (int i=0; i<boot; i++)
+      machine.runFrame();
+
+    BasicLoader loader=new BasicLoader(machine);
+    long time=System.nanoTime();
+    loader.load(argv[1]);
+    time=System.nanoTime()-time;
+
+    TreeMap<Integer,String> lines=new TreeMap<Integer,String>();
+    BufferedReader in=new BufferedReader (new FileReader (argv[1]));
+    for (String s=in.readLine(); s!=null; s=in.readLine()) {
+      s=s.trim();
+      int i=0;
+      while (i<s.length() && Character.isDigit(s.charAt(i)))
+        i++;
+      if (i>0)
+        lines.put(Integer.parseInt(s.substring(0,i)),s);
+    }
+    in.close();
+    List<String> source=new ArrayList<String>(lines.values());
+
+    String[] listing=loader.detokenize().split("\n");
+    int errors=Math.abs(listing.length-source.size());
+    for (int i=0; i<Math.min(listing.length,source.size()); i++) {
+      String a=source.get(i),b=listing[i];
+      if (!a.equalsIgnoreCase(b) || !Arrays.equals(loader.tokenize(a),loader.tokenize(b))) {
+        System.out.println ("- "+a);
+        System.out.println ("+ "+b);
+        errors++;
+      }
+    }
+    System.out.println (source.size()+" lines loaded in "+(time/1000)+" us, "+errors+" errors");
+    System.exit(errors==0?0:1);
+  }
+}
@@ -0,0 +1,95 @@
+// Pasting with run-ahead: every character typed through a trapped key
+// routine must reach the guest once and in order, though the frames run
+// ahead hit the trap too and are then undone.  No ROM is needed, the
+// guest is a loop in RAM that calls the routine and stores each key.
+// The paste is recorded and journaled too: the movie replayed on a copy
+// of the machine, and a rewind seek into the middle of the paste, must
+// come to the same state as the run itself.
+// usage: java PASTEtest [run-ahead frames]
+class PASTEtest {
+  static final int KEY=0x0200,BUFFER=0x1000;
+  static final int[] PROGRAM={
+    0xF3,             // 0100 DI
+    0x21,0x00,0x10,   // 0101 LD HL,BUFFER
+    0xCD,0x00,0x02,   // 0104 CALL KEY
+    0x77,             // 0107 LD (HL),A
+    0x23,             // 0108 INC HL
+    0x18,0xF9         // 0109 JR 0104
+  };
+
+  public static void main (String[] argv) throws Exception {
+    int ahead=argv.length>0?Integer.parseInt(argv[0]):2;
+
+    MC1000machine machine=new MC1000machine(false);
+    for (int i=0; i<PROGRAM.length; i++)
+      machine.memory.writeByte(0x100+i,PROGRAM[i]);
+    // The key routine waits forever unless the trap answers
+    machine.memory.writeByte(KEY,0x18);
+    machine.memory.writeByte(KEY+1,0xFE);
+    int[] regs=new int[Z80.REG_COUNT];
+    machine.z80core.getRegisters(regs);
+    regs[Z80.REG_PC]=0x100;
+    regs[Z80.REG_SP]=0x3F00;
+    machine.z80core.setRegisters(regs);
+    MC1000machine copy=machine.fork();
+
+    StringBuilder text=new StringBuilder();
+    for (int i=0; i<200; i++)
+      text.append(i+" PRINT \"LINE "+i+"\"\n");
+    String expected=text.toString().replace('\n','\r');
+
+    Keyboard keys=machine.psg.getKeyboard();
+    keys.startRecording(new InputMovie(machine));
+    RewindBuffer rewind=new RewindBuffer(60);
+    rewind.attach(machine);
+    TextInjector injector=new TextInjector(machine,KEY);
+    RunAhead runAhead=new RunAhead(machine,ahead);
+    injector.type(text.toString());
+    long[] clocks=new long[1001];
+    long[] hashes=new long[1001];
+    int frames=0;
+    // The slice may end between the last key and its store
+    for (boolean last=false; !last && frames<1000; frames++) {
+      last=injector.isIdle();
+      machine.runFrame();
+      rewind.record(machine);
+      runAhead.draw();
+      clocks[frames]=machine.z80core.getClocks();
+      hashes[frames]=machine.stateHash();
+    }
+    InputMovie movie=keys.stopRecording();
+    movie.finish(machine);
+
+    int errors=0;
+    for (int i=0; i<expected.length(); i++)
+      if (machine.memory.readByte(BUFFER+i)!=expected.charAt(i)) {
+        if (errors==0)
+          System.out.println ("first difference at "+i+" of "+expected.length());
+        errors++;
+      }
+    if (machine.memory.readByte(BUFFER+expected.length())!=0)
+      errors++;
+    System.out.println (expected.length()+" chars, run-ahead "+ahead+", "+frames+" frames, "
+      +(errors==0?"all arrived":errors+" wrong"));
+
+    // The movie, on the machine as it was before the paste
+    copy.psg.getKeyboard().events=new InputQueue(movie.getEventCount()+1);
+    movie.feed(copy.psg.getKeyboard().events);
+    new TextInjector(copy,movie.keyTrap);
+    for (int f=0; f<frames; f++)
+      copy.runFrame();
+    boolean replayed=copy.stateHash()==movie.finalHash;
+    System.out.println ("movie of "+movie.getEventCount()+" events "+(replayed?"replays":"DIFFERS"));
+
+    // A seek to just before the end of the second frame re-runs it
+    int f=Math.min(1,frames-1);
+    rewind.seek(machine,clocks[f]-1);
+    machine.z80core.run((int)(clocks[f]-machine.z80core.getClocks()));
+    boolean sought=machine.stateHash()==hashes[f];
+    System.out.println ("rewind seek into frame "+f+" "+(sought?"matches":"DIFFERS"));
+    rewind.close();
+
+    if (errors>0 || !replayed || !sought)
+      System.exit(2);
+  }
+}
@@ -0,0 +1,86 @@
+// Rates of the PSG synthesis against the AY-3-8912 datasheet: a second
+// of tone, envelope and noise, counting edges in the samples.  Then the
+// tone switched on and off through a WriteLog, which must be heard at the
+// cycles of the writes, not at the flush.
+// usage: java PSGtest [sample rate]
+class PSGtest {
+  static final int CLOCK=PSGsynth.PSG_CLOCK;
+  static int errors;
+
+  public static void main (String[] argv) {
+    int rate=argv.length>0?Integer.parseInt(argv[0]):44100;
+
+    // A4: tone A alone, TP 254, clock/(16*TP)
+    short[] s=render(rate,new int[] {254,0,0,0,0,0,0,0x3E,15,0,0,0,0,0});
+    check("tone",rising(s),CLOCK/(16.0*254),0.01);
+
+    // Sawtooth, envelope alone on A, EP 70, clock/(256*EP) ramps
+    s=render(rate,new int[] {0,0,0,0,0,0,0,0x3F,0x10,0,0,70,0,0x0C});
+    check("envelope",drops(s),CLOCK/(256.0*70),0.01);
+
+    // Noise alone on A, NP 31: shifts at clock/(16*NP), the output bit
+    // changes on about half of them and rises on half of those
+    s=render(rate,new int[] {0,0,0,0,0,0,31,0x37,15,0,0,0,0,0});
+    check("noise",4*rising(s),CLOCK/(16.0*31),0.1);
+
+    // Tone A from a quarter to three quarters of the second
+    PSGsynth synth=new PSGsynth(rate,new AudioRing(rate*2));
+    synth.start(0,new int[] {254,0,0,0,0,0,0,0x3F,15,0,0,0,0,0});
+    WriteLog log=new WriteLog(synth,16);
+    log.out(7,0x3E,PSGsynth.CLOCK/4);
+    log.out(7,0x3F,PSGsynth.CLOCK*3/4);
+    log.flush();
+    synth.render(PSGsynth.CLOCK);
+    s=new short[rate];
+    synth.getRing().read(s,0,s.length);
+    short[] quarter=new short[rate/4];
+    System.arraycopy(s,0,quarter,0,quarter.length);
+    check("before",4*rising(quarter),0,0);
+    System.arraycopy(s,rate/4,quarter,0,quarter.length);
+    check("logged",4*rising(quarter),CLOCK/(16.0*254),0.02);
+    System.arraycopy(s,rate*3/4,quarter,0,quarter.length);
+    check("after",4*rising(quarter),0,0);
+
+    if (errors>0)
+      System.exit(2);
+  }
+
+  static short[] render (int rate, int[] regs) {
+    PSGsynth synth=new PSGsynth(rate,new AudioRing(rate*2));
+    synth.start(0,regs);
+    synth.render(PSGsynth.CLOCK);
+    short[] s=new short[rate];
+    synth.getRing().read(s,0,s.length);
+    return s;
+  }
+
+  // Low to high crossings of the mean
+  static int rising (short[] s) {
+    long sum=0;
+    for (int i=0; i<s.length; i++)
+      sum+=s[i];
+    long level=sum/s.length;
+    int n=0;
+    for (int i=1; i<s.length; i++)
+      if (s[i-1]<=level && s[i]>level)
+        n++;
+    return n;
+  }
+
+  // Falls of more than half the range, where a ramp starts over
+  static int drops (short[] s) {
+    int n=0;
+    for (int i=1; i<s.length; i++)
+      if (s[i-1]-s[i]>PSGsynth.VOLUME[15]/2)
+        n++;
+    return n;
+  }
+
+  static void check (String name, int measured, double expected, double tolerance) {
+    boolean ok=Math.abs(measured-expected)<=expected*tolerance+1;
+    System.out.println (String.format(java.util.Locale.ROOT,"%-8s %6d Hz, %8.1f expected %s",
+      name,measured,expected,ok?"ok":"WRONG"));
+    if (!ok)
+      errors++;
+  }
+}
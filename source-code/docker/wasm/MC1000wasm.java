@@ -0,0 +1,65 @@
+import de.inetsoftware.jwebassembly.api.annotation.Export;
+import de.inetsoftware.jwebassembly.api.annotation.Import;
+
+// The WebAssembly host: MC1000core with its host interfaces as imports
+// from and exports to the page.
+//
+// Compiled apart from the rest, with the jwebassembly-api jar on the class
+// path, and given to the JWebAssembly compiler together with the classes
+// of the core it reaches:
+//
+//   javac -cp jwebassembly-api.jar:.. -d classes MC1000wasm.java
+//   JWebAssembly: addFile(classes/MC1000wasm.class), compileToBinary(...)
+//
+// The page provides mc1000.rom(), returning the 16kb ROM as a byte array,
+// and mc1000.frame(pixels,width,height), called after each step with
+// the framebuffer; it calls boot(ram) once, then step(frames) from its
+// animation callback and key(code) for keyboard events from
+// Keyboard.keyEvent and Keyboard.modifierEvent.  framebuffer() is the
+// array the core draws into, ARGB, 256x192.
+public class MC1000wasm {
+  static final int KEYS=64;
+
+  static MC1000core core;
+  static int[] keys=new int[KEYS];
+  static int keyCount;
+
+  @Import( module = "mc1000", name = "rom" )
+  static native byte[] rom();
+
+  @Import( module = "mc1000", name = "frame" )
+  static native void frame( int[] pixels, int width, int height );
+
+  @Export
+  public static int boot( int ram ) {
+    core=new MC1000core(rom(),new FrameSink() {
+      public void frame (int[] pixels, int width, int height) {
+        MC1000wasm.frame(pixels,width,height);
+      }
+    },new InputSource() {
+      public void poll (Keyboard k) {
+        for (int i=0; i<keyCount; i++)
+          k.apply(keys[i]);
+        keyCount=0;
+      }
+    },ram==48);
+    return core.hasROM()?1:0;
+  }
+
+  @Export
+  public static void step( int frames ) {
+    core.step(frames);
+  }
+
+  @Export
+  public static int[] framebuffer() {
+    return core.framebuffer();
+  }
+
+  // Dropped when the page sends more than KEYS between two frames
+  @Export
+  public static void key( int code ) {
+    if (keyCount<KEYS)
+      keys[keyCount++]=code;
+  }
+}
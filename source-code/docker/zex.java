@@ -1,39 +1,13 @@
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+// Flat 64kb of CP/M memory
 class mymemory implements Memory {
   int[] mem;
 
-  mymemory() {
-    mem=new int[65536];
-    for (int i=0; i<65536; i++)
-      mem[i]=0;
-
-    try {
-      DataInput in=new DataInputStream (new FileInputStream ("zexdoc.com"));
-      for (int i=0; i<8704; i++)
-        mem[i+0x100]=(int)(in.readByte()&0xFF);
-    } catch (Exception e) {
-      System.out.println ("Cannot read mc1000.rom");
-      System.exit(1);  
-    }
-
-    mem[5]=0x32;
-    mem[6]=0x00;
-    mem[7]=0x00;
-    mem[8]=0x79;
-    mem[9]=0x32;
-    mem[10]=0x81;
-    mem[11]=0x00;
-    mem[12]=0x7b;
-    mem[13]=0x32;
-    mem[14]=0x82;
-    mem[15]=0x00;
-    mem[16]=0x7a;
-    mem[17]=0x32;
-    mem[18]=0x83;
-    mem[19]=0x00;
-    mem[20]=0xc9;
-
+  mymemory(int[] image) {
+    mem=image.clone();
   }
 
   public void writeByte(int addr,int data) {
@@ -41,36 +15,194 @@ class mymemory implements Memory {
   }
 
   public int readByte(int addr) {
-    int p;
-
-    if (addr==20 && mem[addr]==0xc9) {
-      if (mem[0x81]==9) { 
-        p=mem[0x82]+mem[0x83]*256;
- 	while (mem[p]!='$') {
- 	  System.out.print (new Character((char)mem[p]));
- 	  p++;
-  	}
-      }
-      if (mem[0x81]==2)  
- 	System.out.print (new Character((char)mem[0x82]));
-    }
     return mem[addr];
   }
 
-} 
+  int readWord(int addr) {
+    return mem[addr]|mem[(addr+1)&0xFFFF]<<8;
+  }
+
+  void writeWord(int addr, int data) {
+    mem[addr]=data&0xFF;
+    mem[(addr+1)&0xFFFF]=data>>8;
+  }
+}
 
 class myports implements Ports
 {
-  public void out(int addr,int data) {}
-  public int in(int addr) { return 0xff;}
+  public void out(int addr,int data,long clocks) {}
+  public int in(int addr,long clocks) { return 0xff;}
 }
+
+// ZEXDOC/ZEXALL conformance runner.
+//
+// usage: java zex [-threads n] [-only text] zexdoc.com [zexall.com ...]
+//
+// The tests run as CP/M programs at 0x100 on a bare Z80 with flat memory.
+// BDOS is a trap at 0x0005 serving functions 2 and 9, and the warm boot at
+// 0x0000 ends the run.  Each program keeps its test groups in a table that
+// its main loop walks with "ld hl,tests; ld a,(hl); inc hl; or (hl); jp z";
+// the runner finds that loop and runs each group on its own CPU, with the
+// table cut down to that one group, spread over -threads cores.  Every
+// group reports pass or fail by its own CRC check, with the time it took.
 public class zex {
-  static Z80 core;
+  static final int SLICE=1<<20;
+  static final int[] TABLE_LOOP={0x21,-1,-1,0x7E,0x23,0xB6,0xCA};
+  // Offsets in a test descriptor: flag mask, base case, increment and shift
+  // vectors of 20 bytes each, then the CRC and the '$' terminated name
+  static final int CRC=61,NAME=65;
+
+  static class Group {
+    String program,name,output;
+    long crc,clocks,nanos;
+    boolean passed;
+  }
+
+  static int[] load (String file) throws IOException {
+    int[] image=new int[0x10000];
+    DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int b,addr=0x100;
+      while ((b=in.read())>=0 && addr<0xFE00)
+        image[addr++]=b;
+    } finally {
+      in.close();
+    }
+    // The top of the TPA, where the tests put their stack
+    image[5]=0xC9;
+    image[6]=0x00;
+    image[7]=0xFE;
+    return image;
+  }
+
+  // The address of the test table, from the main loop that walks it
+  static int findTable (int[] image) {
+    for (int a=0x100; a<0x10000-TABLE_LOOP.length; a++) {
+      int i=0;
+      while (i<TABLE_LOOP.length && (TABLE_LOOP[i]<0 || image[a+i]==TABLE_LOOP[i]))
+        i++;
+      if (i==TABLE_LOOP.length)
+        return image[a+1]|image[a+2]<<8;
+    }
+    return -1;
+  }
 
-  public static void main (String[] argv) {
-    myports p=new myports();
-    mymemory m=new mymemory();
-    core=new Z80(m,p,false,0x100);
-    while (true) core.run(59600);
+  static String string (int[] mem, int addr) {
+    StringBuilder s=new StringBuilder();
+    while (mem[addr]!='$') {
+      s.append((char)mem[addr]);
+      addr=(addr+1)&0xFFFF;
+    }
+    return s.toString();
   }
-}
\ No newline at end of file
+
+  static Group run (String program, int[] image, int table, int test) {
+    final Group g=new Group();
+    g.program=program;
+    g.name=string(image,test+NAME).replaceAll("\\.+$","").trim();
+    g.crc=(long)image[test+CRC]<<24|image[test+CRC+1]<<16|image[test+CRC+2]<<8|image[test+CRC+3];
+
+    final mymemory m=new mymemory(image);
+    m.writeWord(table,test);
+    m.writeWord(table+2,0);
+    final Z80 cpu=new Z80(m,new myports(),false,0x100);
+    final StringBuilder out=new StringBuilder();
+    final boolean[] done=new boolean[1];
+    final int[] regs=new int[Z80.REG_COUNT];
+
+    cpu.setTrap(0x0005,new Z80Trap() {
+      public boolean trap (Z80 c) {
+        c.getRegisters(regs);
+        int function=regs[Z80.REG_BC]&0xFF;
+        if (function==9)
+          out.append(string(m.mem,regs[Z80.REG_DE]));
+        else if (function==2)
+          out.append((char)(regs[Z80.REG_DE]&0xFF));
+        // RET
+        regs[Z80.REG_PC]=m.readWord(regs[Z80.REG_SP]);
+        regs[Z80.REG_SP]=(regs[Z80.REG_SP]+2)&0xFFFF;
+        c.setRegisters(regs);
+        return true;
+      }
+    });
+    cpu.setTrap(0x0000,new Z80Trap() {
+      public boolean trap (Z80 c) {
+        done[0]=true;
+        c.yieldSlice();
+        return true;
+      }
+    });
+
+    long time=System.nanoTime();
+    while (!done[0])
+      cpu.run(SLICE);
+    g.nanos=System.nanoTime()-time;
+    g.clocks=cpu.getClocks();
+    g.output=out.toString();
+    g.passed=g.output.contains("OK") && !g.output.contains("ERROR");
+    return g;
+  }
+
+  public static void main (String[] argv) throws Exception {
+    int threads=Runtime.getRuntime().availableProcessors();
+    String only=null;
+    List<String> programs=new ArrayList<String>();
+
+    for (int i=0; i<argv.length; i++) {
+      if (argv[i].equals("-threads") && i+1<argv.length)
+        threads=Integer.parseInt(argv[++i]);
+      else if (argv[i].equals("-only") && i+1<argv.length)
+        only=argv[++i];
+      else
+        programs.add(argv[i]);
+    }
+    if (programs.isEmpty()) {
+      System.out.println ("usage: java zex [-threads n] [-only text] zexdoc.com [zexall.com ...]");
+      System.exit(1);
+    }
+
+    ExecutorService pool=Executors.newFixedThreadPool(threads);
+    List<Future<Group>> results=new ArrayList<Future<Group>>();
+    long time=System.nanoTime();
+    for (String program : programs) {
+      final String p=program;
+      final int[] image=load(program);
+      final int table=findTable(image);
+      if (table<0) {
+        System.out.println (program+": no test table found");
+        System.exit(1);
+      }
+      for (int t=table; image[t]!=0 || image[t+1]!=0; t+=2) {
+        final int test=image[t]|image[t+1]<<8;
+        if (only!=null && !string(image,test+NAME).contains(only))
+          continue;
+        results.add(pool.submit(new Callable<Group>() {
+          public Group call() {
+            return run(p,image,table,test);
+          }
+        }));
+      }
+    }
+
+    int failed=0;
+    long clocks=0,nanos=0;
+    for (Future<Group> f : results) {
+      Group g=f.get();
+      if (!g.passed)
+        failed++;
+      clocks+=g.clocks;
+      nanos+=g.nanos;
+      System.out.println (String.format(Locale.ROOT,"%-10s %-34s %s  crc %08x  %7d ms  %7.1f MHz",
+        new File(g.program).getName(),g.name,g.passed?"ok  ":"FAIL",g.crc,g.nanos/1000000,g.clocks*1e3/g.nanos));
+      if (!g.passed)
+        System.out.println ("  "+g.output.trim().replaceAll("\\s+"," "));
+    }
+    pool.shutdown();
+    time=System.nanoTime()-time;
+
+    System.out.println (results.size()+" groups, "+failed+" failed, "+time/1000000+" ms on "+threads+" threads ("
+      +nanos/1000000+" ms of CPU time, "+String.format(Locale.ROOT,"%.1f",clocks*1e3/Math.max(nanos,1))+" MHz emulated)");
+    if (failed>0)
+      System.exit(2);
+  }
+}